@@ -8,7 +8,8 @@ import com.telenav.kivakit.interfaces.naming.Named;
  * A dependency has a list of {@link #dependencies()}, which must be resolved for it to function. A graph of
  * dependencies in depth-first order, where the leaves first and the root is last, can be created with {@link #graph()}.
  * This structure of a dependency graph is similar to typical project structure where the root module has a set of child
- * modules that must be built and those projects have their own child projects, etc.
+ * modules that must be built and those projects have their own child projects, etc. Modules and libraries keep their
+ * graphs, so the builder, librarian and tester can all ask for the graph without traversing it again.
  *
  * @author shibo
  */
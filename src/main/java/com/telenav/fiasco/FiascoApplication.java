@@ -1,21 +1,20 @@
 package com.telenav.fiasco;
 
+import com.telenav.fiasco.daemon.DaemonClient;
+import com.telenav.fiasco.daemon.FiascoDaemon;
+import com.telenav.fiasco.daemon.ProjectWatcher;
 import com.telenav.kivakit.application.Application;
 import com.telenav.kivakit.commandline.SwitchParser;
 import com.telenav.kivakit.commandline.SwitchParsers;
 import com.telenav.kivakit.core.collections.set.ObjectSet;
 import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.filesystem.Folder;
-import com.telenav.kivakit.resource.Extension;
-
-import javax.tools.ToolProvider;
-import java.lang.reflect.Constructor;
-import java.net.URL;
-import java.net.URLClassLoader;
-
-import static com.telenav.kivakit.core.ensure.Ensure.fail;
 
 /**
+ * Builds the project defined by fiasco/Fiasco.java in the current folder. If a {@link FiascoDaemon} is running, the
+ * build is handed to it, otherwise the project is built in this process. With -watch=true, the project is built in this
+ * process and then rebuilt by a {@link ProjectWatcher} whenever its sources change.
+ *
  * @author jonathanl (shibo)
  */
 public class FiascoApplication extends Application
@@ -25,81 +24,103 @@ public class FiascoApplication extends Application
         new FiascoApplication().run(arguments);
     }
 
+    /**
+     * How this application uses the build daemon
+     */
+    public enum DaemonMode
+    {
+        /** Build with the daemon if one is running, otherwise build in this process */
+        USE,
+
+        /** Build in this process, even if a daemon is running */
+        OFF,
+
+        /** Run as the daemon until it's stopped */
+        START,
+
+        /** Stop the running daemon */
+        STOP
+    }
+
     /** Number of threads to use when extracting and converting */
     final SwitchParser<Count> THREADS = SwitchParsers.threadCountSwitchParser(this, Count._8);
 
+    /** How to use the build daemon */
+    final SwitchParser<DaemonMode> DAEMON = SwitchParsers.enumSwitchParser(this, "daemon", "How to use the build daemon", DaemonMode.class)
+            .optional()
+            .defaultValue(DaemonMode.USE)
+            .build();
+
+    /** Whether to run every test, not just those affected by changes */
+    final SwitchParser<Boolean> ALL_TESTS = SwitchParsers.booleanSwitchParser(this, "all-tests", "Run every test, not just those affected by changes")
+            .optional()
+            .defaultValue(false)
+            .build();
+
+    /** Whether to resolve libraries again instead of using lock files */
+    final SwitchParser<Boolean> REFRESH_LIBRARIES = SwitchParsers.booleanSwitchParser(this, "refresh-libraries", "Resolve libraries again instead of using the modules' lock files")
+            .optional()
+            .defaultValue(false)
+            .build();
+
+    /** Whether to keep rebuilding as sources change */
+    final SwitchParser<Boolean> WATCH = SwitchParsers.booleanSwitchParser(this, "watch", "Rebuild the affected modules whenever sources change")
+            .optional()
+            .defaultValue(false)
+            .build();
+
     @Override
     protected void onRun()
     {
         final var fiasco = Folder.current().folder("fiasco");
-        if (compile(fiasco))
+        final var threads = commandLine().get(THREADS);
+        final var allTests = commandLine().get(ALL_TESTS);
+        final var refreshLibraries = commandLine().get(REFRESH_LIBRARIES);
+        if (commandLine().get(WATCH))
         {
-            execute(fiasco);
+            listenTo(new ProjectWatcher(fiasco, threads, allTests, refreshLibraries)).watch();
+            return;
         }
-        else
+        switch (commandLine().get(DAEMON))
         {
-            fail("Fiasco '$' couldn't be compiled", fiasco);
-        }
-    }
+            case START:
+                listenTo(new FiascoDaemon()).serve();
+                break;
 
-    @Override
-    protected ObjectSet<SwitchParser<?>> switchParsers()
-    {
-        return ObjectSet.objectSet(THREADS);
-    }
+            case STOP:
+                if (!listenTo(new DaemonClient()).stop())
+                {
+                    warning("No daemon is running");
+                }
+                break;
 
-    private boolean compile(final Folder folder)
-    {
-        if (folder.exists())
-        {
-            final var sourceFile = folder.file("Fiasco.java");
-            if (sourceFile.exists())
-            {
-                final var compiler = ToolProvider.getSystemJavaCompiler();
-                final var fileManager = compiler.getStandardFileManager(null, null, null);
-                final var files = fileManager.getJavaFileObjectsFromFiles(folder
-                        .nestedFiles(Extension.JAVA.fileMatcher())
-                        .asJavaFiles());
-
-                return compiler.getTask(null, fileManager, null, null, null, files).call();
-            }
-            else
-            {
-                fail("Fiasco source file '$' does not exist", sourceFile);
-                return false;
-            }
+            case USE:
+                // Hand the build to the daemon if it's running,
+                final var result = listenTo(new DaemonClient()).build(fiasco, threads, allTests, refreshLibraries);
+                if (result != null)
+                {
+                    if (!result)
+                    {
+                        problem("Build of '$' failed", fiasco);
+                    }
+                    break;
+                }
+
+                // and otherwise fall through to build in this process.
+
+            case OFF:
+                final var project = listenTo(new ProjectLoader()).load(fiasco);
+                if (project != null && !project.allTests(allTests).refreshLibraries(refreshLibraries).build(threads))
+                {
+                    problem("Build of '$' failed", fiasco);
+                }
+                break;
         }
-        fail("Fiasco folder '$' does not exist", folder);
-        return false;
     }
 
-    @SuppressWarnings("resource")
-    private void execute(final Folder folder)
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
     {
-        try
-        {
-            // Attempt to load the Fiasco class from the fiasco folder
-            final URLClassLoader classLoader = new URLClassLoader(new URL[] { folder.asUrl() });
-            final Class<?> type = classLoader.loadClass("Fiasco");
-            if (type != null)
-            {
-                // get its constructor
-                final Constructor<?> constructor = type.getConstructor(Folder.class);
-
-                // create the project object
-                final var project = (Project) constructor.newInstance(folder);
-
-                // and ask it to build the project
-                project.build(commandLine().get(THREADS));
-            }
-            else
-            {
-                problem("Unable to load Fiasco");
-            }
-        }
-        catch (final Exception e)
-        {
-            problem(e, "Unable to build Fiasco");
-        }
+        return ObjectSet.objectSet(THREADS, DAEMON, ALL_TESTS, REFRESH_LIBRARIES, WATCH);
     }
 }
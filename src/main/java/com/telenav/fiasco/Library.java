@@ -7,7 +7,9 @@
 
 package com.telenav.fiasco;
 
+import com.telenav.fiasco.dependency.DependencyGraph;
 import com.telenav.fiasco.dependency.DependencyList;
+import com.telenav.fiasco.repository.LibraryPattern;
 import com.telenav.fiasco.repository.artifact.Artifact;
 import com.telenav.kivakit.core.language.Arrays;
 import com.telenav.kivakit.core.string.CaseFormat;
@@ -15,28 +17,47 @@ import com.telenav.kivakit.core.version.Version;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
 import com.telenav.kivakit.interfaces.comparison.MatcherSet;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 @SuppressWarnings("unused")
 public class Library implements Dependency<Library>
 {
-    @SuppressWarnings("ConstantConditions")
     public static Library parse(final String descriptor)
     {
-        return new Library((Library) null);
+        return new Library(Artifact.parse(descriptor));
     }
 
     private Artifact artifact;
 
     private final MatcherSet<Library> exclusions = new MatcherSet<>();
 
+    /** The exclusions that are patterns, which unlike other matchers can be written down */
+    private final List<LibraryPattern> exclusionPatterns = new ArrayList<>();
+
     private final DependencyList<Library> dependencies = new DependencyList<>();
 
     private Version version;
 
+    /** The graph of this library's dependencies, once it has been computed */
+    private DependencyGraph<Library> graph;
+
     public Library(final Artifact artifact)
     {
         this.artifact = artifact;
     }
 
+    /**
+     * A copy of the given library that depends on the given libraries, which is how a resolver records what a library
+     * depends on without changing libraries that other resolutions and modules share
+     */
+    public Library(final Library that, final List<Library> dependencies)
+    {
+        this(that);
+        this.dependencies.addAll(dependencies);
+    }
+
     protected Library()
     {
         artifact = Artifact.parse(getClass().getPackageName() + ":" + CaseFormat.camelCaseToHyphenated(getClass().getSimpleName()));
@@ -59,9 +80,44 @@ public class Library implements Dependency<Library>
         return dependencies.copy().without(exclusions.anyMatches());
     }
 
+    /**
+     * Replaces the dependencies of this library with the given libraries
+     */
+    public Library dependencies(final List<Library> dependencies)
+    {
+        this.dependencies.clear();
+        this.dependencies.addAll(dependencies);
+        DependencyGraph.invalidate();
+        return this;
+    }
+
+    /**
+     * @return True if the given library is excluded from the dependencies of this library and, transitively, of
+     * the libraries it depends on
+     */
+    public boolean excludes(final Library library)
+    {
+        return exclusions.anyMatches().matches(library);
+    }
+
+    /**
+     * @return The exclusions of this library that are {@link LibraryPattern}s
+     */
+    public List<LibraryPattern> exclusionPatterns()
+    {
+        return Collections.unmodifiableList(exclusionPatterns);
+    }
+
+    public Library excluding(final LibraryPattern pattern)
+    {
+        exclusionPatterns.add(pattern);
+        return excluding((Matcher<Library>) pattern);
+    }
+
     public Library excluding(final Matcher<Library> pattern)
     {
         exclusions.add(pattern);
+        DependencyGraph.invalidate();
         return this;
     }
 
@@ -70,6 +126,25 @@ public class Library implements Dependency<Library>
         return excluding(library -> Arrays.contains(libraries, library));
     }
 
+    /**
+     * @return The graph of this library's dependencies, which is only computed again when dependencies have changed
+     */
+    @Override
+    public synchronized DependencyGraph<Library> graph()
+    {
+        if (graph == null || graph.isStale())
+        {
+            graph = DependencyGraph.of(this);
+        }
+        return graph;
+    }
+
+    @Override
+    public String toString()
+    {
+        return artifact.name();
+    }
+
     @SuppressWarnings("unchecked")
     public <T extends Library> T version(final Version version)
     {
@@ -77,8 +152,10 @@ public class Library implements Dependency<Library>
         return (T) this;
     }
 
+    @SuppressWarnings("unchecked")
     public <T extends Library> T version(final String version)
     {
-        return version(Version.parseVersion(version));
+        artifact = artifact.withVersion(version);
+        return (T) this;
     }
 }
@@ -4,6 +4,6 @@ public interface LibraryCollection
 {
     default Library library(String specifier)
     {
-        return null;
+        return Library.parse(specifier);
     }
 }
@@ -1,5 +1,6 @@
 package com.telenav.fiasco;
 
+import com.telenav.fiasco.dependency.DependencyGraph;
 import com.telenav.fiasco.dependency.DependencyList;
 import com.telenav.fiasco.plugins.FilePattern;
 import com.telenav.fiasco.plugins.archiver.Archiver;
@@ -37,19 +38,22 @@ public class Module extends BaseRepeater implements Dependency<Module>
     /** The folder where this module exists */
     private final Folder folder;
 
-    private final Lazy<Archiver> archiver = Lazy.of(() -> new Archiver(this));
+    private final Lazy<Archiver> archiver = Lazy.of(() -> listenTo(new Archiver(this)));
 
-    private final Lazy<Builder> builder = Lazy.of(() -> new Builder(this));
+    private final Lazy<Builder> builder = Lazy.of(() -> listenTo(new Builder(this)));
 
-    private final Lazy<Compiler> compiler = Lazy.of(() -> new Compiler(this));
+    private final Lazy<Compiler> compiler = Lazy.of(() -> listenTo(new Compiler(this)));
 
-    private final Lazy<Copier> copier = Lazy.of(() -> new Copier(this));
+    private final Lazy<Copier> copier = Lazy.of(() -> listenTo(new Copier(this)));
 
-    private final Lazy<Librarian> librarian = Lazy.of(() -> new Librarian(this));
+    private final Lazy<Librarian> librarian = Lazy.of(() -> listenTo(new Librarian(this)));
 
-    private final Lazy<Shader> shader = Lazy.of(() -> new Shader(this));
+    private final Lazy<Shader> shader = Lazy.of(() -> listenTo(new Shader(this)));
 
-    private final Lazy<Tester> tester = Lazy.of(() -> new Tester(this));
+    private final Lazy<Tester> tester = Lazy.of(() -> listenTo(new Tester(this)));
+
+    /** The graph of this module's dependencies, once it has been computed */
+    private DependencyGraph<Module> graph;
 
     public Module(final Project project, final String relativePath)
     {
@@ -60,8 +64,17 @@ public class Module extends BaseRepeater implements Dependency<Module>
     {
         this.project = project;
 
-        ensure(relativeFolder.path().isRelative());
-        folder = project().folder().folder(relativeFolder);
+        // A project is the root module, so its folder is not relative to anything
+        if (project == null)
+        {
+            folder = relativeFolder;
+        }
+        else
+        {
+            ensure(relativeFolder.path().isRelative());
+            folder = project.folder().folder(relativeFolder);
+            project.listenTo(this);
+        }
     }
 
     public Archiver archiver()
@@ -69,6 +82,14 @@ public class Module extends BaseRepeater implements Dependency<Module>
         return archiver.get();
     }
 
+    /**
+     * @return The artifact this module produces, if it has been given one
+     */
+    public Artifact artifact()
+    {
+        return artifact;
+    }
+
     public Builder builder()
     {
         return builder.get();
@@ -105,6 +126,19 @@ public class Module extends BaseRepeater implements Dependency<Module>
         return folder.folder(path);
     }
 
+    /**
+     * @return The graph of this module's dependencies, which is only computed again when dependencies have changed
+     */
+    @Override
+    public synchronized DependencyGraph<Module> graph()
+    {
+        if (graph == null || graph.isStale())
+        {
+            graph = DependencyGraph.of(this);
+        }
+        return graph;
+    }
+
     public Librarian librarian()
     {
         return librarian.get();
@@ -125,6 +159,14 @@ public class Module extends BaseRepeater implements Dependency<Module>
         return folder("output");
     }
 
+    /**
+     * @return The path of this module's folder relative to the project folder
+     */
+    public String path()
+    {
+        return folder.relativeTo(project().folder()).toString();
+    }
+
     public Project project()
     {
         return project;
@@ -133,12 +175,14 @@ public class Module extends BaseRepeater implements Dependency<Module>
     public Module requires(final Library library)
     {
         libraries.add(library);
+        DependencyGraph.invalidate();
         return this;
     }
 
     public void requires(final Module module)
     {
         dependencies.add(module);
+        DependencyGraph.invalidate();
     }
 
     public Folder resourceFolder()
@@ -158,7 +202,7 @@ public class Module extends BaseRepeater implements Dependency<Module>
 
     public FileList sources()
     {
-        return sourceFolder().nestedFiles(matching("**/*.java"));
+        return matching("**/*.java").nestedFiles(sourceFolder());
     }
 
     public Folder testResourceFolder()
@@ -171,11 +215,25 @@ public class Module extends BaseRepeater implements Dependency<Module>
         return folder("src/test/java");
     }
 
+    /**
+     * @return The module's test sources, if it has any
+     */
+    public FileList testSources()
+    {
+        return matching("**/*.java").nestedFiles(testSourceFolder());
+    }
+
     public Tester tester()
     {
         return tester.get();
     }
 
+    @Override
+    public String toString()
+    {
+        return project == null ? folder.toString() : path();
+    }
+
     public Version version()
     {
         return artifact.version();
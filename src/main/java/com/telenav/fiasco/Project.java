@@ -14,16 +14,30 @@
 
 package com.telenav.fiasco;
 
+import com.telenav.fiasco.daemon.ProjectWatcher;
+import com.telenav.fiasco.dependency.DependencyList;
 import com.telenav.fiasco.metadata.Contributor;
 import com.telenav.fiasco.metadata.Organization;
+import com.telenav.fiasco.plugins.builder.BuildCache;
+import com.telenav.fiasco.plugins.builder.BuildTimings;
+import com.telenav.fiasco.plugins.builder.HttpRemoteBuildCache;
+import com.telenav.fiasco.plugins.builder.RemoteBuildCache;
+import com.telenav.fiasco.plugins.builder.Snapshot;
+import com.telenav.fiasco.plugins.tester.TestJvmPool;
+import com.telenav.fiasco.repository.RepositoryIndex;
 import com.telenav.kivakit.core.messaging.listeners.MessageList;
 import com.telenav.kivakit.core.messaging.messages.status.Problem;
 import com.telenav.kivakit.core.messaging.messages.status.Quibble;
 import com.telenav.kivakit.core.messaging.messages.status.Warning;
+import com.telenav.kivakit.core.object.Lazy;
+import com.telenav.kivakit.core.time.Time;
+import com.telenav.kivakit.core.value.count.Bytes;
 import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.filesystem.Folder;
 import com.telenav.kivakit.interfaces.code.Callback;
 
+import java.util.Collection;
+
 import static com.telenav.kivakit.core.ensure.Ensure.ensure;
 
 @SuppressWarnings({ "SameParameterValue", "UnusedReturnValue", "unused" })
@@ -31,6 +45,30 @@ public abstract class Project extends Module
 {
     private ProjectMetadata metadata = new ProjectMetadata();
 
+    /** The cache of build step outputs */
+    private BuildCache buildCache;
+
+    /** The folder where build cache entries are stored */
+    private Folder buildCacheFolder = Folder.userHome().folder(".fiasco/cache");
+
+    /** The size above which build cache entries are evicted */
+    private Bytes buildCacheSize = Bytes.gigabytes(10);
+
+    /** The remote build cache, if any */
+    private RemoteBuildCache remoteBuildCache;
+
+    /** True if every test should run, not just those affected by changes */
+    private boolean allTests;
+
+    /** True if the libraries modules need should be resolved again, rather than taken from their lock files */
+    private boolean refreshLibraries;
+
+    /** The sizes, times and digests of the files the build has looked at */
+    private final Lazy<Snapshot> snapshot = Lazy.of(() -> Snapshot.load(outputFolder().file("snapshot.index"), this));
+
+    /** The JVMs that the tests of all modules run in */
+    private final Lazy<TestJvmPool> testJvms = Lazy.of(() -> listenTo(new TestJvmPool(folder(), outputFolder().folder("test-jvms"))));
+
     public Project(final Folder root)
     {
         super(null, root);
@@ -38,18 +76,93 @@ public abstract class Project extends Module
     }
 
     /**
-     * Builds this project with the given number of worker threads
+     * @return True if every test should run, not just those affected by changes
+     */
+    public boolean allTests()
+    {
+        return allTests;
+    }
+
+    /**
+     * Sets whether every test should run in the next build, even tests that would be skipped because nothing they use
+     * has changed and tests whose outputs are up to date or in the build cache
+     */
+    public Project allTests(final boolean allTests)
+    {
+        this.allTests = allTests;
+        return this;
+    }
+
+    /**
+     * Builds this project with the given number of worker threads. Modules on the longest chain of historical build
+     * times are started first, and the time it takes to build each module is recorded for the next build.
      *
      * @return True if the build succeeded without any problems
      */
-    @SuppressWarnings("unchecked")
     public boolean build(final Count threads)
     {
-        final var issues = new MessageList(message -> !message.status().succeeded());
-        dependencies().process(this, threads, module -> module.builder().run());
-        final var statistics = issues.statistics(Problem.class, Warning.class, Quibble.class);
-        information(statistics.titledBox("Build Results"));
-        return issues.count(Problem.class).isZero();
+        return build(graph().depthFirst().without(module -> module == this), threads);
+    }
+
+    /**
+     * Builds the given modules and the modules that depend on them, like {@link #build(Count)}, leaving other modules
+     * as they are. This is how a {@link ProjectWatcher} rebuilds what a change affects.
+     *
+     * @return True if the build succeeded without any problems
+     */
+    public boolean build(final Count threads, final Collection<Module> changed)
+    {
+        return build(graph().depthFirst().without(module -> module == this
+                || module.graph().depthFirst().stream().noneMatch(changed::contains)), threads);
+    }
+
+    /**
+     * @return The cache of build step outputs, which is in ~/.fiasco/cache and holds up to 10 gigabytes unless it has
+     * been configured with {@link #buildCache(Folder, Bytes)}
+     */
+    public synchronized BuildCache buildCache()
+    {
+        if (buildCache == null)
+        {
+            buildCache = listenTo(new BuildCache(buildCacheFolder, buildCacheSize).remote(remoteBuildCache));
+        }
+        return buildCache;
+    }
+
+    /**
+     * @return The snapshot of the files the build has looked at, which gives the digests of files without hashing
+     * those whose sizes and times haven't changed since they were last hashed
+     */
+    public Snapshot snapshot()
+    {
+        return snapshot.get();
+    }
+
+    /**
+     * @return The pool of JVMs that the tests of all modules run in during a build, which can be configured in the
+     * project's constructor
+     */
+    public TestJvmPool testJvms()
+    {
+        return testJvms.get();
+    }
+
+    /**
+     * @return True if the libraries modules need should be resolved again, rather than taken from their lock files
+     */
+    public boolean refreshLibraries()
+    {
+        return refreshLibraries;
+    }
+
+    /**
+     * Sets whether the libraries each module needs should be resolved again in the next build, rather than taken from
+     * the module's lock file, which is written again if the resolved libraries are different
+     */
+    public Project refreshLibraries(final boolean refreshLibraries)
+    {
+        this.refreshLibraries = refreshLibraries;
+        return this;
     }
 
     public ProjectMetadata metadata()
@@ -74,6 +187,19 @@ public abstract class Project extends Module
         return this;
     }
 
+    /**
+     * Configures the build cache
+     *
+     * @param folder The folder where cache entries are stored, which can be shared by builds of different branches
+     * @param maximumSize The size above which the least recently used entries are evicted
+     */
+    protected synchronized void buildCache(final Folder folder, final Bytes maximumSize)
+    {
+        buildCacheFolder = folder;
+        buildCacheSize = maximumSize;
+        buildCache = null;
+    }
+
     protected void contributor(final Contributor contributor)
     {
         metadata = metadata.withContributor(contributor);
@@ -88,4 +214,52 @@ public abstract class Project extends Module
     {
         metadata = metadata.withOrganization(organization);
     }
+
+    /**
+     * Shares build cache entries with the given remote cache, such as an {@link HttpRemoteBuildCache}
+     */
+    protected synchronized void remoteBuildCache(final RemoteBuildCache remote)
+    {
+        remoteBuildCache = remote;
+        buildCache = null;
+    }
+
+    private boolean build(final DependencyList<Module> modules, final Count threads)
+    {
+        final var issues = new MessageList(message -> !message.status().succeeded());
+        addListener(issues);
+        try
+        {
+            return build(modules, threads, issues);
+        }
+        finally
+        {
+            removeListener(issues);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean build(final DependencyList<Module> modules, final Count threads, final MessageList issues)
+    {
+        if (refreshLibraries)
+        {
+            graph().depthFirst().forEach(module -> module.librarian().refresh());
+        }
+        final var timings = BuildTimings.load(outputFolder().file("build-timings.properties"), this);
+        final var built = modules.process(this, threads, module -> timings.estimate(module.path()), module ->
+        {
+            final var start = Time.now();
+            module.builder().run();
+            timings.record(module.path(), start.elapsedSince());
+        });
+        timings.save();
+        buildCache().buildFinished();
+        snapshot().buildFinished();
+        testJvms().buildFinished();
+        graph().depthFirst().forEach(module -> module.librarian().buildFinished());
+        RepositoryIndex.refreshAll();
+        final var statistics = issues.statistics(Problem.class, Warning.class, Quibble.class);
+        information(statistics.titledBox("Build Results"));
+        return built && issues.count(Problem.class).isZero();
+    }
 }
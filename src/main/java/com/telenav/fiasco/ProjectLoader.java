@@ -0,0 +1,290 @@
+package com.telenav.fiasco;
+
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.Folder;
+import com.telenav.kivakit.resource.Extension;
+
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Compiles the Fiasco.java build script in a fiasco folder and loads the {@link Project} it defines.
+ * <p>
+ * Compiled build scripts are cached in ~/.fiasco/scripts under a key that is a digest of the build sources, the
+ * version of Fiasco and the version of the JDK. When nothing has changed, the cached classes are loaded without
+ * compiling anything. Only the most recently used scripts are kept.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class ProjectLoader extends BaseRepeater
+{
+    /** The number of compiled scripts to keep in the cache */
+    private static final int MAXIMUM_CACHED_SCRIPTS = 32;
+
+    /**
+     * @return The key for the compiled classes of the build sources in the given fiasco folder
+     */
+    public static String key(final Folder folder)
+    {
+        final var key = new TreeMap<String, String>();
+        for (final var file : folder.nestedFiles(Extension.JAVA.fileMatcher()))
+        {
+            final var path = Path.of(file.path().asString());
+            key.put(file.relativeTo(folder).toString(), Digest.sha256(path));
+        }
+        key.put("fiasco.version", fiascoVersion());
+        key.put("java.version", Runtime.version().toString());
+        return Digest.sha256(key.toString());
+    }
+
+    /**
+     * @return The version of Fiasco, including the time its classes were built so that development builds of the same
+     * version are told apart
+     */
+    private static String fiascoVersion()
+    {
+        final var version = ProjectLoader.class.getPackage().getImplementationVersion();
+        try
+        {
+            final var location = Path.of(ProjectLoader.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            final var classFile = Files.isDirectory(location)
+                    ? location.resolve(ProjectLoader.class.getName().replace('.', '/') + ".class")
+                    : location;
+            return version + " " + Files.getLastModifiedTime(classFile).toMillis();
+        }
+        catch (final Exception e)
+        {
+            return String.valueOf(version);
+        }
+    }
+
+    /**
+     * @param folder The fiasco folder holding Fiasco.java and any other build sources
+     * @return The project, or null if it couldn't be compiled or loaded
+     */
+    public Project load(final Folder folder)
+    {
+        final var classes = compile(folder);
+        return classes != null ? instantiate(folder, classes) : null;
+    }
+
+    /**
+     * @return The cache folder holding compiled build scripts
+     */
+    private Path cache()
+    {
+        return Path.of(Folder.userHome().folder(".fiasco/scripts").path().asString());
+    }
+
+    /**
+     * @return The folder of compiled classes for the build sources in the given folder, compiling them if they are not
+     * already in the cache, or null if they couldn't be compiled
+     */
+    private Path compile(final Folder folder)
+    {
+        if (folder.exists())
+        {
+            final var sourceFile = folder.file("Fiasco.java");
+            if (sourceFile.exists())
+            {
+                // If the build script has already been compiled,
+                final var classes = cache().resolve(key(folder));
+                if (Files.isDirectory(classes))
+                {
+                    // use the cached classes.
+                    touch(classes);
+                    narrate("Using cached build script '$'", classes);
+                    return classes;
+                }
+
+                // Otherwise, compile the build script into a temporary folder,
+                information("Compiling build script '$'", folder);
+                try
+                {
+                    Files.createDirectories(cache());
+                    final var temporary = Files.createTempDirectory(cache(), "compiling-");
+                    final var compiler = ToolProvider.getSystemJavaCompiler();
+                    final boolean compiled;
+                    try (final var fileManager = compiler.getStandardFileManager(null, null, null))
+                    {
+                        final var files = fileManager.getJavaFileObjectsFromFiles(folder
+                                .nestedFiles(Extension.JAVA.fileMatcher())
+                                .asJavaFiles());
+                        compiled = compiler.getTask(null, fileManager, null, List.of("-d", temporary.toString()), null, files).call();
+                    }
+                    if (compiled)
+                    {
+                        // and move it into the cache in one step, so another process never sees a partial script.
+                        final var moved = move(temporary, classes);
+                        prune();
+                        return moved;
+                    }
+                    delete(temporary);
+                }
+                catch (final IOException e)
+                {
+                    problem(e, "Unable to compile '$'", folder);
+                    return null;
+                }
+                problem("Fiasco '$' couldn't be compiled", folder);
+                return null;
+            }
+            else
+            {
+                problem("Fiasco source file '$' does not exist", sourceFile);
+                return null;
+            }
+        }
+        problem("Fiasco folder '$' does not exist", folder);
+        return null;
+    }
+
+    private void delete(final Path folder) throws IOException
+    {
+        try (final var paths = Files.walk(folder))
+        {
+            for (final var path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @SuppressWarnings("resource")
+    private Project instantiate(final Folder folder, final Path classes)
+    {
+        try
+        {
+            // Attempt to load the Fiasco class from the compiled classes
+            final URLClassLoader classLoader = new URLClassLoader(new URL[] { classes.toUri().toURL() }, getClass().getClassLoader());
+            final Class<?> type = classLoader.loadClass("Fiasco");
+            if (type != null)
+            {
+                // get its constructor
+                final Constructor<?> constructor = type.getConstructor(Folder.class);
+
+                // and create the project object
+                return listenTo((Project) constructor.newInstance(folder));
+            }
+            else
+            {
+                problem("Unable to load Fiasco");
+            }
+        }
+        catch (final Exception e)
+        {
+            problem(e, "Unable to load Fiasco");
+        }
+        return null;
+    }
+
+    /**
+     * Moves the given temporary folder to the given cache folder, unless another process got there first
+     *
+     * @return The folder to load the compiled script from, which is the temporary folder if the file system can't
+     * move it into the cache
+     */
+    private Path move(final Path temporary, final Path classes) throws IOException
+    {
+        try
+        {
+            Files.move(temporary, classes, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final FileAlreadyExistsException e)
+        {
+            delete(temporary);
+        }
+        catch (final AtomicMoveNotSupportedException e)
+        {
+            // If another process cached the script, use its copy,
+            if (Files.isDirectory(classes))
+            {
+                delete(temporary);
+                return classes;
+            }
+
+            // otherwise move the script into the cache as well as the file system can,
+            try
+            {
+                Files.move(temporary, classes);
+            }
+            catch (final IOException ignored)
+            {
+                // or if it can't be moved at all, use it where it was compiled.
+                warning("Unable to cache build script '$'", classes);
+                return temporary;
+            }
+        }
+        catch (final IOException e)
+        {
+            // Some file systems report an existing, non-empty target as a general failure
+            if (!Files.isDirectory(classes))
+            {
+                throw e;
+            }
+            delete(temporary);
+        }
+        return classes;
+    }
+
+    /**
+     * Removes all but the most recently used scripts from the cache
+     */
+    private void prune()
+    {
+        try (final var entries = Files.list(cache()))
+        {
+            final var scripts = new ArrayList<Path>();
+            entries.filter(entry -> !entry.getFileName().toString().startsWith("compiling-")).forEach(scripts::add);
+            scripts.sort(Comparator.comparing(this::lastUsed).reversed());
+            for (final var script : scripts.subList(Math.min(scripts.size(), MAXIMUM_CACHED_SCRIPTS), scripts.size()))
+            {
+                delete(script);
+            }
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to prune build script cache");
+        }
+    }
+
+    private FileTime lastUsed(final Path script)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(script);
+        }
+        catch (final IOException e)
+        {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private void touch(final Path script)
+    {
+        try
+        {
+            Files.setLastModifiedTime(script, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (final IOException ignored)
+        {
+            // The script is still usable, it may just be pruned sooner
+        }
+    }
+}
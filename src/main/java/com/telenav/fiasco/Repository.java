@@ -1,8 +1,13 @@
 package com.telenav.fiasco;
 
+import com.telenav.fiasco.repository.Pom;
+import com.telenav.fiasco.repository.artifact.Artifact;
 import com.telenav.kivakit.core.collections.list.ObjectList;
 import com.telenav.kivakit.core.messaging.Repeater;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * Interface to a repository that stores libraries
  *
@@ -13,10 +18,23 @@ public interface Repository extends Repeater
     /**
      * Resolves the dependencies for a library
      *
-     * @return The library dependencies
+     * @return The library dependencies, or null if the library isn't in this repository
+     * @throws RuntimeException If the repository can't be read, which is never reported as the library being missing
      */
     ObjectList<Library> dependencies(Library library);
 
+    /**
+     * Resolves the dependencies for a library, loading the parent POMs and imported bills of materials its POM refers
+     * to with the given loader, so they can come from other repositories
+     *
+     * @return The library dependencies, or null if the library isn't in this repository
+     * @throws RuntimeException If the repository can't be read, which is never reported as the library being missing
+     */
+    default ObjectList<Library> dependencies(final Library library, final Pom.Loader loader)
+    {
+        return dependencies(library);
+    }
+
     /**
      * Installs the given library into this repository
      *
@@ -24,6 +42,22 @@ public interface Repository extends Repeater
      */
     void install(Library library);
 
+    /**
+     * @return The POM of the given artifact in this repository, as it was read, or null if there is none
+     * @throws IOException If the POM can't be read
+     */
+    default Pom pom(final String group, final String artifact, final String version) throws IOException
+    {
+        return null;
+    }
+
+    /**
+     * Forgets anything this repository remembers about what it has, like the POMs it has read, so it's read again
+     */
+    default void refresh()
+    {
+    }
+
     /**
      * Removes the given library from this repository
      *
@@ -38,4 +72,10 @@ public interface Repository extends Repeater
      * @return True if the repository is empty
      */
     boolean removeAll();
+
+    /**
+     * @return The versions of the given artifact in this repository, in no particular order, or an empty list if they
+     * can't be found out
+     */
+    List<String> versions(Artifact artifact);
 }
@@ -0,0 +1,134 @@
+package com.telenav.fiasco.daemon;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Sends requests to a running {@link FiascoDaemon} and repeats the messages it sends back
+ *
+ * @author jonathanl (shibo)
+ */
+public class DaemonClient extends BaseRepeater
+{
+    /**
+     * Asks the daemon to build the project in the given fiasco folder
+     *
+     * @return True if the build succeeded, false if it failed, or null if no daemon is running
+     */
+    public Boolean build(final Folder folder, final Count threads, final boolean allTests, final boolean refreshLibraries)
+    {
+        return request("build", folder.path().asString(), Integer.toString(threads.asInt()), Boolean.toString(allTests), Boolean.toString(refreshLibraries));
+    }
+
+    /**
+     * Asks the daemon to stop
+     *
+     * @return True if a daemon was running and stopped
+     */
+    public boolean stop()
+    {
+        return request("stop") != null;
+    }
+
+    /**
+     * Sends the given command and arguments to the daemon and relays messages until the result arrives
+     *
+     * @return The result, or null if no daemon could be reached
+     */
+    private Boolean request(final String command, final String... arguments)
+    {
+        // Find the port and token of the running daemon, if there is one,
+        final var file = FiascoDaemon.daemonFile();
+        if (!file.exists())
+        {
+            return null;
+        }
+        final var properties = new Properties();
+        try (final var in = Files.newBufferedReader(Path.of(file.path().asString())))
+        {
+            properties.load(in);
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to read daemon file '$'", file);
+            return null;
+        }
+
+        var connected = false;
+        try (final var socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(properties.getProperty("port"))))
+        {
+            connected = true;
+
+            // send the request,
+            final var out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(properties.getProperty("token"));
+            out.writeUTF(command);
+            for (final var argument : arguments)
+            {
+                out.writeUTF(argument);
+            }
+            out.flush();
+
+            // then repeat messages until the result arrives.
+            final var in = new DataInputStream(socket.getInputStream());
+            while (true)
+            {
+                final var field = in.readUTF();
+                if ("result".equals(field))
+                {
+                    return Boolean.parseBoolean(in.readUTF());
+                }
+                relay(in.readUTF(), in.readUTF());
+            }
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            // If the daemon went away during the request, the request failed,
+            if (connected)
+            {
+                problem(e, "Lost connection to daemon");
+                return false;
+            }
+
+            // otherwise, the daemon file is left over from a daemon that is no longer running.
+            narrate("Unable to reach daemon: $", e.getMessage());
+            return null;
+        }
+    }
+
+    private void relay(final String type, final String text)
+    {
+        switch (type)
+        {
+            case "FatalProblem":
+            case "Problem":
+                problem("$", text);
+                break;
+
+            case "Warning":
+            case "Quibble":
+            case "Alert":
+                warning("$", text);
+                break;
+
+            case "Narration":
+            case "Trace":
+                narrate("$", text);
+                break;
+
+            default:
+                information("$", text);
+                break;
+        }
+    }
+}
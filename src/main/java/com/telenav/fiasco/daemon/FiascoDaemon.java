@@ -0,0 +1,264 @@
+package com.telenav.fiasco.daemon;
+
+import com.telenav.fiasco.Project;
+import com.telenav.fiasco.ProjectLoader;
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A long-lived build process that keeps the Java compiler, its file managers and loaded {@link Project}s warm between
+ * builds. The command line becomes a thin {@link DaemonClient} that sends a build request and relays the messages it
+ * receives back.
+ * <p>
+ * The daemon listens on a loopback socket. Its port and a random token are written to ~/.fiasco/daemon.properties,
+ * which only the user can read, and a client must present the token before the daemon will do anything. Requests are
+ * served one at a time, so builds of the same project never overlap.
+ * </p>
+ * <p>
+ * Each request and response is a sequence of fields written with {@link DataOutputStream#writeUTF(String)}. A request
+ * is the token, a command ("build" or "stop") and, for a build, the fiasco folder, the number of threads and whether to
+ * run all tests. The response to a build is a "message" field followed by the message type and text for each message
+ * broadcast during the build, and then a "result" field followed by "true" or "false".
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class FiascoDaemon extends BaseRepeater
+{
+    /** How long to wait for a client to send its request */
+    private static final int REQUEST_TIMEOUT_MILLISECONDS = 10_000;
+
+    /**
+     * @return The file holding the port and token of the running daemon
+     */
+    public static File daemonFile()
+    {
+        return Folder.userHome().folder(".fiasco").file("daemon.properties");
+    }
+
+    /** A project loaded from a fiasco folder, with the key of the build script it was loaded from */
+    private static class LoadedProject
+    {
+        final String digest;
+
+        final Project project;
+
+        LoadedProject(final String digest, final Project project)
+        {
+            this.digest = digest;
+            this.project = project;
+        }
+    }
+
+    /** Projects that have been loaded, by fiasco folder */
+    private final Map<String, LoadedProject> projects = new HashMap<>();
+
+    /** The token clients must present */
+    private final String token = token();
+
+    /** True while the daemon should keep accepting requests */
+    private volatile boolean running = true;
+
+    /**
+     * Serves build requests until a client asks the daemon to stop
+     */
+    public void serve()
+    {
+        try (final var server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()))
+        {
+            // Publish the port and token for clients,
+            writeDaemonFile(server.getLocalPort());
+            information("Fiasco daemon listening on port $", server.getLocalPort());
+
+            // then serve requests one at a time until asked to stop.
+            while (running)
+            {
+                try (final var socket = server.accept())
+                {
+                    serve(socket);
+                }
+                catch (final Exception e)
+                {
+                    warning(e, "Unable to serve request");
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to start daemon");
+        }
+        finally
+        {
+            daemonFile().delete();
+        }
+        information("Fiasco daemon stopped");
+    }
+
+    /**
+     * Builds the project in the given fiasco folder, reusing the loaded project if its sources haven't changed
+     */
+    private boolean build(final Folder folder, final Count threads, final boolean allTests, final boolean refreshLibraries)
+    {
+        // If the build sources have changed since the project was loaded,
+        final var key = folder.path().asString();
+        final var digest = ProjectLoader.key(folder);
+        var loaded = projects.get(key);
+        if (loaded == null || !loaded.digest.equals(digest))
+        {
+            // load the project again, hearing its messages through the loader.
+            final var project = listenTo(new ProjectLoader()).load(folder);
+            if (project == null)
+            {
+                projects.remove(key);
+                return false;
+            }
+            loaded = new LoadedProject(digest, project);
+            projects.put(key, loaded);
+        }
+        else
+        {
+            narrate("Reusing loaded project '$'", folder);
+        }
+        return loaded.project.allTests(allTests).refreshLibraries(refreshLibraries).build(threads);
+    }
+
+    private void serve(final Socket socket) throws IOException
+    {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLISECONDS);
+        final var in = new DataInputStream(socket.getInputStream());
+        final var out = new DataOutputStream(socket.getOutputStream());
+
+        // Ignore any client that doesn't know the token,
+        if (!token.equals(in.readUTF()))
+        {
+            warning("Ignoring request with invalid token");
+            return;
+        }
+
+        // then carry out the command.
+        final var command = in.readUTF();
+        switch (command)
+        {
+            case "stop":
+                running = false;
+                out.writeUTF("result");
+                out.writeUTF("true");
+                break;
+
+            case "build":
+                final var folder = Folder.parseFolder(in.readUTF());
+                final var threads = Count.parseCount(this, in.readUTF());
+                final var allTests = Boolean.parseBoolean(in.readUTF());
+                final var refreshLibraries = Boolean.parseBoolean(in.readUTF());
+                socket.setSoTimeout(0);
+
+                // Relay messages to the client while building
+                final Listener relay = message ->
+                {
+                    try
+                    {
+                        synchronized (out)
+                        {
+                            out.writeUTF("message");
+                            out.writeUTF(message.getClass().getSimpleName());
+                            out.writeUTF(text(message.formatted()));
+                            out.flush();
+                        }
+                    }
+                    catch (final IOException ignored)
+                    {
+                        // The client has gone away, but the build carries on
+                    }
+                };
+                addListener(relay);
+                var succeeded = false;
+                try
+                {
+                    succeeded = build(folder, threads, allTests, refreshLibraries);
+                }
+                catch (final Exception e)
+                {
+                    problem(e, "Build of '$' failed", folder);
+                }
+                finally
+                {
+                    removeListener(relay);
+                }
+                out.writeUTF("result");
+                out.writeUTF(Boolean.toString(succeeded));
+                break;
+
+            default:
+                warning("Ignoring unknown command '$'", command);
+                break;
+        }
+        out.flush();
+    }
+
+    /**
+     * @return The given text, shortened if necessary to fit in a UTF field
+     */
+    private String text(final String text)
+    {
+        return text.length() > 16_000 ? text.substring(0, 16_000) + "..." : text;
+    }
+
+    private String token()
+    {
+        final var bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return Digest.hexadecimal(bytes);
+    }
+
+    private void writeDaemonFile(final int port)
+    {
+        final var file = daemonFile();
+        file.parent().mkdirs();
+        final var path = Path.of(file.path().asString());
+        try
+        {
+            // Create the file so only the user can read the token,
+            Files.deleteIfExists(path);
+            try
+            {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            catch (final UnsupportedOperationException e)
+            {
+                Files.createFile(path);
+            }
+
+            // then write the port and token to it.
+            final var properties = new Properties();
+            properties.setProperty("port", Integer.toString(port));
+            properties.setProperty("token", token);
+            try (final var out = Files.newBufferedWriter(path))
+            {
+                properties.store(out, "Fiasco daemon");
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.telenav.fiasco.daemon;
+
+import com.telenav.fiasco.Module;
+import com.telenav.fiasco.Project;
+import com.telenav.fiasco.ProjectLoader;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Builds a project and then watches the source and resource folders of its modules, rebuilding the modules that
+ * change, and the modules that depend on them, until the thread is interrupted.
+ * <p>
+ * The project stays loaded between builds, so the compiler and its file managers stay warm, and each build only runs
+ * the steps whose inputs changed. Since editors often save several files at once, or write a file more than once, a
+ * build doesn't start until no more changes have come in for a short quiet period. If the build script in the fiasco
+ * folder changes, the project is loaded again and built in full.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class ProjectWatcher extends BaseRepeater
+{
+    /** The fiasco folder holding the build script */
+    private final Folder fiasco;
+
+    /** The number of threads to build with */
+    private final Count threads;
+
+    /** True to run every test, not just those affected by changes */
+    private final boolean allTests;
+
+    /** True to resolve libraries again when the whole project is built, instead of using lock files */
+    private final boolean refreshLibraries;
+
+    /** How long to wait after a change for any more changes before building */
+    private Duration quietPeriod = Duration.milliseconds(250);
+
+    /** The loaded project */
+    private Project project;
+
+    /** The key of the build script the project was loaded from */
+    private String key;
+
+    /** The module each watched folder belongs to, by watch key, or null for the folders of the build script */
+    private final Map<WatchKey, Module> watched = new HashMap<>();
+
+    public ProjectWatcher(final Folder fiasco, final Count threads, final boolean allTests, final boolean refreshLibraries)
+    {
+        this.fiasco = fiasco;
+        this.threads = threads;
+        this.allTests = allTests;
+        this.refreshLibraries = refreshLibraries;
+    }
+
+    /**
+     * Sets how long to wait after a change for more changes before starting a build
+     */
+    public ProjectWatcher quietPeriod(final Duration quietPeriod)
+    {
+        this.quietPeriod = quietPeriod;
+        return this;
+    }
+
+    /**
+     * Builds the project, then rebuilds what changes affect until the calling thread is interrupted
+     */
+    public void watch()
+    {
+        try (final var service = FileSystems.getDefault().newWatchService())
+        {
+            // Load the project and build all of it,
+            if (load(service))
+            {
+                build(null);
+            }
+            while (!Thread.currentThread().isInterrupted())
+            {
+                information("Watching $ folders for changes", watched.size());
+
+                // then wait for changes, and for them to stop coming,
+                final var changed = new LinkedHashSet<Module>();
+                var reload = false;
+                for (var next = service.take(); next != null; next = service.poll(quietPeriod.milliseconds(), TimeUnit.MILLISECONDS))
+                {
+                    reload |= changes(service, next, changed);
+                }
+
+                // and if the build script changed, load the project again and build all of it,
+                if (reload && load(service))
+                {
+                    build(null);
+                }
+                else if (!changed.isEmpty() && project != null)
+                {
+                    // otherwise build the modules that changed and the modules that depend on them.
+                    information("Building after changes to $", changed);
+                    build(changed);
+                }
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to watch for changes to the project in '$'", fiasco);
+        }
+        information("Stopped watching for changes");
+    }
+
+    /**
+     * Builds the given modules and those that depend on them, or the whole project if no modules are given
+     */
+    private void build(final Set<Module> changed)
+    {
+        try
+        {
+            project.allTests(allTests).refreshLibraries(refreshLibraries && changed == null);
+            if (changed == null)
+            {
+                project.build(threads);
+            }
+            else
+            {
+                project.build(threads, changed);
+            }
+        }
+        catch (final RuntimeException e)
+        {
+            problem(e, "Build of the project in '$' failed", fiasco);
+        }
+    }
+
+    /**
+     * Adds the module of each folder with changes signalled by the given key to the given set, watching any new folders
+     *
+     * @return True if the build script changed
+     */
+    private boolean changes(final WatchService service, final WatchKey key, final Set<Module> changed) throws IOException
+    {
+        // Ignore changes to folders that are no longer watched,
+        if (!watched.containsKey(key))
+        {
+            key.pollEvents();
+            return false;
+        }
+
+        // and otherwise note the module or build script that changed.
+        final var module = watched.get(key);
+        final var folder = (Path) key.watchable();
+        var script = false;
+        for (final var event : key.pollEvents())
+        {
+            if (module == null)
+            {
+                script = true;
+            }
+            else
+            {
+                changed.add(module);
+            }
+            if (event.kind() == ENTRY_CREATE)
+            {
+                final var created = folder.resolve((Path) event.context());
+                if (Files.isDirectory(created))
+                {
+                    watch(service, created, module);
+                }
+            }
+        }
+        if (!key.reset())
+        {
+            watched.remove(key);
+        }
+        return script;
+    }
+
+    /**
+     * Loads the project if it hasn't been loaded or its build script has changed, and watches its folders
+     *
+     * @return True if the project was loaded
+     */
+    private boolean load(final WatchService service) throws IOException
+    {
+        // If the build script hasn't changed, there's nothing to do,
+        final var digest = ProjectLoader.key(fiasco);
+        if (project != null && digest.equals(key))
+        {
+            return false;
+        }
+
+        // otherwise load the project again,
+        watched.keySet().forEach(WatchKey::cancel);
+        watched.clear();
+        watch(service, path(fiasco), null);
+        project = listenTo(new ProjectLoader()).load(fiasco);
+        key = digest;
+        if (project == null)
+        {
+            return false;
+        }
+
+        // and watch the folders of each module.
+        for (final var module : project.graph().depthFirst())
+        {
+            if (module != project)
+            {
+                for (final var folder : new Folder[] { module.sourceFolder(), module.resourceFolder(),
+                        module.testSourceFolder(), module.testResourceFolder() })
+                {
+                    if (folder.exists())
+                    {
+                        watch(service, path(folder), module);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private Path path(final Folder folder)
+    {
+        return Path.of(folder.path().asString()).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Watches the given folder and its sub-folders for changes to the given module
+     */
+    private void watch(final WatchService service, final Path root, final Module module) throws IOException
+    {
+        Files.walkFileTree(root, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path folder, final BasicFileAttributes attributes) throws IOException
+            {
+                watched.put(folder.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), module);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -2,19 +2,44 @@ package com.telenav.fiasco.dependency;
 
 import com.telenav.fiasco.Dependency;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static com.telenav.kivakit.core.ensure.Ensure.fail;
 
 /**
  * Graph of dependencies created by traversing dependencies from a root. If the dependency graph is cyclic, terminal
- * failure will be reported via validation.
+ * failure will be reported via validation, naming the dependencies that form the cycle.
+ * <p>
+ * The traversal visits each dependency and each edge once, so shared dependencies are explored only the first time
+ * they are reached. Modules and libraries keep the graph of their dependencies once it has been computed, until it
+ * {@link #isStale()}, which it is once {@link #invalidate()} has been called because a dependency was added to a module
+ * or library. Since each graph is kept by its root, it's collected along with the root.
+ * </p>
  *
  * @author shibo
  */
 @SuppressWarnings("unused")
 public class DependencyGraph<T extends Dependency<T>>
 {
+    /** The number of times dependencies have changed */
+    private static final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Makes every graph computed so far stale. This must be called when dependencies change.
+     */
+    public static void invalidate()
+    {
+        changes.incrementAndGet();
+    }
+
     /**
      * @return The dependency graph formed by traversing dependencies starting at the given root
      */
@@ -23,18 +48,55 @@ public class DependencyGraph<T extends Dependency<T>>
         return new DependencyGraph<>(root);
     }
 
+    /** The state of a dependency during traversal */
+    private enum State
+    {
+        EXPLORING,
+        EXPLORED
+    }
+
+    /** A dependency on the traversal stack, and the children that remain to be explored */
+    private static class Frame<T extends Dependency<T>>
+    {
+        final T dependency;
+
+        final Iterator<T> children;
+
+        Frame(final T dependency)
+        {
+            this.dependency = dependency;
+            children = dependency.dependencies().iterator();
+        }
+    }
+
     /** The root of this dependency graph */
     private final Dependency<T> root;
 
     /** The dependencies of this graph in depth-first-order */
     private final DependencyList<T> depthFirst;
 
+    /** The first cycle found in this graph, if any */
+    private List<T> cycle;
+
+    /** The number of times dependencies had changed when this graph was computed */
+    private final long change;
+
     private DependencyGraph(final T root)
     {
         this.root = root;
+        change = changes.get();
         depthFirst = depthFirst(root);
     }
 
+    /**
+     * @return The dependencies that form a cycle in this graph, starting and ending with the same dependency, or null
+     * if the graph is acyclic
+     */
+    public List<T> cycle()
+    {
+        return cycle;
+    }
+
     /**
      * @return The dependencies in this graph in depth-first order
      */
@@ -43,6 +105,22 @@ public class DependencyGraph<T extends Dependency<T>>
         return depthFirst;
     }
 
+    /**
+     * @return True if this graph contains a cycle
+     */
+    public boolean isCyclic()
+    {
+        return cycle != null;
+    }
+
+    /**
+     * @return True if dependencies have changed since this graph was computed
+     */
+    public boolean isStale()
+    {
+        return change != changes.get();
+    }
+
     /**
      * @return The root node of this dependency graph
      */
@@ -52,34 +130,75 @@ public class DependencyGraph<T extends Dependency<T>>
     }
 
     /**
-     * @return List of dependencies in depth-first order
+     * @return List of dependencies in depth-first order, with the leaves first and the root last
      */
     private DependencyList<T> depthFirst(final T root)
     {
-        final DependencyList<T> explored = new DependencyList<>();
+        final var explored = new DependencyList<T>();
+        final var states = new HashMap<T, State>();
+        final Deque<Frame<T>> stack = new ArrayDeque<>();
 
-        // Go through each child of the root
-        for (final T child : root.dependencies())
+        // Start exploring at the root,
+        states.put(root, State.EXPLORING);
+        stack.push(new Frame<>(root));
+        while (!stack.isEmpty())
         {
-            // and explore it (in a depth-first traversal)
-            final var descendants = depthFirst(child);
-
-            // and if none of the explored values has already been explored
-            if (Collections.disjoint(explored, descendants))
+            final var frame = stack.peek();
+            if (frame.children.hasNext())
             {
-                // then add the explored descendants to the list of dependencies
-                explored.addAll(descendants);
+                // and for each child of the dependency on top of the stack,
+                final var child = frame.children.next();
+                final var state = states.get(child);
+                if (state == null)
+                {
+                    // explore it if we haven't seen it before,
+                    states.put(child, State.EXPLORING);
+                    stack.push(new Frame<>(child));
+                }
+                else if (state == State.EXPLORING)
+                {
+                    // or if it's still on the stack, we have found a cycle.
+                    cycle(stack, child);
+                }
             }
             else
             {
-                // otherwise, if the explored list intersects the descendants, there is a cyclic dependency graph.
-                fail("The dependency graph '$' is cyclic.", root);
+                // When all of a dependency's children are explored, it follows them in the list.
+                stack.pop();
+                states.put(frame.dependency, State.EXPLORED);
+                explored.add(frame.dependency);
             }
         }
 
-        // Finally, add the root to the list
-        explored.add(root);
-
         return explored;
     }
+
+    /**
+     * Records and reports the cycle formed by the given stack, which closes at the given dependency
+     */
+    private void cycle(final Deque<Frame<T>> stack, final T closing)
+    {
+        // The stack holds the path from the root to the current dependency with the most recent first,
+        final var path = new ArrayList<T>();
+        for (final var frame : stack)
+        {
+            path.add(frame.dependency);
+            if (frame.dependency.equals(closing))
+            {
+                break;
+            }
+        }
+
+        // so reverse it and close the loop.
+        Collections.reverse(path);
+        path.add(closing);
+
+        if (cycle == null)
+        {
+            cycle = path;
+            fail("The dependency graph '$' is cyclic: $", root, path.stream()
+                    .map(Dependency::name)
+                    .collect(Collectors.joining(" -> ")));
+        }
+    }
 }
@@ -2,18 +2,16 @@ package com.telenav.fiasco.dependency;
 
 import com.telenav.fiasco.Dependency;
 import com.telenav.kivakit.core.collections.list.ObjectList;
-import com.telenav.kivakit.core.collections.set.ConcurrentHashSet;
 import com.telenav.kivakit.core.messaging.Listener;
-import com.telenav.kivakit.core.thread.Monitor;
-import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.time.Duration;
 import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.interfaces.code.Callback;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Function;
 
 /**
  * An ordered list of {@link Dependency} objects. The objects in the list can be processed with
@@ -45,76 +43,43 @@ import java.util.concurrent.LinkedBlockingDeque;
         return new DependencyList<>(this);
     }
 
-    public void process(final Listener listener, final Callback<T> callback)
+    public boolean process(final Listener listener, final Callback<T> callback)
     {
-        process(listener, Count._1, callback);
+        return process(listener, Count._1, callback);
     }
 
     /**
      * Processes the dependencies in this list, possibly in parallel, calling the callback with each dependency to
-     * process only after its dependencies have been processed.
+     * process only after its dependencies have been processed. If the callback fails for a dependency, no further
+     * dependencies are processed.
      *
      * @param listener The listener to call with any messages from processing
      * @param threads The number of threads to use
      * @param callback The callback to process each dependency
+     * @return True if every dependency was processed successfully
+     * @see DependencyScheduler
      */
-    @SuppressWarnings("unchecked")
-    public void process(final Listener listener, final Count threads, final Callback<T> callback)
+    public boolean process(final Listener listener, final Count threads, final Callback<T> callback)
     {
-        // If there is only one thread requested,
-        if (threads.equals(Count._1))
-        {
-            // call the callback for each dependency in order
-            forEach(callback::callback);
-        }
-        else
-        {
-            // otherwise, create an executor with the requested number of threads
-            final var executor = Executors.newFixedThreadPool(threads.asInt());
-
-            // and a queue with the dependencies in it
-            final var queue = queue();
-
-            // and submit jobs for each thread
-            final var completed = new ConcurrentHashSet<Dependency<T>>();
-            final var monitor = new Monitor();
-            threads.loop(() -> executor.submit(() ->
-            {
-                // While the queue has dependencies to process,
-                while (!queue.isEmpty())
-                {
-                    Dependency<T> dependency = null;
-                    try
-                    {
-                        // take the next dependency from the queue
-                        dependency = queue.take();
-
-                        // and wait until all of its dependencies have been processed
-                        while (!completed.containsAll(dependency.dependencies()))
-                        {
-                            monitor.await();
-                        }
-
-                        // before processing it
-                        callback.callback((T) dependency);
-                        completed.add(dependency);
-
-                        // and waking any threads waiting on this dependency.
-                        monitor.done();
-                    }
-                    catch (final InterruptedException ignored)
-                    {
-                    }
-                    catch (final Exception e)
-                    {
-                        listener.problem(e, "Error processing '$'", dependency);
-                    }
-                }
-            }));
+        return new DependencyScheduler<>(listener, this).process(threads, callback);
+    }
 
-            // then wait for the executor threads to finish processing.
-            Threads.shutdownAndAwait(executor);
-        }
+    /**
+     * Processes the dependencies in this list like {@link #process(Listener, Count, Callback)}, but when more than one
+     * dependency is ready, the one on the longest chain of estimated processing time is started first.
+     *
+     * @param listener The listener to call with any messages from processing
+     * @param threads The number of threads to use
+     * @param estimate The estimated time to process a dependency
+     * @param callback The callback to process each dependency
+     * @return True if every dependency was processed successfully
+     */
+    public boolean process(final Listener listener,
+                           final Count threads,
+                           final Function<T, Duration> estimate,
+                           final Callback<T> callback)
+    {
+        return new DependencyScheduler<>(listener, this, estimate).process(threads, callback);
     }
 
     /**
@@ -0,0 +1,328 @@
+package com.telenav.fiasco.dependency;
+
+import com.telenav.fiasco.Dependency;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.interfaces.code.Callback;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Processes a list of dependencies as a directed acyclic graph. Each dependency has an in-degree, which is the number
+ * of its dependencies (in the list) that have not yet been processed. Only dependencies with an in-degree of zero are
+ * placed in the ready queue, so worker threads never wait on a dependency while other work is available.
+ * <p>
+ * When an estimate of the time to process each dependency is given, ready dependencies are taken in order of their
+ * critical path, the longest estimated time from the start of the dependency to the end of processing through any chain
+ * of dependents. Starting long chains first keeps all threads busy toward the end of processing.
+ * </p>
+ * <p>
+ * If the callback throws an exception for a dependency, the problem is reported to the listener, no further
+ * dependencies are started, and every dependency that has not been processed is reported as cancelled.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class DependencyScheduler<T extends Dependency<T>>
+{
+    /** The listener to report problems to */
+    private final Listener listener;
+
+    /** The dependencies to process */
+    private final List<T> dependencies;
+
+    /** The number of unprocessed dependencies of each dependency */
+    private final Map<T, Integer> inDegree = new HashMap<>();
+
+    /** The dependencies in the list that depend on each dependency */
+    private final Map<T, List<T>> dependents = new HashMap<>();
+
+    /** The estimated time to process each dependency and all of its dependents */
+    private final Map<T, Long> criticalPath = new HashMap<>();
+
+    /** Dependencies that are ready to process */
+    private final Queue<T> ready;
+
+    /** Dependencies that have been processed successfully */
+    private final Set<T> processed = new HashSet<>();
+
+    /** Lock guarding all scheduling state */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled whenever the ready queue or the number of running dependencies changes */
+    private final Condition changed = lock.newCondition();
+
+    /** The number of dependencies being processed right now */
+    private int running;
+
+    /** The dependency that failed, if any */
+    private T failed;
+
+    public DependencyScheduler(final Listener listener, final List<T> dependencies)
+    {
+        this(listener, dependencies, null);
+    }
+
+    /**
+     * @param listener The listener to report problems to
+     * @param dependencies The dependencies to process
+     * @param estimate The estimated time to process a dependency, or null to process in list order
+     */
+    public DependencyScheduler(final Listener listener,
+                               final List<T> dependencies,
+                               final Function<T, Duration> estimate)
+    {
+        this.listener = listener;
+        this.dependencies = dependencies;
+
+        // Compute the in-degree of each dependency, considering only dependencies in the list,
+        for (final var dependency : dependencies)
+        {
+            inDegree.put(dependency, 0);
+            dependents.put(dependency, new ArrayList<>());
+        }
+        for (final var dependency : dependencies)
+        {
+            for (final var child : dependency.dependencies())
+            {
+                if (inDegree.containsKey(child))
+                {
+                    inDegree.put(dependency, inDegree.get(dependency) + 1);
+                    dependents.get(child).add(dependency);
+                }
+            }
+        }
+
+        // then order ready dependencies by critical path if there is an estimate, or by list order otherwise,
+        if (estimate != null)
+        {
+            computeCriticalPaths(estimate);
+            final Comparator<T> longestFirst = Comparator.comparing(criticalPath::get);
+            ready = new PriorityQueue<>(Math.max(1, dependencies.size()), longestFirst.reversed());
+        }
+        else
+        {
+            ready = new ArrayDeque<>();
+        }
+
+        // and seed the ready queue with the dependencies that have no dependencies.
+        for (final var dependency : dependencies)
+        {
+            if (inDegree.get(dependency) == 0)
+            {
+                ready.add(dependency);
+            }
+        }
+    }
+
+    /**
+     * Processes the dependencies with the given number of threads
+     *
+     * @param threads The number of worker threads
+     * @param callback The callback to process each dependency
+     * @return True if all dependencies were processed successfully
+     */
+    public boolean process(final Count threads, final Callback<T> callback)
+    {
+        if (threads.equals(Count._1))
+        {
+            // If only one thread was requested, work on the calling thread,
+            work(callback);
+        }
+        else
+        {
+            // otherwise, start a worker for each requested thread
+            final var executor = Threads.threadPool("Dependencies", threads);
+            threads.loop(() -> executor.submit(() -> work(callback)));
+
+            // and wait for the workers to drain the graph (Threads.shutdownAndAwait() returns without waiting).
+            executor.shutdown();
+            Threads.await(executor);
+        }
+
+        // Report any dependencies that were never processed
+        for (final var dependency : dependencies)
+        {
+            if (!processed.contains(dependency) && dependency != failed)
+            {
+                if (failed != null)
+                {
+                    listener.warning("Cancelled '$' because '$' failed", dependency, failed);
+                }
+                else
+                {
+                    listener.problem("Unable to process '$' because its dependencies are cyclic", dependency);
+                }
+            }
+        }
+
+        return processed.size() == inDegree.size();
+    }
+
+    /**
+     * Computes the critical path of each dependency, working backwards from dependencies that have no dependents so that
+     * the critical path of each dependent is known before it is needed.
+     */
+    private void computeCriticalPaths(final Function<T, Duration> estimate)
+    {
+        // Count the unvisited dependents of each dependency,
+        final var unvisited = new HashMap<T, Integer>();
+        final var queue = new ArrayDeque<T>();
+        for (final var dependency : dependencies)
+        {
+            final var count = dependents.get(dependency).size();
+            unvisited.put(dependency, count);
+            if (count == 0)
+            {
+                queue.add(dependency);
+            }
+        }
+
+        // then visit dependencies once all of their dependents have been visited.
+        while (!queue.isEmpty())
+        {
+            final var dependency = queue.remove();
+            var longest = 0L;
+            for (final var dependent : dependents.get(dependency))
+            {
+                longest = Math.max(longest, criticalPath.get(dependent));
+            }
+            criticalPath.put(dependency, estimate.apply(dependency).milliseconds() + longest);
+
+            for (final var child : dependency.dependencies())
+            {
+                if (unvisited.containsKey(child))
+                {
+                    final var remaining = unvisited.get(child) - 1;
+                    unvisited.put(child, remaining);
+                    if (remaining == 0)
+                    {
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+
+        // Dependencies in cycles are never visited, but they need a priority anyway
+        for (final var dependency : dependencies)
+        {
+            criticalPath.putIfAbsent(dependency, estimate.apply(dependency).milliseconds());
+        }
+    }
+
+    /**
+     * Takes the next ready dependency, waiting while other dependencies are still running and might make more
+     * dependencies ready.
+     *
+     * @return The next dependency to process, or null if there is no more work
+     */
+    private T next() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (ready.isEmpty() && running > 0)
+            {
+                changed.await();
+            }
+            final var next = ready.poll();
+            if (next != null)
+            {
+                running++;
+            }
+            return next;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of processing the given dependency, making any dependents ready whose dependencies are now
+     * all processed.
+     */
+    private void processed(final T dependency, final boolean succeeded)
+    {
+        lock.lock();
+        try
+        {
+            running--;
+            if (succeeded)
+            {
+                processed.add(dependency);
+                if (failed == null)
+                {
+                    for (final var dependent : dependents.get(dependency))
+                    {
+                        final var remaining = inDegree.get(dependent) - 1;
+                        inDegree.put(dependent, remaining);
+                        if (remaining == 0)
+                        {
+                            ready.add(dependent);
+                        }
+                    }
+                }
+            }
+            else
+            {
+                // Fail fast by not starting anything else
+                if (failed == null)
+                {
+                    failed = dependency;
+                }
+                ready.clear();
+            }
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes ready dependencies until there is no more work
+     */
+    private void work(final Callback<T> callback)
+    {
+        try
+        {
+            T dependency;
+            while ((dependency = next()) != null)
+            {
+                var succeeded = false;
+                try
+                {
+                    callback.callback(dependency);
+                    succeeded = true;
+                }
+                catch (final Exception e)
+                {
+                    listener.problem(e, "Error processing '$'", dependency);
+                }
+                finally
+                {
+                    processed(dependency, succeeded);
+                }
+            }
+        }
+        catch (final InterruptedException ignored)
+        {
+        }
+    }
+}
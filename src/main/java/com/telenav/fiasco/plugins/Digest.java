@@ -0,0 +1,112 @@
+package com.telenav.fiasco.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digests of strings, bytes and files, as lowercase hexadecimal strings. Plugins use these to decide whether
+ * their inputs have changed since the last build. SHA-1 digests are only for checking the checksums that Maven
+ * repositories publish.
+ *
+ * @author jonathanl (shibo)
+ */
+public class Digest
+{
+    private static final char[] HEXADECIMAL = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return The hexadecimal form of the given bytes
+     */
+    public static String hexadecimal(final byte[] bytes)
+    {
+        final var hex = new char[bytes.length * 2];
+        for (var i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = HEXADECIMAL[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEXADECIMAL[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return A new SHA-1 message digest
+     */
+    public static MessageDigest sha1()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return A new SHA-256 message digest
+     */
+    public static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The digest of the given bytes
+     */
+    public static String sha256(final byte[] bytes)
+    {
+        return hexadecimal(sha256().digest(bytes));
+    }
+
+    /**
+     * @return The digest of the given text, encoded as UTF-8
+     */
+    public static String sha256(final String text)
+    {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The digest of the contents of the given file
+     */
+    public static String sha256(final Path file)
+    {
+        try (final var in = Files.newInputStream(file))
+        {
+            return sha256(in);
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The digest of the given stream, which is read to its end but not closed
+     */
+    public static String sha256(final InputStream in) throws IOException
+    {
+        final var digest = sha256();
+        final var buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+        {
+            digest.update(buffer, 0, read);
+        }
+        return hexadecimal(digest.digest());
+    }
+}
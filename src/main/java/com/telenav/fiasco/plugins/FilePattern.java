@@ -1,8 +1,21 @@
 package com.telenav.fiasco.plugins;
 
 import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.FileList;
+import com.telenav.kivakit.filesystem.Folder;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.regex.Pattern;
 
 /**
@@ -13,46 +26,352 @@ import java.util.regex.Pattern;
  *     <li>* - matches zero or more filename characters</li>
  *     <li>** - matches zero or more folders</li>
  * </ul>
+ * <p>
+ * Patterns are compiled into a sequence of segments, one for each folder or file name, which are matched against the
+ * names in a path one at a time, without regular expressions. Since a partial path can be matched too, the walk done
+ * by {@link #nestedFiles(Folder)} skips any folder that can't contain a matching file. Patterns of the common form
+ * **&#47;*.java only need to look at file names. A pattern where ** is part of a longer name, like **.java, is matched
+ * against whole paths with a regular expression instead.
+ * </p>
  *
  * @author jonathanl (shibo)
  */
 public class FilePattern implements Matcher<File>
 {
-    public static FilePattern parse(String simplifiedPattern)
+    public static FilePattern parse(final String simplifiedPattern)
+    {
+        // Break the pattern into the segments between slashes,
+        final var segments = new ArrayList<Segment>();
+        final var names = simplifiedPattern.split("/", -1);
+        for (var index = 0; index < names.length; index++)
+        {
+            final var name = names[index];
+            if (name.equals("**"))
+            {
+                // where "**" matches zero or more folders, or one or more names at the end of the pattern,
+                if (index == names.length - 1)
+                {
+                    segments.add(Segment.parse("*"));
+                }
+                segments.add(Segment.ANY_FOLDERS);
+            }
+            else if (name.contains("**"))
+            {
+                // "**" elsewhere can match across folders, which only a regular expression can do,
+                return new FilePattern(simplifiedPattern, null, regex(simplifiedPattern));
+            }
+            else
+            {
+                // and any other segment matches a single name.
+                segments.add(Segment.parse(name));
+            }
+        }
+        if (segments.size() >= 64)
+        {
+            return new FilePattern(simplifiedPattern, null, regex(simplifiedPattern));
+        }
+        return new FilePattern(simplifiedPattern, segments.toArray(new Segment[0]), null);
+    }
+
+    /**
+     * A compiled segment of a pattern, which matches a single folder or file name, or zero or more folders
+     */
+    private static class Segment
     {
-        final var files = "\0";
-        final var characters = "\1";
+        /** Matches zero or more folders */
+        static final Segment ANY_FOLDERS = new Segment(null, null, null, null);
+
+        static Segment parse(final String name)
+        {
+            final var star = name.indexOf('*');
+            if (star < 0)
+            {
+                return new Segment(name, null, null, null);
+            }
+            final var last = name.lastIndexOf('*');
+            final var middle = star == last ? new String[0] : name.substring(star + 1, last).split("\\*+");
+            return new Segment(null, name.substring(0, star), name.substring(last + 1), middle);
+        }
+
+        /** The name this segment matches, if it has no wildcards */
+        final String literal;
 
-        // Substitute \0 for /**/ and \1 for *,
-        simplifiedPattern = simplifiedPattern
-                .replaceAll("[^/]\\*\\*[$/]", files)
-                .replaceAll("\\*", characters);
+        /** The text a matching name starts with */
+        final String prefix;
 
-        // quote characters around \0 and \1,
-        var matcher = Pattern.compile("(.*)([\0\1])").matcher(simplifiedPattern);
-        simplifiedPattern = matcher.replaceAll("\\Q$1\\E$2");
-        matcher = Pattern.compile("([\0\1])(.*)$").matcher(simplifiedPattern);
-        simplifiedPattern = matcher.replaceAll("\\Q$1\\E$2");
+        /** The text a matching name ends with */
+        final String suffix;
 
-        // then build the final pattern by substituting regexps for \0 and \1
-        final var pattern = simplifiedPattern
-                .replaceAll(files, ".*")
-                .replaceAll(characters, "[^/]*");
+        /** Text that must be in a matching name between the prefix and suffix, in order */
+        final String[] middle;
 
-        return new FilePattern(Pattern.compile(pattern));
+        Segment(final String literal, final String prefix, final String suffix, final String[] middle)
+        {
+            this.literal = literal;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.middle = middle;
+        }
+
+        boolean isAnyFolders()
+        {
+            return this == ANY_FOLDERS;
+        }
+
+        boolean matches(final String name)
+        {
+            // A name without wildcards must be equal,
+            if (literal != null)
+            {
+                return literal.equals(name);
+            }
+
+            // and one with wildcards must have the prefix and suffix,
+            final var end = name.length() - suffix.length();
+            if (end < prefix.length() || !name.startsWith(prefix) || !name.endsWith(suffix))
+            {
+                return false;
+            }
+
+            // and each of the texts between stars in between them, where the leftmost match of each is as good as any.
+            var at = prefix.length();
+            for (final var text : middle)
+            {
+                final var found = name.indexOf(text, at);
+                if (found < 0 || found + text.length() > end)
+                {
+                    return false;
+                }
+                at = found + text.length();
+            }
+            return true;
+        }
     }
 
-    private final Pattern pattern;
+    /**
+     * @return A regular expression for the given simplified pattern
+     */
+    private static Pattern regex(final String simplifiedPattern)
+    {
+        // Translate the simplified pattern into a regular expression, one character at a time
+        final var pattern = new StringBuilder();
+        for (var at = 0; at < simplifiedPattern.length(); at++)
+        {
+            final var character = simplifiedPattern.charAt(at);
+            if (simplifiedPattern.startsWith("**/", at))
+            {
+                // "**/" matches zero or more folders,
+                pattern.append("(?:.*/)?");
+                at += 2;
+            }
+            else if (simplifiedPattern.startsWith("**", at))
+            {
+                // "**" matches anything,
+                pattern.append(".*");
+                at += 1;
+            }
+            else if (character == '*')
+            {
+                // "*" matches zero or more filename characters
+                pattern.append("[^/]*");
+            }
+            else
+            {
+                // and anything else matches itself.
+                pattern.append(Pattern.quote(String.valueOf(character)));
+            }
+        }
+        return Pattern.compile(pattern.toString());
+    }
 
-    private FilePattern(final Pattern pattern)
+    /** The pattern as it was given */
+    private final String pattern;
+
+    /** The segments of the pattern, or null if it's matched with a regular expression */
+    private final Segment[] segments;
+
+    /** The regular expression for a pattern that can't be broken into segments */
+    private final Pattern regex;
+
+    /** The file name segment, if the pattern is "**&#47;" followed by a file name, so only file names are matched */
+    private final Segment fileName;
+
+    private FilePattern(final String pattern, final Segment[] segments, final Pattern regex)
     {
         this.pattern = pattern;
+        this.segments = segments;
+        this.regex = regex;
+        this.fileName = segments != null && segments.length == 2 && segments[0].isAnyFolders() && !segments[1].isAnyFolders()
+                ? segments[1]
+                : null;
     }
 
     @Override
     public boolean matches(final File file)
     {
+        if (fileName != null)
+        {
+            return fileName.matches(file.path().last());
+        }
         final var path = file.path().join("/");
-        return pattern.matcher(path).matches();
+        if (regex != null)
+        {
+            return regex.matcher(path).matches();
+        }
+        var states = start();
+        for (final var name : path.split("/", -1))
+        {
+            states = step(states, name);
+        }
+        return isMatch(states);
+    }
+
+    /**
+     * @return The files in the given folder and its sub-folders that match this pattern, without visiting any
+     * sub-folder that can't hold a match
+     */
+    public FileList nestedFiles(final Folder folder)
+    {
+        final var root = Path.of(folder.path().asString()).toAbsolutePath().normalize();
+        final var files = new FileList();
+        if (!Files.isDirectory(root))
+        {
+            return files;
+        }
+        if (regex != null)
+        {
+            return folder.nestedFiles(this);
+        }
+
+        // Match the folder's own path, and as each sub-folder is visited, the states it leaves the pattern in,
+        var initial = start();
+        for (final var name : root.toString().replace(java.io.File.separatorChar, '/').split("/", -1))
+        {
+            initial = step(initial, name);
+        }
+        final var states = new ArrayDeque<Long>();
+        states.push(initial);
+        try
+        {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>()
+            {
+                @Override
+                public FileVisitResult postVisitDirectory(final Path directory, final IOException e)
+                {
+                    states.pop();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes)
+                {
+                    // skipping any folder that leaves the pattern with nothing left to match,
+                    final var next = directory.equals(root) ? states.peek() : step(states.peek(), name(directory));
+                    if (!isPartialMatch(next))
+                    {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    states.push(next);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+                {
+                    // and adding each file that completes a match.
+                    if (attributes.isRegularFile() && isMatch(step(states.peek(), name(file))))
+                    {
+                        files.add(File.file(file.toFile()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e)
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return files;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern;
+    }
+
+    /**
+     * @return True if the given states include having matched the whole pattern
+     */
+    private boolean isMatch(final long states)
+    {
+        return (states & (1L << segments.length)) != 0;
+    }
+
+    /**
+     * @return True if the given states include any where more of the pattern remains to be matched
+     */
+    private boolean isPartialMatch(final long states)
+    {
+        return (states & ~(1L << segments.length)) != 0;
+    }
+
+    private String name(final Path path)
+    {
+        return path.getFileName().toString();
+    }
+
+    /**
+     * @return The given states, along with the states after any "**" segments that match zero folders
+     */
+    private long skipAnyFolders(long states)
+    {
+        for (var index = 0; index < segments.length; index++)
+        {
+            if ((states & (1L << index)) != 0 && segments[index].isAnyFolders())
+            {
+                states |= 1L << (index + 1);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return The states before anything has been matched. Bit n of the states is set if the pattern could be matched
+     * up to its n'th segment.
+     */
+    private long start()
+    {
+        return skipAnyFolders(1L);
+    }
+
+    /**
+     * @return The states after matching the given name from the given states
+     */
+    private long step(final long states, final String name)
+    {
+        var next = 0L;
+        for (var index = 0; index < segments.length; index++)
+        {
+            if ((states & (1L << index)) != 0)
+            {
+                final var segment = segments[index];
+                if (segment.isAnyFolders())
+                {
+                    next |= 1L << index;
+                }
+                else if (segment.matches(name))
+                {
+                    next |= 1L << (index + 1);
+                }
+            }
+        }
+        return skipAnyFolders(next);
     }
 }
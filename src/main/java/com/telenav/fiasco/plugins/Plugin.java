@@ -5,6 +5,8 @@ import com.telenav.fiasco.Tool;
 import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
 import com.telenav.kivakit.filesystem.Folder;
 
+import java.util.List;
+
 /**
  * @author jonathanl (shibo)
  */
@@ -20,6 +22,15 @@ public abstract class Plugin extends BaseRepeater implements Tool
         this.module = module;
     }
 
+    /**
+     * @return The files and folders this plugin produces, relative to the module's output folder. These are what the
+     * build cache stores and restores in place of running the plugin.
+     */
+    public List<String> outputs()
+    {
+        return List.of();
+    }
+
     @Override
     public final void run()
     {
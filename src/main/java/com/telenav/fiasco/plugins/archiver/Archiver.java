@@ -2,17 +2,151 @@ package com.telenav.fiasco.plugins.archiver;
 
 import com.telenav.fiasco.Module;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.Folder;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Archives the module's classes and resources in a jar in the archive output folder. The jar is named after the
+ * module's artifact, or after the module folder if it has no artifact.
+ * <p>
+ * Entries are compressed in parallel by a {@link JarWriter}, and the jar is reproducible, so the same classes and
+ * resources always produce the same jar, whenever and wherever they're built. Where a resource and a class have the
+ * same name, the class is archived. The jar from the last build is updated incrementally, so entries that haven't
+ * changed are copied from it without being compressed again.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
 public class Archiver extends Plugin
 {
+    /** The number of threads to compress entries with */
+    private Count threads = Count.count(Runtime.getRuntime().availableProcessors());
+
+    /** The timestamp of every entry */
+    private LocalDateTime timestamp = LocalDateTime.of(1980, 2, 1, 0, 0);
+
     public Archiver(final Module module)
     {
         super(module);
     }
 
+    /**
+     * @return The jar file this archiver writes
+     */
+    public File archive()
+    {
+        final var artifact = module().artifact();
+        final var name = artifact == null
+                ? module().folder().name().name()
+                : artifact.identifier().identifier() + (artifact.versionText() == null ? "" : "-" + artifact.versionText());
+        return module().outputFolder().folder("archive").file(name + ".jar");
+    }
+
+    @Override
+    public List<String> outputs()
+    {
+        return List.of("archive");
+    }
+
+    /**
+     * Sets the number of threads to compress entries with
+     */
+    public Archiver threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the timestamp of every entry in the jar, which is February 1st, 1980 unless it's set
+     */
+    public Archiver timestamp(final LocalDateTime timestamp)
+    {
+        this.timestamp = timestamp;
+        return this;
+    }
+
     @Override
     protected void onRun()
     {
+        // Gather the resources and then the classes, which take the place of any resources with the same names,
+        final var files = new TreeMap<String, JarWriter.Contents>();
+        add(files, module().resourceFolder());
+        add(files, module().classesFolder());
+        if (files.isEmpty())
+        {
+            narrate("Module '$' has nothing to archive", module());
+            return;
+        }
 
+        // and write them to the jar.
+        final var jar = Path.of(archive().path().asString());
+        try
+        {
+            deleteOthers(jar);
+            final var entries = listenTo(new JarWriter().threads(threads).timestamp(timestamp)).write(jar, files);
+            information("Archived $ entries of '$'", entries, module());
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to write '$'", jar);
+        }
+    }
+
+    /**
+     * Adds the files in the given folder to the given map, by their paths relative to the folder
+     */
+    private void add(final Map<String, JarWriter.Contents> files, final Folder folder)
+    {
+        final var root = Path.of(folder.path().asString());
+        if (Files.isDirectory(root))
+        {
+            try (final var paths = Files.walk(root))
+            {
+                for (final var file : paths.filter(Files::isRegularFile).collect(Collectors.toList()))
+                {
+                    final var name = root.relativize(file).toString().replace(java.io.File.separatorChar, '/');
+                    if (files.put(name, JarWriter.Contents.file(file)) != null)
+                    {
+                        warning("Archiving the compiled '$' in place of the resource with the same name", name);
+                    }
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Deletes any files other than the given jar in its folder, such as jars with an earlier version in their names
+     */
+    private void deleteOthers(final Path jar) throws IOException
+    {
+        if (Files.isDirectory(jar.getParent()))
+        {
+            try (final var files = Files.list(jar.getParent()))
+            {
+                for (final var file : files.collect(Collectors.toList()))
+                {
+                    if (!file.equals(jar))
+                    {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
     }
 }
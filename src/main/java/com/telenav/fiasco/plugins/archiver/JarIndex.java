@@ -0,0 +1,286 @@
+package com.telenav.fiasco.plugins.archiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The central directory of an existing jar, which gives the compressed bytes of its entries without decompressing
+ * them. A {@link JarWriter} uses this to copy entries that haven't changed from the previous jar, rather than
+ * compressing them again.
+ * <p>
+ * The index holds the jar open until it's closed. Reading entries is safe from any number of threads.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class JarIndex implements AutoCloseable
+{
+    /**
+     * Reads the central directory of the given jar
+     *
+     * @throws IOException If the jar can't be read or isn't a zip file
+     */
+    public static JarIndex read(final Path jar) throws IOException
+    {
+        final var channel = FileChannel.open(jar, StandardOpenOption.READ);
+        try
+        {
+            return new JarIndex(channel);
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An entry in the central directory
+     */
+    public static class Entry
+    {
+        /** The compression method */
+        final int method;
+
+        /** The CRC-32 of the uncompressed bytes */
+        final long crc;
+
+        /** The size of the compressed bytes */
+        final long compressedSize;
+
+        /** The size of the uncompressed bytes */
+        final long size;
+
+        /** The offset of the entry's local header */
+        final long offset;
+
+        Entry(final int method, final long crc, final long compressedSize, final long size, final long offset)
+        {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /** The largest end record, with the longest possible comment */
+    private static final int MAXIMUM_END = 22 + 0xFFFF;
+
+    private static final long ZIP64 = 0xFFFF_FFFFL;
+
+    private final FileChannel channel;
+
+    /** The entries by name, in the order they're in the central directory */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private JarIndex(final FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+
+        // Find the end record, searching back from the end of the file past any comment,
+        final var size = channel.size();
+        final var tail = read(Math.max(0, size - MAXIMUM_END), (int) Math.min(size, MAXIMUM_END));
+        var end = -1;
+        for (var at = tail.limit() - 22; at >= 0; at--)
+        {
+            if (tail.getInt(at) == 0x06054b50)
+            {
+                end = at;
+                break;
+            }
+        }
+        if (end < 0)
+        {
+            throw new IOException("Not a zip file");
+        }
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & ZIP64;
+        long directoryOffset = tail.getInt(end + 16) & ZIP64;
+
+        // then, if there's a Zip64 end record, take the counts and offsets from it,
+        final var endOffset = size - tail.limit() + end;
+        if (endOffset >= 20)
+        {
+            final var locator = read(endOffset - 20, 20);
+            if (locator.getInt(0) == 0x07064b50)
+            {
+                final var zip64 = read(locator.getLong(8), 56);
+                if (zip64.getInt(0) != 0x06064b50)
+                {
+                    throw new IOException("Invalid Zip64 end record");
+                }
+                count = zip64.getLong(32);
+                directorySize = zip64.getLong(40);
+                directoryOffset = zip64.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE)
+        {
+            throw new IOException("Central directory is too large");
+        }
+
+        // and read the entries in the central directory.
+        final var directory = read(directoryOffset, (int) directorySize);
+        var at = 0;
+        for (var index = 0L; index < count; index++)
+        {
+            if (directory.getInt(at) != 0x02014b50)
+            {
+                throw new IOException("Invalid central directory");
+            }
+            final var method = directory.getShort(at + 10) & 0xFFFF;
+            final var crc = directory.getInt(at + 16) & ZIP64;
+            var compressedSize = directory.getInt(at + 20) & ZIP64;
+            var entrySize = directory.getInt(at + 24) & ZIP64;
+            final var nameLength = directory.getShort(at + 28) & 0xFFFF;
+            final var extraLength = directory.getShort(at + 30) & 0xFFFF;
+            final var commentLength = directory.getShort(at + 32) & 0xFFFF;
+            var offset = directory.getInt(at + 42) & ZIP64;
+            final var name = new byte[nameLength];
+            directory.duplicate().position(at + 46).get(name);
+
+            // Take any sizes and offset that didn't fit from the Zip64 extra field.
+            for (var extra = at + 46 + nameLength; extra + 4 <= at + 46 + nameLength + extraLength; )
+            {
+                final var id = directory.getShort(extra) & 0xFFFF;
+                final var length = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001)
+                {
+                    var field = extra + 4;
+                    if (entrySize == ZIP64)
+                    {
+                        entrySize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64)
+                    {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == ZIP64)
+                    {
+                        offset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+
+            entries.put(new String(name, StandardCharsets.UTF_8), new Entry(method, crc, compressedSize, entrySize, offset));
+            at += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * @return The uncompressed bytes of the given entry
+     */
+    public byte[] bytes(final Entry entry) throws IOException
+    {
+        final var raw = raw(entry);
+        switch (entry.method)
+        {
+            case 0:
+                return raw;
+
+            case 8:
+                if (entry.size > Integer.MAX_VALUE)
+                {
+                    throw new IOException("Entry is too large");
+                }
+                final var inflater = new Inflater(true);
+                try
+                {
+                    inflater.setInput(raw);
+                    final var bytes = new byte[(int) entry.size];
+                    var length = 0;
+                    while (length < bytes.length && !inflater.finished())
+                    {
+                        final var inflated = inflater.inflate(bytes, length, bytes.length - length);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        {
+                            throw new IOException("Truncated entry");
+                        }
+                        length += inflated;
+                    }
+                    return bytes;
+                }
+                catch (final DataFormatException e)
+                {
+                    throw new IOException("Invalid compressed data", e);
+                }
+                finally
+                {
+                    inflater.end();
+                }
+
+            default:
+                throw new IOException("Unsupported compression method " + entry.method);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * @return The entry with the given name, or null if there is none
+     */
+    public Entry entry(final String name)
+    {
+        return entries.get(name);
+    }
+
+    /**
+     * @return The names of the entries, in the order they're in the jar
+     */
+    public Set<String> names()
+    {
+        return entries.keySet();
+    }
+
+    /**
+     * @return The compressed bytes of the given entry, exactly as they are in the jar
+     */
+    public byte[] raw(final Entry entry) throws IOException
+    {
+        if (entry.compressedSize > Integer.MAX_VALUE)
+        {
+            throw new IOException("Entry is too large");
+        }
+        final var header = read(entry.offset, 30);
+        if (header.getInt(0) != 0x04034b50)
+        {
+            throw new IOException("Invalid local header");
+        }
+        final var start = entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        return read(start, (int) entry.compressedSize).array();
+    }
+
+    /**
+     * @return The given number of bytes at the given position in the jar, in little-endian order
+     */
+    private ByteBuffer read(final long position, final int length) throws IOException
+    {
+        final var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.flip();
+    }
+}
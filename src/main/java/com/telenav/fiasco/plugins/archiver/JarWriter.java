@@ -0,0 +1,567 @@
+package com.telenav.fiasco.plugins.archiver;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes jar files, compressing entries in parallel and writing them out in order as they become ready. Only a window
+ * of entries is in memory at any time, so large jars are streamed rather than built up in memory.
+ * <p>
+ * Jars are reproducible: the same files always produce the same bytes. Entries are in a fixed order, with
+ * META-INF/MANIFEST.MF first, as {@link java.util.jar.JarInputStream} expects, and then the rest sorted by name, with
+ * an entry for each folder. Every entry has the same timestamp, and there are no extra fields or attributes that
+ * depend on the file system. If an entry doesn't get smaller when it's compressed, it is stored instead.
+ * </p>
+ * <p>
+ * If the jar already exists, it's updated incrementally. Each entry whose contents are the same as in the existing jar
+ * is copied from it as it is, and only new and changed entries are compressed, so writing a jar after a small change
+ * costs little more than copying it. The contents are compared by size and CRC-32, which is much cheaper to compute
+ * than compressing.
+ * </p>
+ * <p>
+ * Jars with more than 65,535 entries or more than 4 GB of data are written in the Zip64 format. Each entry must be
+ * smaller than 2 GB.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class JarWriter extends BaseRepeater
+{
+    /** The name of the manifest entry */
+    public static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    /** The manifest written when none is given */
+    private static final byte[] DEFAULT_MANIFEST = "Manifest-Version: 1.0\r\nCreated-By: Fiasco\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Sizes and offsets that don't fit in the original format */
+    private static final long ZIP64 = 0xFFFF_FFFFL;
+
+    /** Entry counts that don't fit in the original format */
+    private static final int ZIP64_ENTRIES = 0xFFFF;
+
+    /** UTF-8 names */
+    private static final int FLAGS = 0x0800;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    /** The version needed to extract entries without and with Zip64 fields */
+    private static final int VERSION = 20;
+
+    private static final int VERSION_ZIP64 = 45;
+
+    /** A compressed entry, ready to be written */
+    private static class Entry
+    {
+        final byte[] name;
+
+        int method;
+
+        long crc;
+
+        long size;
+
+        byte[] data;
+
+        long compressedSize;
+
+        long offset;
+
+        Entry(final String name)
+        {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /** An output stream that writes little-endian values and knows its position */
+    private static class ZipOutput implements AutoCloseable
+    {
+        private final OutputStream out;
+
+        private long position;
+
+        ZipOutput(final OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        long position()
+        {
+            return position;
+        }
+
+        void write(final byte[] bytes) throws IOException
+        {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        void writeInt(final long value) throws IOException
+        {
+            writeShort((int) (value & 0xFFFF));
+            writeShort((int) ((value >>> 16) & 0xFFFF));
+        }
+
+        void writeLong(final long value) throws IOException
+        {
+            writeInt(value & ZIP64);
+            writeInt(value >>> 32);
+        }
+
+        void writeShort(final int value) throws IOException
+        {
+            out.write(value & 0xFF);
+            out.write((value >>> 8) & 0xFF);
+            position += 2;
+        }
+    }
+
+    /**
+     * The contents of an entry in a jar. Contents are read, transformed and compressed on the writer's threads, just
+     * before they are written.
+     */
+    public abstract static class Contents
+    {
+        /**
+         * @return Contents that are the given bytes
+         */
+        public static Contents bytes(final byte[] bytes)
+        {
+            return bytes(() -> bytes);
+        }
+
+        /**
+         * @return Contents that are the bytes produced by the given source
+         */
+        public static Contents bytes(final Source source)
+        {
+            return new Contents()
+            {
+                @Override
+                Entry entry(final JarWriter writer, final String name, final JarIndex previous, final AtomicInteger copied)
+                        throws IOException
+                {
+                    return writer.compress(name, source.bytes(), previous, copied);
+                }
+            };
+        }
+
+        /**
+         * @return Contents that are the bytes of the given file
+         */
+        public static Contents file(final Path file)
+        {
+            return bytes(() -> Files.readAllBytes(file));
+        }
+
+        /**
+         * @return The contents of an entry in another jar, which are copied as they are, without being decompressed
+         */
+        public static Contents raw(final JarIndex jar, final JarIndex.Entry from)
+        {
+            return new Contents()
+            {
+                @Override
+                Entry entry(final JarWriter writer, final String name, final JarIndex previous, final AtomicInteger copied)
+                        throws IOException
+                {
+                    return writer.raw(name, jar, from);
+                }
+            };
+        }
+
+        /**
+         * @return The contents of an entry in another jar, transformed by the given function. If the function returns
+         * the very array it was given, the entry is copied as it is, without being compressed again.
+         */
+        public static Contents transformed(final JarIndex jar, final JarIndex.Entry from, final Transform transform)
+        {
+            return new Contents()
+            {
+                @Override
+                Entry entry(final JarWriter writer, final String name, final JarIndex previous, final AtomicInteger copied)
+                        throws IOException
+                {
+                    final var bytes = jar.bytes(from);
+                    final var transformed = transform.transform(bytes);
+                    return transformed == bytes
+                            ? writer.raw(name, jar, from)
+                            : writer.compress(name, transformed, previous, copied);
+                }
+            };
+        }
+
+        /**
+         * @return The entry with the given name and these contents, ready to be written
+         */
+        abstract Entry entry(JarWriter writer, String name, JarIndex previous, AtomicInteger copied) throws IOException;
+    }
+
+    /**
+     * Produces the bytes of an entry
+     */
+    public interface Source
+    {
+        byte[] bytes() throws IOException;
+    }
+
+    /**
+     * Transforms the bytes of an entry
+     */
+    public interface Transform
+    {
+        /**
+         * @return The transformed bytes, or the given array if nothing needs to change
+         */
+        byte[] transform(byte[] bytes) throws IOException;
+    }
+
+    /** The contents of a folder entry */
+    private static final Contents FOLDER = Contents.bytes(new byte[0]);
+
+    /** A deflater for each compressing thread */
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /** The number of threads to compress with */
+    private Count threads = Count.count(Runtime.getRuntime().availableProcessors());
+
+    /** The DOS time and date of every entry */
+    private int time;
+
+    private int date;
+
+    public JarWriter()
+    {
+        timestamp(LocalDateTime.of(1980, 2, 1, 0, 0));
+    }
+
+    /**
+     * Sets the number of threads to compress entries with
+     */
+    public JarWriter threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Sets the timestamp of every entry, which is February 1st, 1980 unless it's set. The zip format stores local
+     * times to the nearest two seconds, from 1980 on.
+     */
+    public JarWriter timestamp(final LocalDateTime timestamp)
+    {
+        time = (timestamp.getHour() << 11) | (timestamp.getMinute() << 5) | (timestamp.getSecond() / 2);
+        date = ((timestamp.getYear() - 1980) << 9) | (timestamp.getMonthValue() << 5) | timestamp.getDayOfMonth();
+        return this;
+    }
+
+    /**
+     * Writes a jar holding the given entries. If there is no manifest among them, a minimal one is added. If the jar
+     * exists, unchanged entries are copied from it. The jar is written to a temporary file and moved into place, so
+     * it's never seen half written.
+     *
+     * @param jar The jar file to write
+     * @param entries The contents of the entries, by name, such as com/telenav/Example.class
+     * @return The number of entries written
+     */
+    public int write(final Path jar, final Map<String, Contents> entries) throws IOException
+    {
+        // Put the manifest first and everything else in order, with an entry for each folder,
+        final var names = new TreeMap<String, Contents>();
+        for (final var entry : entries.entrySet())
+        {
+            names.put(entry.getKey(), entry.getValue());
+            for (var slash = entry.getKey().indexOf('/'); slash >= 0; slash = entry.getKey().indexOf('/', slash + 1))
+            {
+                names.putIfAbsent(entry.getKey().substring(0, slash + 1), FOLDER);
+            }
+        }
+        final var manifest = names.remove(MANIFEST);
+        names.remove("META-INF/");
+        final var order = new LinkedHashMap<String, Contents>();
+        order.put("META-INF/", FOLDER);
+        order.put(MANIFEST, manifest == null ? Contents.bytes(DEFAULT_MANIFEST) : manifest);
+        order.putAll(names);
+
+        // then compress entries in parallel, or copy them from the previous jar,
+        Files.createDirectories(jar.toAbsolutePath().getParent());
+        final var temporary = jar.resolveSibling(jar.getFileName() + ".tmp");
+        final var previous = previous(jar);
+        final var copied = new AtomicInteger();
+        final var executor = Threads.threadPool("Jar", threads);
+        try (final var out = new ZipOutput(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)))
+        {
+            // and write them out in order as they are ready.
+            final var written = new ArrayList<Entry>(order.size());
+            final var window = new ArrayDeque<Future<Entry>>();
+            final var windowSize = threads.asInt() * 8;
+            for (final var entry : order.entrySet())
+            {
+                window.add(executor.submit(() -> entry.getValue().entry(this, entry.getKey(), previous, copied)));
+                if (window.size() >= windowSize)
+                {
+                    written.add(writeLocal(out, window.remove()));
+                }
+            }
+            while (!window.isEmpty())
+            {
+                written.add(writeLocal(out, window.remove()));
+            }
+            writeCentral(out, written);
+        }
+        catch (final IOException e)
+        {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        finally
+        {
+            executor.shutdownNow();
+            if (previous != null)
+            {
+                previous.close();
+            }
+        }
+        Files.move(temporary, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (previous != null)
+        {
+            narrate("Copied $ of $ entries unchanged from the previous '$'", copied.get(), order.size(), jar.getFileName());
+        }
+        return order.size();
+    }
+
+    /**
+     * @return An entry with the given bytes, compressed if that makes it smaller, or copied from the previous jar if
+     * it's unchanged
+     */
+    private Entry compress(final String name, final byte[] bytes, final JarIndex previous, final AtomicInteger copied)
+            throws IOException
+    {
+        // Find the checksum,
+        final var entry = new Entry(name);
+        final var crc = new CRC32();
+        crc.update(bytes);
+        entry.crc = crc.getValue();
+        entry.size = bytes.length;
+
+        // and if the previous jar has the same contents, copy them,
+        if (previous != null)
+        {
+            final var old = previous.entry(name);
+            if (old != null && old.crc == entry.crc && old.size == entry.size && (old.method == STORED || old.method == DEFLATED))
+            {
+                entry.method = old.method;
+                entry.data = previous.raw(old);
+                copied.incrementAndGet();
+                return entry;
+            }
+        }
+
+        // otherwise deflate the bytes,
+        final var deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        final var compressed = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+        final var buffer = new byte[8192];
+        while (!deflater.finished())
+        {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        // and keep whichever is smaller.
+        if (compressed.size() < bytes.length)
+        {
+            entry.method = DEFLATED;
+            entry.data = compressed.toByteArray();
+        }
+        else
+        {
+            entry.method = STORED;
+            entry.data = bytes;
+        }
+        return entry;
+    }
+
+    /**
+     * @return The index of the existing jar, or null if there isn't one or it can't be read
+     */
+    private JarIndex previous(final Path jar)
+    {
+        if (Files.isRegularFile(jar))
+        {
+            try
+            {
+                return JarIndex.read(jar);
+            }
+            catch (final IOException e)
+            {
+                warning(e, "Unable to read previous '$', so it will be written from scratch", jar);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return An entry with the compressed bytes of an entry in another jar
+     */
+    private Entry raw(final String name, final JarIndex jar, final JarIndex.Entry from) throws IOException
+    {
+        if (from.method != STORED && from.method != DEFLATED)
+        {
+            return compress(name, jar.bytes(from), null, null);
+        }
+        final var entry = new Entry(name);
+        entry.method = from.method;
+        entry.crc = from.crc;
+        entry.size = from.size;
+        entry.data = jar.raw(from);
+        return entry;
+    }
+
+    /**
+     * Writes the central directory and the end records
+     */
+    private void writeCentral(final ZipOutput out, final List<Entry> entries) throws IOException
+    {
+        // Write a header for each entry,
+        final var start = out.position();
+        for (final var entry : entries)
+        {
+            final var zip64 = entry.offset >= ZIP64;
+            out.writeInt(0x02014b50);
+            out.writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            out.writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            out.writeShort(FLAGS);
+            out.writeShort(entry.method);
+            out.writeShort(time);
+            out.writeShort(date);
+            out.writeInt(entry.crc);
+            out.writeInt(entry.compressedSize);
+            out.writeInt(entry.size);
+            out.writeShort(entry.name.length);
+            out.writeShort(zip64 ? 12 : 0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeInt(0);
+            out.writeInt(zip64 ? ZIP64 : entry.offset);
+            out.write(entry.name);
+            if (zip64)
+            {
+                out.writeShort(0x0001);
+                out.writeShort(8);
+                out.writeLong(entry.offset);
+            }
+        }
+        final var end = out.position();
+        final var size = end - start;
+
+        // then, if the counts or offsets are too big for the original format, the Zip64 end records,
+        final var zip64 = entries.size() >= ZIP64_ENTRIES || start >= ZIP64 || size >= ZIP64;
+        if (zip64)
+        {
+            out.writeInt(0x06064b50);
+            out.writeLong(44);
+            out.writeShort(VERSION_ZIP64);
+            out.writeShort(VERSION_ZIP64);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(entries.size());
+            out.writeLong(entries.size());
+            out.writeLong(size);
+            out.writeLong(start);
+
+            out.writeInt(0x07064b50);
+            out.writeInt(0);
+            out.writeLong(end);
+            out.writeInt(1);
+        }
+
+        // and the end record.
+        out.writeInt(0x06054b50);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(zip64 ? ZIP64_ENTRIES : entries.size());
+        out.writeShort(zip64 ? ZIP64_ENTRIES : entries.size());
+        out.writeInt(zip64 ? ZIP64 : size);
+        out.writeInt(zip64 ? ZIP64 : start);
+        out.writeShort(0);
+    }
+
+    /**
+     * Waits for the given entry to be compressed and writes its local header and data
+     *
+     * @return The entry, without its data, for the central directory
+     */
+    private Entry writeLocal(final ZipOutput out, final Future<Entry> future) throws IOException
+    {
+        final Entry entry;
+        try
+        {
+            entry = future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing jar", e);
+        }
+        catch (final ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to compress jar entry", e.getCause());
+        }
+
+        entry.offset = out.position();
+        out.writeInt(0x04034b50);
+        out.writeShort(VERSION);
+        out.writeShort(FLAGS);
+        out.writeShort(entry.method);
+        out.writeShort(time);
+        out.writeShort(date);
+        out.writeInt(entry.crc);
+        out.writeInt(entry.data.length);
+        out.writeInt(entry.size);
+        out.writeShort(entry.name.length);
+        out.writeShort(0);
+        out.write(entry.name);
+        out.write(entry.data);
+
+        // Keep only the compressed size, so the data can be garbage collected.
+        entry.compressedSize = entry.data.length;
+        entry.data = null;
+        return entry;
+    }
+}
@@ -0,0 +1,393 @@
+package com.telenav.fiasco.plugins.builder;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.value.count.Bytes;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A content-addressed cache of build step outputs on the local disk. Each entry is a zip file of the outputs of one
+ * build step, stored under a key that is a digest of everything the step depends on. If a step has the same inputs as
+ * a step that ran before, on this branch or any other, its outputs can be restored instead of running it again.
+ * <p>
+ * Entries are stored in the cache folder as xx/key.zip, where xx is the first two characters of the key. The cache is
+ * kept below a maximum size by evicting the least recently used entries. Entries are written to a temporary file and
+ * then moved into place, so several builds can share a cache folder.
+ * </p>
+ * <p>
+ * A {@link RemoteBuildCache} can be added to share entries between machines. Entries that aren't in the local cache
+ * are downloaded from the remote cache, straight to disk, and new entries are uploaded in the background so the build
+ * doesn't wait for them. If the remote cache can't be reached, or an upload to it fails, it isn't used again until the
+ * next build.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class BuildCache extends BaseRepeater
+{
+    /** The folder where entries are stored */
+    private final Path folder;
+
+    /** The maximum total size of all entries */
+    private final Bytes maximumSize;
+
+    /** The estimated total size of all entries, or -1 if it isn't known yet */
+    private long size = -1;
+
+    /** The remote cache, if any */
+    private RemoteBuildCache remote;
+
+    /** True if the remote cache couldn't be reached, or an upload to it failed, during this build */
+    private volatile boolean remoteUnavailable;
+
+    /** Uploads to the remote cache that may not have finished */
+    private final List<CompletableFuture<?>> uploads = new ArrayList<>();
+
+    /**
+     * @param folder The folder where entries are stored
+     * @param maximumSize The maximum total size of all entries
+     */
+    public BuildCache(final Folder folder, final Bytes maximumSize)
+    {
+        this.folder = Path.of(folder.path().asString()).toAbsolutePath();
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Called at the end of a build to wait for uploads to the remote cache to finish. A remote cache that couldn't be
+     * reached during the build will be tried again in the next build.
+     */
+    public void buildFinished()
+    {
+        final List<CompletableFuture<?>> pending;
+        synchronized (uploads)
+        {
+            pending = new ArrayList<>(uploads);
+            uploads.clear();
+        }
+        if (!pending.isEmpty())
+        {
+            narrate("Waiting for $ uploads to the remote build cache", pending.size());
+            for (final var upload : pending)
+            {
+                try
+                {
+                    upload.join();
+                }
+                catch (final CompletionException ignored)
+                {
+                    // The failure was reported when the upload failed
+                }
+            }
+        }
+        remoteUnavailable = false;
+    }
+
+    public Bytes maximumSize()
+    {
+        return maximumSize;
+    }
+
+    /**
+     * Shares entries with the given remote cache
+     */
+    public BuildCache remote(final RemoteBuildCache remote)
+    {
+        this.remote = remote;
+        return this;
+    }
+
+    /**
+     * Restores the outputs stored under the given key, replacing any existing outputs
+     *
+     * @param key The digest of the inputs of the build step
+     * @param outputFolder The folder the outputs are relative to
+     * @param outputs The outputs of the build step, relative to the output folder
+     * @return True if the outputs were restored, false if there is no entry for the key
+     */
+    public boolean restore(final String key, final Folder outputFolder, final List<String> outputs)
+    {
+        final var entry = entry(key);
+        if (!Files.isRegularFile(entry) && !download(key, entry))
+        {
+            return false;
+        }
+
+        final var output = Path.of(outputFolder.path().asString()).toAbsolutePath().normalize();
+        try
+        {
+            // Remove the existing outputs,
+            for (final var path : outputs)
+            {
+                delete(output.resolve(path));
+            }
+
+            // extract the outputs from the entry,
+            try (final var in = new ZipInputStream(Files.newInputStream(entry)))
+            {
+                for (var zipEntry = in.getNextEntry(); zipEntry != null; zipEntry = in.getNextEntry())
+                {
+                    final var target = output.resolve(zipEntry.getName()).normalize();
+                    if (!target.startsWith(output))
+                    {
+                        throw new IOException("Entry '" + zipEntry.getName() + "' is outside of the output folder");
+                    }
+                    if (zipEntry.isDirectory())
+                    {
+                        Files.createDirectories(target);
+                    }
+                    else
+                    {
+                        Files.createDirectories(target.getParent());
+                        Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            }
+
+            // and mark the entry as recently used.
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        }
+        catch (final IOException e)
+        {
+            // The entry may have been evicted by another build while we were reading it
+            warning(e, "Unable to restore build cache entry '$'", key);
+            for (final var path : outputs)
+            {
+                try
+                {
+                    delete(output.resolve(path));
+                }
+                catch (final IOException ignored)
+                {
+                    // The step will run and overwrite what's left
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stores the given outputs under the given key, evicting old entries if the cache grows too large
+     *
+     * @param key The digest of the inputs of the build step
+     * @param outputFolder The folder the outputs are relative to
+     * @param outputs The outputs of the build step, relative to the output folder
+     */
+    public void store(final String key, final Folder outputFolder, final List<String> outputs)
+    {
+        final var entry = entry(key);
+        if (Files.isRegularFile(entry))
+        {
+            return;
+        }
+
+        final var output = Path.of(outputFolder.path().asString()).toAbsolutePath().normalize();
+        try
+        {
+            // Write the outputs to a temporary file,
+            Files.createDirectories(entry.getParent());
+            final var temporary = Files.createTempFile(entry.getParent(), key, ".tmp");
+            try (final var out = new ZipOutputStream(Files.newOutputStream(temporary)))
+            {
+                for (final var path : outputs)
+                {
+                    final var root = output.resolve(path);
+                    if (Files.exists(root))
+                    {
+                        try (final var files = Files.walk(root))
+                        {
+                            for (final var file : files.sorted().collect(Collectors.toList()))
+                            {
+                                final var name = output.relativize(file).toString().replace('\\', '/');
+                                if (Files.isDirectory(file))
+                                {
+                                    out.putNextEntry(new ZipEntry(name + "/"));
+                                }
+                                else
+                                {
+                                    out.putNextEntry(new ZipEntry(name));
+                                    Files.copy(file, out);
+                                }
+                                out.closeEntry();
+                            }
+                        }
+                    }
+                }
+            }
+
+            // move it into place,
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            // evict old entries if the cache is too large,
+            added(Files.size(entry));
+
+            // and share the entry.
+            upload(key, entry);
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to store build cache entry '$'", key);
+        }
+    }
+
+    /**
+     * Notes that an entry of the given size was added, evicting the least recently used entries if the cache has grown
+     * larger than its maximum size
+     */
+    private synchronized void added(final long entrySize) throws IOException
+    {
+        if (size >= 0)
+        {
+            size += entrySize;
+        }
+        if (size < 0 || size > maximumSize.asBytes())
+        {
+            // Find all entries, since other builds may have added or removed some,
+            final var entries = new ArrayList<Path>();
+            try (final var files = Files.walk(folder))
+            {
+                files.filter(file -> file.toString().endsWith(".zip")).forEach(entries::add);
+            }
+            size = 0;
+            for (final var entry : entries)
+            {
+                size += sizeOf(entry);
+            }
+
+            // then evict the least recently used entries until the cache is small enough.
+            entries.sort(Comparator.comparing(this::lastUsed));
+            for (final var entry : entries)
+            {
+                if (size <= maximumSize.asBytes())
+                {
+                    break;
+                }
+                final var entrySizeOnDisk = sizeOf(entry);
+                if (Files.deleteIfExists(entry))
+                {
+                    narrate("Evicted build cache entry '$'", entry.getFileName());
+                    size -= entrySizeOnDisk;
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the given entry from the remote cache, if there is one
+     *
+     * @return True if the entry was downloaded
+     */
+    private boolean download(final String key, final Path entry)
+    {
+        if (remote != null && !remoteUnavailable)
+        {
+            try
+            {
+                // Download the entry to a temporary file,
+                Files.createDirectories(entry.getParent());
+                final var temporary = Files.createTempFile(entry.getParent(), key, ".tmp");
+                try
+                {
+                    if (remote.download(key, temporary))
+                    {
+                        // then move it into place.
+                        Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        narrate("Downloaded build cache entry '$' from '$'", key, remote);
+                        added(Files.size(entry));
+                        return true;
+                    }
+                }
+                finally
+                {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            catch (final IOException e)
+            {
+                warning(e, "Unable to reach remote build cache '$', so it won't be used for the rest of this build", remote);
+                remoteUnavailable = true;
+            }
+        }
+        return false;
+    }
+
+    private void delete(final Path path) throws IOException
+    {
+        if (Files.exists(path))
+        {
+            try (final var files = Files.walk(path))
+            {
+                for (final var file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Path entry(final String key)
+    {
+        return folder.resolve(key.substring(0, 2)).resolve(key + ".zip");
+    }
+
+    private FileTime lastUsed(final Path entry)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(entry);
+        }
+        catch (final IOException e)
+        {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Uploads the given entry to the remote cache, if there is one, without waiting for it to finish
+     */
+    private void upload(final String key, final Path entry)
+    {
+        if (remote != null && !remoteUnavailable)
+        {
+            synchronized (uploads)
+            {
+                uploads.removeIf(CompletableFuture::isDone);
+                uploads.add(remote.upload(key, entry).whenComplete((ignored, failure) ->
+                {
+                    if (failure != null && !remoteUnavailable)
+                    {
+                        remoteUnavailable = true;
+                        warning(failure, "Unable to upload to remote build cache '$', so it won't be used for the rest of this build", remote);
+                    }
+                }));
+            }
+        }
+    }
+
+    private long sizeOf(final Path entry)
+    {
+        try
+        {
+            return Files.size(entry);
+        }
+        catch (final IOException e)
+        {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.telenav.fiasco.plugins.builder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP server for a {@link RemoteBuildCache}, which stores entries as files in a folder. It is meant for
+ * testing and for small teams, and it does no authentication or eviction.
+ * <p>
+ * GET /key returns the entry with the given key or 404, and PUT /key stores an entry. Keys must be hexadecimal
+ * digests. Entries are written to a temporary file and moved into place, so a reader never sees a partial entry.
+ * {@link BuildCacheServerApplication} runs a server from the command line.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class BuildCacheServer extends BaseRepeater
+{
+    /** The form of a valid key */
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{16,128}");
+
+    /** The folder where entries are stored */
+    private final Path folder;
+
+    private HttpServer server;
+
+    /**
+     * @param folder The folder where entries are stored
+     */
+    public BuildCacheServer(final Folder folder)
+    {
+        this.folder = Path.of(folder.path().asString()).toAbsolutePath();
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int port()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Starts serving requests on the given port, or on any free port if the port is zero
+     */
+    public void start(final int port)
+    {
+        try
+        {
+            Files.createDirectories(folder);
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", this::handle);
+            server.start();
+            information("Build cache server listening on port $ with entries in '$'", port(), folder);
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to start build cache server");
+        }
+    }
+
+    /**
+     * Stops serving requests
+     */
+    public void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            // Find the entry for the key in the request path,
+            final var key = exchange.getRequestURI().getPath().replaceAll("^.*/", "");
+            if (!KEY.matcher(key).matches())
+            {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            final var entry = folder.resolve(key.substring(0, 2)).resolve(key);
+
+            // then read or write it.
+            switch (exchange.getRequestMethod())
+            {
+                case "GET":
+                    if (Files.isRegularFile(entry))
+                    {
+                        exchange.sendResponseHeaders(200, Files.size(entry));
+                        try (final var out = exchange.getResponseBody())
+                        {
+                            Files.copy(entry, out);
+                        }
+                    }
+                    else
+                    {
+                        exchange.sendResponseHeaders(404, -1);
+                    }
+                    break;
+
+                case "PUT":
+                    Files.createDirectories(entry.getParent());
+                    final var temporary = Files.createTempFile(entry.getParent(), key, ".tmp");
+                    try (final var in = exchange.getRequestBody())
+                    {
+                        Files.copy(in, temporary, StandardCopyOption.REPLACE_EXISTING);
+                        Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    finally
+                    {
+                        Files.deleteIfExists(temporary);
+                    }
+                    exchange.sendResponseHeaders(201, -1);
+                    break;
+
+                default:
+                    exchange.sendResponseHeaders(405, -1);
+                    break;
+            }
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to handle $ $", exchange.getRequestMethod(), exchange.getRequestURI());
+            throw e;
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+}
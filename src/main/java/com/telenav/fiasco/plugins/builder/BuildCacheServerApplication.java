@@ -0,0 +1,45 @@
+package com.telenav.fiasco.plugins.builder;
+
+import com.telenav.kivakit.application.Application;
+import com.telenav.kivakit.commandline.SwitchParser;
+import com.telenav.kivakit.commandline.SwitchParsers;
+import com.telenav.kivakit.core.collections.set.ObjectSet;
+import com.telenav.kivakit.filesystem.Folder;
+
+/**
+ * Runs a {@link BuildCacheServer} that stores entries in the folder given by -folder and listens on the port given by
+ * -port, until the process is stopped.
+ *
+ * @author jonathanl (shibo)
+ */
+public class BuildCacheServerApplication extends Application
+{
+    public static void main(final String[] arguments)
+    {
+        new BuildCacheServerApplication().run(arguments);
+    }
+
+    /** The folder where entries are stored */
+    final SwitchParser<Folder> FOLDER = Folder.folderSwitchParser(this, "folder", "The folder to store build cache entries in")
+            .required()
+            .build();
+
+    /** The port to listen on */
+    final SwitchParser<Integer> PORT = SwitchParsers.integerSwitchParser(this, "port", "The port to listen on, or 0 for any free port")
+            .optional()
+            .defaultValue(8080)
+            .build();
+
+    @Override
+    protected void onRun()
+    {
+        // The server's threads keep the process running once it has started.
+        listenTo(new BuildCacheServer(commandLine().get(FOLDER))).start(commandLine().get(PORT));
+    }
+
+    @Override
+    protected ObjectSet<SwitchParser<?>> switchParsers()
+    {
+        return ObjectSet.objectSet(FOLDER, PORT);
+    }
+}
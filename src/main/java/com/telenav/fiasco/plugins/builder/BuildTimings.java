@@ -0,0 +1,102 @@
+package com.telenav.fiasco.plugins.builder;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.filesystem.File;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Historical durations of named build steps, persisted in a properties file between builds. Each recorded duration is
+ * averaged with the previous one, so a single slow or fast run doesn't swing the estimate too far.
+ *
+ * @author jonathanl (shibo)
+ */
+public class BuildTimings extends BaseRepeater
+{
+    /** The estimate for a step that has never been timed */
+    private static final Duration DEFAULT_ESTIMATE = Duration.ONE_SECOND;
+
+    /**
+     * @return The timings stored in the given file, or an empty set of timings if the file doesn't exist, with the
+     * given listener attached before the file is read
+     */
+    public static BuildTimings load(final File file, final Listener listener)
+    {
+        final var timings = new BuildTimings(file);
+        timings.addListener(listener);
+        if (file.exists())
+        {
+            try (final var in = file.reader().textReader())
+            {
+                final var properties = new Properties();
+                properties.load(in);
+                for (final var name : properties.stringPropertyNames())
+                {
+                    timings.milliseconds.put(name, Long.parseLong(properties.getProperty(name)));
+                }
+            }
+            catch (final Exception e)
+            {
+                timings.warning(e, "Ignoring unreadable build timings in '$'", file);
+            }
+        }
+        return timings;
+    }
+
+    /** The file where timings are stored */
+    private final File file;
+
+    /** The smoothed duration of each step in milliseconds */
+    private final Map<String, Long> milliseconds = new ConcurrentHashMap<>();
+
+    private BuildTimings(final File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @return The estimated duration of the named step, which is the average of known steps if the named step has never
+     * been timed
+     */
+    public Duration estimate(final String name)
+    {
+        final var known = milliseconds.get(name);
+        if (known != null)
+        {
+            return Duration.milliseconds(known);
+        }
+        return milliseconds.isEmpty()
+                ? DEFAULT_ESTIMATE
+                : Duration.milliseconds(milliseconds.values().stream().mapToLong(Long::longValue).average().orElse(0));
+    }
+
+    /**
+     * Records the time it took to execute the named step
+     */
+    public void record(final String name, final Duration duration)
+    {
+        milliseconds.merge(name, duration.milliseconds(), (previous, latest) -> (previous + latest) / 2);
+    }
+
+    /**
+     * Saves these timings to the file they were loaded from
+     */
+    public void save()
+    {
+        final var properties = new Properties();
+        milliseconds.forEach((name, value) -> properties.setProperty(name, Long.toString(value)));
+        file.parent().mkdirs();
+        try (final var out = file.printWriter())
+        {
+            properties.store(out, "Build timings in milliseconds");
+        }
+        catch (final Exception e)
+        {
+            warning(e, "Unable to save build timings to '$'", file);
+        }
+    }
+}
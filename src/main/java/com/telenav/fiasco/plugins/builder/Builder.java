@@ -1,12 +1,25 @@
 package com.telenav.fiasco.plugins.builder;
 
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.plugins.Digest;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.kivakit.core.messaging.listeners.MessageList;
+import com.telenav.kivakit.core.messaging.messages.status.Problem;
+import com.telenav.kivakit.filesystem.FileList;
+import com.telenav.kivakit.filesystem.Folder;
 
 import java.util.*;
 
 /**
  * A build performs a set of actions on a collection of projects and other builds to produce a set of artifacts.
+ * <p>
+ * The compile, test and archive steps go through the project's {@link BuildCache}. Each step has a key that is a
+ * digest of its inputs: the module's sources and resources, the compiler settings, the coordinates of the libraries
+ * it uses and the ABI digests of the modules it requires. Since tests run the code of the modules they require, and
+ * not just their ABIs, the key of the test step also covers the contents of those modules' classes and resources. If
+ * the cache has outputs for the key, they are restored instead of running the step, and otherwise the step runs and
+ * its outputs are stored if it succeeds.
+ * </p>
  *
  * @author jonathanl (shibo)
  */
@@ -14,6 +27,9 @@ public class Builder extends Plugin
 {
     private final List<BuildListener> listeners = new ArrayList<>();
 
+    /** The key of the compile step in this build, which the other steps build on */
+    private String compileKey;
+
     public Builder(final Module module)
     {
         super(module);
@@ -22,14 +38,15 @@ public class Builder extends Plugin
     public void archive()
     {
         listeners.forEach(BuildListener::onArchiving);
-        module().archiver().run();
+        run(module().archiver(), archiveKey(), false);
         listeners.forEach(BuildListener::onArchived);
     }
 
     public void compile()
     {
         listeners.forEach(BuildListener::onCompiling);
-        module().compiler().run();
+        compileKey = compileKey();
+        run(module().compiler(), compileKey, false);
         listeners.forEach(BuildListener::onCompiled);
     }
 
@@ -87,7 +104,7 @@ public class Builder extends Plugin
     public void test()
     {
         listeners.forEach(BuildListener::onTesting);
-        module().tester().run();
+        run(module().tester(), testKey(), module().project().allTests());
         listeners.forEach(BuildListener::onTested);
     }
 
@@ -99,4 +116,149 @@ public class Builder extends Plugin
         install();
         deploy();
     }
+
+    @Override
+    protected void onRunning()
+    {
+        compileKey = null;
+    }
+
+    /**
+     * @return The key of the archive step, which depends on the compiled classes and the resources
+     */
+    private String archiveKey()
+    {
+        final var key = new StringBuilder("archive\n").append(compileKey()).append('\n');
+        inputs(key, "resource", module().resourceFolder());
+        return Digest.sha256(key.toString());
+    }
+
+    /**
+     * @return The key of the compile step, which depends on the module's sources, the compiler settings, the libraries
+     * it uses and the ABIs of the modules it requires
+     */
+    private String compileKey()
+    {
+        if (compileKey != null)
+        {
+            return compileKey;
+        }
+        final var compiler = module().compiler();
+        final var key = new StringBuilder("compile\n");
+        key.append("module ").append(module().path()).append('\n');
+        inputs(key, "source", module().sourceFolder(), compiler.sources());
+        key.append("source-version ").append(compiler.sourceVersion()).append('\n');
+        key.append("target-version ").append(compiler.targetVersion()).append('\n');
+        for (final var library : module().librarian().libraries())
+        {
+            key.append("library ").append(library.artifact()).append('\n');
+        }
+        for (final var upstream : module().graph().depthFirst())
+        {
+            if (upstream != module())
+            {
+                key.append("upstream ").append(upstream.path()).append(' ').append(upstream.compiler().abi()).append('\n');
+            }
+        }
+        return Digest.sha256(key.toString());
+    }
+
+    /**
+     * Adds the paths and digests of all files in the given folder to the given key
+     */
+    private void inputs(final StringBuilder key, final String kind, final Folder folder)
+    {
+        if (folder.exists())
+        {
+            inputs(key, kind, folder, folder.nestedFiles());
+        }
+    }
+
+    /**
+     * Adds the paths and digests of the given files, relative to the given folder, to the given key
+     */
+    private void inputs(final StringBuilder key, final String kind, final Folder folder, final FileList files)
+    {
+        final var digests = module().project().snapshot().digests(folder, files);
+        digests.forEach((path, digest) -> key.append(kind).append(' ').append(path).append(' ').append(digest).append('\n'));
+    }
+
+    /**
+     * Restores the outputs of the given plugin from the build cache if it has run before with the same inputs.
+     * Otherwise, runs the plugin and stores its outputs if it succeeds. The key of the outputs in the output folder is
+     * recorded, so that when the outputs are already current, nothing needs to be done at all.
+     *
+     * @param force True to run the plugin even if its outputs are current or in the cache
+     */
+    private void run(final Plugin plugin, final String key, final boolean force)
+    {
+        final var cache = module().project().buildCache();
+        final var outputFolder = module().outputFolder();
+        final var name = plugin.getClass().getSimpleName();
+        final var keyFile = outputFolder.file(name.toLowerCase() + ".key");
+
+        // If the outputs are already current,
+        if (!force && keyFile.exists() && key.equals(keyFile.reader().asString().trim()))
+        {
+            // there's nothing to do.
+            narrate("$ outputs of '$' are up to date", name, module());
+            return;
+        }
+        keyFile.delete();
+
+        // If the outputs can be restored from the cache, the plugin doesn't need to run,
+        if (!force && cache.restore(key, outputFolder, plugin.outputs()))
+        {
+            narrate("Restored $ outputs of '$' from the build cache", name, module());
+        }
+        else
+        {
+            // otherwise, run the plugin, noting any problems,
+            final var issues = new MessageList(message -> !message.status().succeeded());
+            plugin.addListener(issues);
+            try
+            {
+                plugin.run();
+            }
+            finally
+            {
+                plugin.removeListener(issues);
+            }
+
+            // and if there weren't any, store its outputs.
+            if (!issues.count(Problem.class).isZero())
+            {
+                return;
+            }
+            cache.store(key, outputFolder.mkdirs(), plugin.outputs());
+        }
+
+        // Record the key of the current outputs.
+        try (final var out = keyFile.printWriter())
+        {
+            out.println(key);
+        }
+    }
+
+    /**
+     * @return The key of the test step, which depends on the compiled classes, the resources, the test sources and
+     * resources, and the classes and resources of the modules it requires, which change the behavior of the tests even
+     * when their ABIs don't change
+     */
+    private String testKey()
+    {
+        final var key = new StringBuilder("test\n").append(compileKey()).append('\n');
+        inputs(key, "resource", module().resourceFolder());
+        inputs(key, "test-source", module().testSourceFolder());
+        inputs(key, "test-resource", module().testResourceFolder());
+        for (final var upstream : module().graph().depthFirst())
+        {
+            if (upstream != module())
+            {
+                inputs(key, "upstream-class " + upstream.path(), upstream.classesFolder());
+                inputs(key, "upstream-resource " + upstream.path(), upstream.resourceFolder());
+            }
+        }
+        return Digest.sha256(key.toString());
+    }
 }
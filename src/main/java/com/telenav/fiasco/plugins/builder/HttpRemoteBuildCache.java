@@ -0,0 +1,108 @@
+package com.telenav.fiasco.plugins.builder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link RemoteBuildCache} on an HTTP server. An entry is read with GET and written with PUT at the URI formed by
+ * appending its key to the base URI. A server answers 404 for entries it doesn't have. {@link BuildCacheServer} is a
+ * minimal server that speaks this protocol.
+ * <p>
+ * Each request must be answered within a timeout, thirty seconds by default, so a server that stops responding can't
+ * stall a build. The build cache then stops using the server for the rest of the build.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class HttpRemoteBuildCache implements RemoteBuildCache
+{
+    /** The base URI of the cache, ending in a slash */
+    private final URI uri;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    /** How long to wait for the server to answer a request */
+    private volatile Duration timeout = Duration.ofSeconds(30);
+
+    /**
+     * @param uri The base URI of the cache
+     */
+    public HttpRemoteBuildCache(final URI uri)
+    {
+        this.uri = uri.toString().endsWith("/") ? uri : URI.create(uri + "/");
+    }
+
+    @Override
+    public boolean download(final String key, final Path file) throws IOException
+    {
+        final var request = HttpRequest.newBuilder(uri.resolve(key)).timeout(timeout).GET().build();
+        try
+        {
+            final var response = client.send(request, HttpResponse.BodyHandlers.ofFile(file));
+            if (response.statusCode() == 200)
+            {
+                return true;
+            }
+            Files.deleteIfExists(file);
+            if (response.statusCode() == 404)
+            {
+                return false;
+            }
+            throw new IOException("GET " + request.uri() + " failed with status " + response.statusCode());
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + request.uri(), e);
+        }
+    }
+
+    /**
+     * Sets how long to wait for the server to answer a request
+     */
+    public HttpRemoteBuildCache timeout(final Duration timeout)
+    {
+        this.timeout = timeout;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return uri.toString();
+    }
+
+    @Override
+    public CompletableFuture<?> upload(final String key, final Path file)
+    {
+        try
+        {
+            final var request = HttpRequest.newBuilder(uri.resolve(key))
+                    .timeout(timeout)
+                    .PUT(HttpRequest.BodyPublishers.ofFile(file))
+                    .build();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(response ->
+            {
+                if (response.statusCode() / 100 != 2)
+                {
+                    throw new IllegalStateException("PUT " + request.uri() + " failed with status " + response.statusCode());
+                }
+                return response;
+            });
+        }
+        catch (final IOException e)
+        {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
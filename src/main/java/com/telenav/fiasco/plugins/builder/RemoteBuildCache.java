@@ -0,0 +1,30 @@
+package com.telenav.fiasco.plugins.builder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A build cache shared between machines, which a {@link BuildCache} consults when it doesn't have an entry itself and
+ * which it sends the entries it stores to. Entries are opaque blobs identified by their keys.
+ *
+ * @author jonathanl (shibo)
+ * @see HttpRemoteBuildCache
+ */
+public interface RemoteBuildCache
+{
+    /**
+     * Downloads the entry with the given key, streaming it to the given file
+     *
+     * @return True if the entry was downloaded, false if the remote cache doesn't have it
+     * @throws IOException If the remote cache couldn't be reached
+     */
+    boolean download(String key, Path file) throws IOException;
+
+    /**
+     * Starts uploading the given file as the entry with the given key
+     *
+     * @return A future that completes when the upload has finished
+     */
+    CompletableFuture<?> upload(String key, Path file);
+}
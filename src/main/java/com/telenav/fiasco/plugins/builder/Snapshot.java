@@ -0,0 +1,293 @@
+package com.telenav.fiasco.plugins.builder;
+
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.FileList;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The size, last modified time and digest of each file the build has looked at, persisted in the project's output
+ * folder between builds, so that the digests of files that haven't changed don't need to be computed again.
+ * <p>
+ * A file is only hashed when its size or last modified time differ from those in the snapshot, and files are hashed in
+ * parallel. A file modified within a couple of seconds of being hashed could change again without its time changing,
+ * so it's hashed again the next time it's looked at. The compiler uses the snapshot to tell whether a touched source
+ * file really changed, the builder to compute the keys of its steps' inputs, the tester to tell which classes and
+ * resources changed since each test passed, and the copier to tell whether a copy has the contents of its source.
+ * </p>
+ * <p>
+ * The snapshot is a file of tab-separated lines, each with the path, size, last modified time and digest of a file.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class Snapshot extends BaseRepeater
+{
+    /** How recently a file can have been modified and still have its time trusted, in milliseconds */
+    private static final long RACY = 2_000;
+
+    /** Files modified at a time that can't be trusted, which are always hashed */
+    private static final long UNTRUSTED = -1;
+
+    /**
+     * @return The snapshot stored in the given file, or an empty snapshot if there is none, with the given listener
+     * attached before the file is read
+     */
+    public static Snapshot load(final File file, final Listener listener)
+    {
+        final var snapshot = new Snapshot(file);
+        snapshot.addListener(listener);
+        if (file.exists())
+        {
+            try
+            {
+                for (final var line : file.reader().lines())
+                {
+                    final var columns = line.split("\t");
+                    snapshot.entries.put(columns[0], new Entry(Long.parseLong(columns[1]), Long.parseLong(columns[2]), columns[3]));
+                }
+            }
+            catch (final Exception e)
+            {
+                snapshot.warning(e, "Ignoring unreadable snapshot '$'", file);
+                snapshot.entries.clear();
+            }
+        }
+        return snapshot;
+    }
+
+    /** What is known about a file */
+    private static class Entry
+    {
+        final long size;
+
+        final long modified;
+
+        final String digest;
+
+        Entry(final long size, final long modified, final String digest)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    /** The file the snapshot is stored in */
+    private final File file;
+
+    /** The current entries by absolute path */
+    private final NavigableMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    /** The number of threads to hash files with */
+    private Count threads = Count.count(Runtime.getRuntime().availableProcessors());
+
+    private Snapshot(final File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Saves the snapshot at the end of a build
+     */
+    public void buildFinished()
+    {
+        save();
+    }
+
+    /**
+     * @return The digest of the given file, which is only computed if the file has changed
+     */
+    public String digest(final Path file)
+    {
+        return update(key(file), file);
+    }
+
+    /**
+     * Brings the snapshot of the given files up to date, hashing any that have changed in parallel. Other files in the
+     * folder are left alone, since callers may ask for different subsets of the same folder.
+     *
+     * @return The digests of the given files in the given folder, by their paths relative to the folder
+     */
+    public Map<String, String> digests(final Folder folder, final FileList files)
+    {
+        final var root = root(folder);
+        final var paths = new TreeMap<String, Path>();
+        for (final var file : files)
+        {
+            final var path = Path.of(file.path().asString()).toAbsolutePath().normalize();
+            paths.put(key(path).substring(root.length()), path);
+        }
+
+        // Find the digests of files whose sizes and times are unchanged,
+        final var digests = new TreeMap<String, String>();
+        final var stale = new ArrayList<String>();
+        paths.forEach((relative, path) ->
+        {
+            final var current = current(root + relative, path);
+            if (current != null)
+            {
+                digests.put(relative, current);
+            }
+            else
+            {
+                stale.add(relative);
+            }
+        });
+
+        // and hash the rest in parallel.
+        if (stale.size() == 1)
+        {
+            digests.put(stale.get(0), update(root + stale.get(0), paths.get(stale.get(0))));
+        }
+        else if (!stale.isEmpty())
+        {
+            final var executor = Threads.threadPool("Snapshot", Count.count(Math.min(threads.asInt(), stale.size())));
+            try
+            {
+                final var hashed = new ArrayList<Future<String>>();
+                for (final var relative : stale)
+                {
+                    hashed.add(executor.submit(() -> update(root + relative, paths.get(relative))));
+                }
+                for (var index = 0; index < stale.size(); index++)
+                {
+                    digests.put(stale.get(index), hashed.get(index).get());
+                }
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while hashing files in " + folder, e);
+            }
+            catch (final ExecutionException e)
+            {
+                throw new IllegalStateException("Unable to hash files in " + folder, e.getCause());
+            }
+            finally
+            {
+                executor.shutdownNow();
+            }
+        }
+
+        return digests;
+    }
+
+    /**
+     * Saves the snapshot to the file it was loaded from, forgetting files that no longer exist
+     */
+    public void save()
+    {
+        entries.keySet().removeIf(path -> !Files.exists(Path.of(path)));
+        file.parent().mkdirs();
+        try (final var out = file.printWriter())
+        {
+            entries.forEach((path, entry) -> out.println(path + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.digest));
+        }
+        catch (final Exception e)
+        {
+            warning(e, "Unable to save snapshot to '$'", file);
+        }
+    }
+
+    /**
+     * Sets the number of threads to hash files with
+     */
+    public Snapshot threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    private BasicFileAttributes attributes(final Path file)
+    {
+        try
+        {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        catch (final NoSuchFileException e)
+        {
+            return null;
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The digest of the given file if its size and time are unchanged, or null if it needs to be hashed
+     */
+    private String current(final String key, final Path file)
+    {
+        final var entry = entries.get(key);
+        if (entry == null || entry.modified == UNTRUSTED)
+        {
+            return null;
+        }
+        final var attributes = attributes(file);
+        return attributes != null && attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified
+                ? entry.digest
+                : null;
+    }
+
+    private String key(final Path file)
+    {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * @return The path that the paths of files in the given folder start with
+     */
+    private String root(final Folder folder)
+    {
+        final var root = key(Path.of(folder.path().asString()));
+        return root.endsWith(java.io.File.separator) ? root : root + java.io.File.separator;
+    }
+
+    /**
+     * Hashes the given file if it has changed, recording its size, time and digest
+     *
+     * @return The digest of the file
+     */
+    private String update(final String key, final Path file)
+    {
+        final var current = current(key, file);
+        if (current != null)
+        {
+            return current;
+        }
+
+        // Read the size and time before hashing, so that a change while hashing is noticed next time,
+        final var attributes = attributes(file);
+        if (attributes == null)
+        {
+            throw new UncheckedIOException(new NoSuchFileException(file.toString()));
+        }
+        final var digest = Digest.sha256(file);
+
+        // and don't trust the time of a file that was modified so recently that it could change again unnoticed.
+        final var modified = attributes.lastModifiedTime().toMillis();
+        final var trusted = System.currentTimeMillis() - modified > RACY;
+        entries.put(key, new Entry(attributes.size(), trusted ? modified : UNTRUSTED, digest));
+        return digest;
+    }
+}
@@ -1,6 +1,7 @@
 package com.telenav.fiasco.plugins.cleaner;
 
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.plugins.FilePattern;
 import com.telenav.fiasco.plugins.Plugin;
 import com.telenav.kivakit.filesystem.File;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
@@ -18,8 +19,8 @@ public class Cleaner extends Plugin
     @Override
     protected void onRun()
     {
-        module().outputFolder()
-                .nestedFiles(matcher)
-                .forEach(File::delete);
+        final var folder = module().outputFolder();
+        final var files = matcher instanceof FilePattern ? ((FilePattern) matcher).nestedFiles(folder) : folder.nestedFiles(matcher);
+        files.forEach(File::delete);
     }
 }
@@ -0,0 +1,397 @@
+package com.telenav.fiasco.plugins.compiler;
+
+import com.telenav.fiasco.plugins.Digest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * The parts of a Java class file that matter for incremental compilation: the classes it refers to and its application
+ * binary interface (ABI), which is everything about the class that another class can compile against.
+ * <p>
+ * References are found in the constant pool, both as class entries and as type names inside descriptors and generic
+ * signatures. This may over-approximate the true set of references, which only costs an unnecessary recompile.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class ClassFile
+{
+    private static final int ACC_PRIVATE = 0x0002;
+
+    private static final int ACC_STATIC = 0x0008;
+
+    private static final int ACC_FINAL = 0x0010;
+
+    private static final int ACC_ABSTRACT = 0x0400;
+
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    /** Class names inside descriptors and signatures */
+    private static final Pattern TYPE_NAME = Pattern.compile("L([\\w/$]+)[;<]");
+
+    /**
+     * @return The class file parsed from the given bytes
+     * @throws IOException If the bytes are not a valid class file
+     */
+    public static ClassFile parse(final byte[] bytes) throws IOException
+    {
+        return new ClassFile(bytes);
+    }
+
+    /** A Class constant, holding the index of its name */
+    private static class ClassConstant
+    {
+        final int name;
+
+        ClassConstant(final int name)
+        {
+            this.name = name;
+        }
+    }
+
+    /** A String constant, holding the index of its value */
+    private static class StringConstant
+    {
+        final int value;
+
+        StringConstant(final int value)
+        {
+            this.value = value;
+        }
+    }
+
+    /** A field or method */
+    private static class Member
+    {
+        int access;
+
+        String name;
+
+        String descriptor;
+
+        String signature;
+
+        Object constant;
+
+        final List<String> exceptions = new ArrayList<>();
+
+        @Override
+        public String toString()
+        {
+            return access + " " + name + " " + descriptor + " " + signature + " " + constant + " " + exceptions;
+        }
+    }
+
+    /** The constant pool, with entries that aren't needed left null */
+    private Object[] constants;
+
+    /** The class names referred to by Class constants */
+    private final List<String> classConstants = new ArrayList<>();
+
+    /** The internal name of this class, like java/lang/String */
+    private String name;
+
+    private String superName;
+
+    private final List<String> interfaces = new ArrayList<>();
+
+    private int access;
+
+    private String signature;
+
+    private final List<Member> fields = new ArrayList<>();
+
+    private final List<Member> methods = new ArrayList<>();
+
+    private ClassFile(final byte[] bytes) throws IOException
+    {
+        final var in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != 0xCAFEBABE)
+        {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        readConstants(in);
+
+        access = in.readUnsignedShort();
+        name = className(in.readUnsignedShort());
+        superName = className(in.readUnsignedShort());
+        final var interfaceCount = in.readUnsignedShort();
+        for (var i = 0; i < interfaceCount; i++)
+        {
+            interfaces.add(className(in.readUnsignedShort()));
+        }
+
+        readMembers(in, fields);
+        readMembers(in, methods);
+
+        final var attributes = in.readUnsignedShort();
+        for (var i = 0; i < attributes; i++)
+        {
+            final var attribute = utf8(in.readUnsignedShort());
+            final var length = in.readInt();
+            if ("Signature".equals(attribute))
+            {
+                signature = utf8(in.readUnsignedShort());
+            }
+            else
+            {
+                in.skipBytes(length);
+            }
+        }
+    }
+
+    /**
+     * Returns a digest of the ABI of this class. Two versions of a class with the same ABI are interchangeable for any
+     * class compiled against them. When exported is true, only the parts visible outside the class's package are
+     * included, which is what matters to other modules. Otherwise, package-private members are included as well.
+     *
+     * @param exported True to include only public and protected members
+     * @return A hexadecimal digest of the ABI
+     */
+    public String abi(final boolean exported)
+    {
+        final var abi = new StringBuilder();
+        abi.append(access & ~0x0020).append(' ').append(name).append(' ').append(superName)
+                .append(' ').append(interfaces).append(' ').append(signature).append('\n');
+        for (final var members : List.of(fields, methods))
+        {
+            final var visible = new TreeSet<String>();
+            for (final var member : members)
+            {
+                if (isVisible(member.access, exported))
+                {
+                    visible.add(member.toString());
+                }
+            }
+            visible.forEach(member -> abi.append(member).append('\n'));
+        }
+        return Digest.sha256(abi.toString());
+    }
+
+    /**
+     * Returns a digest of the values of the compile-time constants in this class. Because javac inlines constants, a
+     * change to a constant can affect classes that don't refer to this class at all.
+     */
+    public String constants()
+    {
+        final var constants = new TreeSet<String>();
+        for (final var field : fields)
+        {
+            if (field.constant != null && (field.access & ACC_STATIC) != 0 && (field.access & ACC_FINAL) != 0)
+            {
+                constants.add(field.name + "=" + field.constant);
+            }
+        }
+        return constants.isEmpty() ? "-" : Digest.sha256(constants.toString());
+    }
+
+    /**
+     * @return True if this class is abstract or an interface
+     */
+    public boolean isAbstract()
+    {
+        return (access & ACC_ABSTRACT) != 0;
+    }
+
+    /**
+     * @return True if this class is visible outside its package
+     */
+    public boolean isPublic()
+    {
+        return (access & 0x0001) != 0;
+    }
+
+    /**
+     * @return The internal name of this class, like java/lang/String
+     */
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+     * @return The internal names of all classes this class refers to, other than itself
+     */
+    public Set<String> references()
+    {
+        final var references = new TreeSet<String>();
+        for (final var type : classConstants)
+        {
+            if (type.startsWith("["))
+            {
+                final var matcher = TYPE_NAME.matcher(type);
+                while (matcher.find())
+                {
+                    references.add(matcher.group(1));
+                }
+            }
+            else
+            {
+                references.add(type);
+            }
+        }
+        for (final var constant : constants)
+        {
+            if (constant instanceof String)
+            {
+                final var matcher = TYPE_NAME.matcher((String) constant);
+                while (matcher.find())
+                {
+                    references.add(matcher.group(1));
+                }
+            }
+        }
+        references.remove(name);
+        return references;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    private String className(final int index)
+    {
+        return index == 0 ? null : utf8(((ClassConstant) constants[index]).name);
+    }
+
+    private boolean isVisible(final int access, final boolean exported)
+    {
+        if ((access & ACC_SYNTHETIC) != 0)
+        {
+            return false;
+        }
+        return exported ? (access & 0x0005) != 0 : (access & ACC_PRIVATE) == 0;
+    }
+
+    private void readConstants(final DataInputStream in) throws IOException
+    {
+        final var count = in.readUnsignedShort();
+        constants = new Object[count];
+        for (var index = 1; index < count; index++)
+        {
+            final var tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case 1:
+                    constants[index] = in.readUTF();
+                    break;
+
+                case 3:
+                    constants[index] = in.readInt();
+                    break;
+
+                case 4:
+                    constants[index] = in.readFloat();
+                    break;
+
+                case 5:
+                    constants[index++] = in.readLong();
+                    break;
+
+                case 6:
+                    constants[index++] = in.readDouble();
+                    break;
+
+                case 7:
+                    constants[index] = new ClassConstant(in.readUnsignedShort());
+                    break;
+
+                case 8:
+                    constants[index] = new StringConstant(in.readUnsignedShort());
+                    break;
+
+                case 16:
+                case 19:
+                case 20:
+                    in.readUnsignedShort();
+                    break;
+
+                case 15:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    in.readInt();
+                    break;
+
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        // Resolve class names now that all UTF-8 constants are known
+        for (final var constant : constants)
+        {
+            if (constant instanceof ClassConstant)
+            {
+                classConstants.add(utf8(((ClassConstant) constant).name));
+            }
+        }
+    }
+
+    private void readMembers(final DataInputStream in, final List<Member> members) throws IOException
+    {
+        final var count = in.readUnsignedShort();
+        for (var i = 0; i < count; i++)
+        {
+            final var member = new Member();
+            member.access = in.readUnsignedShort();
+            member.name = utf8(in.readUnsignedShort());
+            member.descriptor = utf8(in.readUnsignedShort());
+            final var attributes = in.readUnsignedShort();
+            for (var j = 0; j < attributes; j++)
+            {
+                final var attribute = utf8(in.readUnsignedShort());
+                final var length = in.readInt();
+                switch (attribute)
+                {
+                    case "Signature":
+                        member.signature = utf8(in.readUnsignedShort());
+                        break;
+
+                    case "ConstantValue":
+                        final var value = constants[in.readUnsignedShort()];
+                        member.constant = value instanceof StringConstant ? utf8(((StringConstant) value).value) : value;
+                        break;
+
+                    case "Exceptions":
+                        final var exceptions = in.readUnsignedShort();
+                        for (var k = 0; k < exceptions; k++)
+                        {
+                            member.exceptions.add(className(in.readUnsignedShort()));
+                        }
+                        break;
+
+                    default:
+                        in.skipBytes(length);
+                        break;
+                }
+            }
+            members.add(member);
+        }
+    }
+
+    private String utf8(final int index)
+    {
+        final var value = constants[index];
+        return value instanceof String ? (String) value : null;
+    }
+}
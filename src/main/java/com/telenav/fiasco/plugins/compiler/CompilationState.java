@@ -0,0 +1,255 @@
+package com.telenav.fiasco.plugins.compiler;
+
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.File;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What the {@link Compiler} knows about the last compilation of a module: the options it used, a stamp for each source
+ * file and, for each class compiled from a source file, its ABI digest and the classes it refers to. This is persisted
+ * in the module's output folder so the next build only recompiles what changed.
+ * <p>
+ * The file is a list of tab-separated lines. An "options" line holds the digest of the compiler options, an "abi" line
+ * holds the ABI digest of the whole module, each "source" line describes a source file, and the "class" lines that
+ * follow a source line describe the classes compiled from it.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class CompilationState extends BaseRepeater
+{
+    /**
+     * @return The state stored in the given file, or an empty state if there is none, with the given listener attached
+     * before the file is read
+     */
+    public static CompilationState load(final File file, final Listener listener)
+    {
+        final var state = new CompilationState();
+        state.addListener(listener);
+        if (file.exists())
+        {
+            try
+            {
+                Source source = null;
+                for (final var line : file.reader().lines())
+                {
+                    final var columns = line.split("\t", -1);
+                    switch (columns[0])
+                    {
+                        case "options":
+                            state.options = columns[1];
+                            break;
+
+                        case "abi":
+                            state.abi = columns[1];
+                            break;
+
+                        case "source":
+                            source = new Source(columns[1], Long.parseLong(columns[2]), Long.parseLong(columns[3]), columns[4]);
+                            state.sources.put(source.path, source);
+                            break;
+
+                        case "class":
+                            final var references = new TreeSet<String>();
+                            if (!columns[5].isEmpty())
+                            {
+                                references.addAll(List.of(columns[5].split(",")));
+                            }
+                            source.classes.add(new CompiledClass(columns[1], columns[2], columns[3], columns[4], references));
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+            }
+            catch (final Exception e)
+            {
+                state.warning(e, "Ignoring unreadable compilation state '$'", file);
+                final var empty = new CompilationState();
+                empty.addListener(listener);
+                return empty;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * A class compiled from a source file
+     */
+    public static class CompiledClass
+    {
+        /** The internal name of the class */
+        final String name;
+
+        /** The digest of the class ABI */
+        final String abi;
+
+        /** The digest of the ABI visible to other modules, or "-" if the class is not public */
+        final String exported;
+
+        /** The digest of the class's compile-time constants */
+        final String constants;
+
+        /** The classes in this module that the class refers to */
+        final Set<String> references;
+
+        public CompiledClass(final String name,
+                             final String abi,
+                             final String exported,
+                             final String constants,
+                             final Set<String> references)
+        {
+            this.name = name;
+            this.abi = abi;
+            this.exported = exported;
+            this.constants = constants;
+            this.references = references;
+        }
+    }
+
+    /**
+     * A source file and the classes compiled from it
+     */
+    public static class Source
+    {
+        /** The path of the source file relative to the source folder */
+        final String path;
+
+        /** The size of the file when it was compiled */
+        final long size;
+
+        /** The last modification time of the file when it was compiled */
+        final long modified;
+
+        /** The digest of the file's contents */
+        final String digest;
+
+        /** The classes compiled from this file */
+        final List<CompiledClass> classes = new ArrayList<>();
+
+        public Source(final String path, final long size, final long modified, final String digest)
+        {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    /** The digest of the module ABI */
+    private String abi = "-";
+
+    /** The digest of the compiler options used */
+    private String options = "";
+
+    /** The sources that were compiled, by path */
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+
+    /**
+     * @return The digest of the module ABI, or "-" if it is not known
+     */
+    public String abi()
+    {
+        return abi;
+    }
+
+    /**
+     * Computes the digest of the module ABI from the exported ABIs of its public classes. Changes to anything else,
+     * such as method bodies or package-private classes, leave the digest unchanged.
+     *
+     * @return The new digest
+     */
+    public String computeAbi()
+    {
+        final var exported = new TreeSet<String>();
+        for (final var compiled : classes().values())
+        {
+            if (!"-".equals(compiled.exported))
+            {
+                exported.add(compiled.name + " " + compiled.exported);
+            }
+        }
+        abi = Digest.sha256(String.join("\n", exported));
+        return abi;
+    }
+
+    /**
+     * @return The classes compiled from all sources, by name
+     */
+    public Map<String, CompiledClass> classes()
+    {
+        final var classes = new HashMap<String, CompiledClass>();
+        for (final var source : sources.values())
+        {
+            for (final var compiled : source.classes)
+            {
+                classes.put(compiled.name, compiled);
+            }
+        }
+        return classes;
+    }
+
+    public String options()
+    {
+        return options;
+    }
+
+    public void options(final String options)
+    {
+        this.options = options;
+    }
+
+    public void put(final Source source)
+    {
+        sources.put(source.path, source);
+    }
+
+    public Source remove(final String path)
+    {
+        return sources.remove(path);
+    }
+
+    /**
+     * Saves this state to the given file
+     */
+    public void save(final File file)
+    {
+        file.parent().mkdirs();
+        try (final var out = file.printWriter())
+        {
+            out.println("options\t" + options);
+            out.println("abi\t" + abi);
+            for (final var source : sources.values())
+            {
+                out.println("source\t" + source.path + "\t" + source.size + "\t" + source.modified + "\t" + source.digest);
+                for (final var compiled : source.classes)
+                {
+                    out.println("class\t" + compiled.name + "\t" + compiled.abi + "\t" + compiled.exported
+                            + "\t" + compiled.constants
+                            + "\t" + String.join(",", compiled.references));
+                }
+            }
+        }
+    }
+
+    public Source source(final String path)
+    {
+        return sources.get(path);
+    }
+
+    public Collection<Source> sources()
+    {
+        return sources.values();
+    }
+}
@@ -1,13 +1,67 @@
 package com.telenav.fiasco.plugins.compiler;
 
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.plugins.Digest;
 import com.telenav.fiasco.plugins.Plugin;
 import com.telenav.kivakit.core.version.Version;
+import com.telenav.kivakit.filesystem.File;
 import com.telenav.kivakit.filesystem.FileList;
+import com.telenav.kivakit.filesystem.Folder;
 
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static com.telenav.kivakit.core.ensure.Ensure.illegalState;
+
+/**
+ * Compiles the Java sources of a module into its classes folder with the system Java compiler, in-process.
+ * <p>
+ * Compilation is incremental. The {@link CompilationState} of the last compilation records a stamp for each source
+ * file and the ABI and references of each class compiled from it. On the next build, only sources that were added or
+ * changed are compiled, followed by any sources with classes that refer to a class whose ABI changed or that was
+ * removed, until no more ABIs change. Because javac inlines compile-time constants, a change to a constant recompiles
+ * everything. A change to the compiler options or to the classpath also recompiles everything.
+ * </p>
+ * <p>
+ * After compiling, the compiler computes an ABI digest for the whole module from the public API of its public classes.
+ * Downstream modules see upstream modules on their classpath only through this digest, so a change that only affects
+ * method bodies or non-public code doesn't cause modules that require this one to recompile.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
 @SuppressWarnings({ "FieldCanBeLocal", "unused" })
 public class Compiler extends Plugin
 {
+    /** The system Java compiler, which is shared by all modules */
+    private static final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+    /** The file manager, which is kept open between compilations so that a long-lived process stays warm */
+    private StandardJavaFileManager fileManager;
+
+    /** The options digest the file manager was opened for */
+    private String fileManagerOptions;
+
     private Version sourceVersion;
 
     private Version targetVersion;
@@ -19,16 +73,66 @@ public class Compiler extends Plugin
         super(module);
     }
 
+    /**
+     * @return The digest of the public API of this module, which changes only when modules that require this one
+     * might need to be recompiled, or "-" if the module hasn't been compiled
+     */
+    public String abi()
+    {
+        final var file = abiFile();
+        return file.exists() ? file.reader().asString().trim() : "-";
+    }
+
+    /**
+     * @return The classpath to compile against: the classes folders of the modules this module depends on and the jars
+     * of the libraries that it needs
+     */
+    public List<Path> classpath()
+    {
+        final var classpath = new ArrayList<Path>();
+        for (final var upstream : module().graph().depthFirst())
+        {
+            if (upstream != module())
+            {
+                classpath.add(path(upstream.classesFolder()));
+            }
+        }
+        for (final var jar : module().librarian().jars())
+        {
+            classpath.add(path(jar));
+        }
+        return classpath;
+    }
+
+    @Override
+    public List<String> outputs()
+    {
+        return List.of("classes", "compiler.state", "compiler.abi");
+    }
+
     public Compiler sourceVersion(final Version version)
     {
         sourceVersion = version;
         return this;
     }
 
+    public Version sourceVersion()
+    {
+        return sourceVersion;
+    }
+
     public Compiler sources(final FileList sources)
     {
         this.sources = sources;
-        return null;
+        return this;
+    }
+
+    /**
+     * @return The sources to compile, which are the module's sources unless other sources have been specified
+     */
+    public FileList sources()
+    {
+        return sources != null ? sources : module().sources();
     }
 
     public Compiler targetVersion(final Version version)
@@ -37,9 +141,469 @@ public class Compiler extends Plugin
         return this;
     }
 
+    public Version targetVersion()
+    {
+        return targetVersion;
+    }
+
     @Override
     protected void onRun()
     {
+        final var sourceFolder = path(module().sourceFolder());
+        final var output = path(module().classesFolder().mkdirs());
+        final var stateFile = stateFile();
+
+        // Find the current sources by their paths relative to the source folder,
+        final var current = new LinkedHashMap<String, Path>();
+        for (final var source : sources())
+        {
+            final var path = path(source);
+            current.put(relative(sourceFolder, path), path);
+        }
+
+        // and if the options or classpath have changed since the last compilation,
+        final var classpath = classpath();
+        final var options = options(output, classpath);
+        final var optionsDigest = Digest.sha256(String.join("\n", options) + "\n" + classpathStamp(classpath));
+        var state = CompilationState.load(stateFile, this);
+        final var previousAbi = state.abi();
+        final var changed = new TreeSet<String>();
+        final var touched = new HashSet<String>();
+        final var invalidated = new HashSet<String>();
+        if (!optionsDigest.equals(state.options()))
+        {
+            // throw away the old classes and compile everything.
+            for (final var source : state.sources())
+            {
+                deleteClasses(output, source);
+            }
+            state = listenTo(new CompilationState());
+            changed.addAll(current.keySet());
+        }
+        else
+        {
+            // Otherwise, find the sources that have changed
+            for (final var entry : current.entrySet())
+            {
+                if (hasChanged(state, entry.getKey(), entry.getValue(), touched))
+                {
+                    changed.add(entry.getKey());
+                }
+            }
+
+            // and the sources that have been removed, whose classes are no longer available.
+            for (final var removed : new ArrayList<>(state.sources()))
+            {
+                if (!current.containsKey(removed.path))
+                {
+                    deleteClasses(output, removed);
+                    state.remove(removed.path);
+                    removed.classes.forEach(compiled -> invalidated.add(compiled.name));
+                }
+            }
+        }
+
+        if (changed.isEmpty() && invalidated.isEmpty())
+        {
+            // Nothing needs compiling, but the stamps of sources that were touched without changing are saved, so
+            // they aren't hashed again in the next build.
+            if (!touched.isEmpty())
+            {
+                state.save(stateFile);
+            }
+            narrate("Module '$' is up to date", module());
+            return;
+        }
+
+        // Compile in rounds, starting with the changed sources,
+        final var compiled = new HashSet<String>();
+        var round = changed;
+        while (true)
+        {
+            var constantsChanged = false;
+            if (!round.isEmpty())
+            {
+                information("Compiling $ source files in '$'", round.size(), module());
+
+                // remembering the classes that were compiled from each source before,
+                final var previous = new HashMap<String, CompilationState.CompiledClass>();
+                for (final var path : round)
+                {
+                    final var old = state.remove(path);
+                    if (old != null)
+                    {
+                        deleteClasses(output, old);
+                        old.classes.forEach(compiledClass -> previous.put(compiledClass.name, compiledClass));
+                    }
+                }
+
+                final var classes = compile(round, current, options, optionsDigest, output);
+                if (classes == null)
+                {
+                    stateFile.delete();
+                    abiFile().delete();
+                    illegalState("Compilation of '$' failed", module());
+                }
+
+                // then record the new classes, noting any whose ABI changed.
+                final var moduleClasses = new HashSet<>(state.classes().keySet());
+                classes.values().forEach(list -> list.forEach(classFile -> moduleClasses.add(classFile.name())));
+                for (final var path : round)
+                {
+                    final var file = current.get(path);
+                    final var source = new CompilationState.Source(path, size(file), modified(file), module().project().snapshot().digest(file));
+                    for (final var classFile : classes.getOrDefault(path, List.of()))
+                    {
+                        final var old = previous.remove(classFile.name());
+                        final var classAbi = classFile.abi(false);
+                        final var constants = classFile.constants();
+                        if (old == null || !old.abi.equals(classAbi))
+                        {
+                            invalidated.add(classFile.name());
+                        }
+                        if (old != null && !old.constants.equals(constants))
+                        {
+                            constantsChanged = true;
+                        }
+                        final var references = new TreeSet<>(classFile.references());
+                        references.retainAll(moduleClasses);
+                        final var exported = classFile.isPublic() ? classFile.abi(true) : "-";
+                        source.classes.add(new CompilationState.CompiledClass(classFile.name(), classAbi, exported, constants, references));
+                    }
+                    state.put(source);
+                }
+
+                // Classes that are no longer produced are invalid too
+                invalidated.addAll(previous.keySet());
+                compiled.addAll(round);
+            }
+
+            // The next round is every source that hasn't been compiled yet if a constant changed,
+            final var next = new TreeSet<String>();
+            for (final var source : state.sources())
+            {
+                if (!compiled.contains(source.path))
+                {
+                    // or otherwise the sources with classes that refer to an invalidated class.
+                    if (constantsChanged || refersTo(source, invalidated))
+                    {
+                        next.add(source.path);
+                    }
+                }
+            }
+            invalidated.clear();
+            if (next.isEmpty())
+            {
+                break;
+            }
+            round = next;
+        }
+
+        // Finally, save the state for the next build, noting whether downstream modules are affected.
+        final var abi = state.computeAbi();
+        if (abi.equals(previousAbi))
+        {
+            narrate("The ABI of '$' is unchanged, so modules that require it won't be recompiled", module());
+        }
+        state.options(optionsDigest);
+        state.save(stateFile);
+        try (final var out = abiFile().printWriter())
+        {
+            out.println(abi);
+        }
+    }
+
+    /**
+     * @return The file holding the ABI digest of the last compilation, which downstream modules read
+     */
+    private File abiFile()
+    {
+        return module().outputFolder().file("compiler.abi");
+    }
+
+    /**
+     * @return A stamp that changes whenever something on the classpath changes that might affect compilation. For
+     * upstream modules, this is their ABI digest, so implementation-only changes leave the stamp unchanged.
+     */
+    private String classpathStamp(final List<Path> classpath)
+    {
+        final var stamp = new StringBuilder();
+        for (final var upstream : module().graph().depthFirst())
+        {
+            if (upstream != module())
+            {
+                stamp.append(upstream.path()).append(' ').append(upstream.compiler().abi()).append('\n');
+            }
+        }
+        for (final var entry : classpath)
+        {
+            if (Files.isRegularFile(entry))
+            {
+                stamp.append(entry).append(' ').append(size(entry)).append(' ').append(modified(entry)).append('\n');
+            }
+        }
+        return stamp.toString();
+    }
+
+    /**
+     * Compiles the given sources
+     *
+     * @return The classes compiled from each source, by path, or null if compilation failed
+     */
+    private Map<String, List<ClassFile>> compile(final Set<String> paths,
+                                                 final Map<String, Path> current,
+                                                 final List<String> options,
+                                                 final String optionsDigest,
+                                                 final Path output)
+    {
+        final var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        try
+        {
+            final var standard = fileManager(optionsDigest);
+
+            // Keep track of the classes written for each source file,
+            final var written = new HashMap<Path, List<String>>();
+            final var recording = new ForwardingJavaFileManager<StandardJavaFileManager>(standard)
+            {
+                @Override
+                public JavaFileObject getJavaFileForOutput(final JavaFileManager.Location location,
+                                                           final String className,
+                                                           final JavaFileObject.Kind kind,
+                                                           final FileObject sibling) throws IOException
+                {
+                    if (kind == JavaFileObject.Kind.CLASS && sibling != null)
+                    {
+                        synchronized (written)
+                        {
+                            written.computeIfAbsent(Path.of(sibling.toUri()).normalize(), ignored -> new ArrayList<>())
+                                    .add(className);
+                        }
+                    }
+                    return super.getJavaFileForOutput(location, className, kind, sibling);
+                }
+            };
+
+            // compile the sources,
+            final var files = standard.getJavaFileObjectsFromFiles(paths.stream()
+                    .map(path -> current.get(path).toFile())
+                    .collect(Collectors.toList()));
+            final var succeeded = javac.getTask(null, recording, diagnostics, options, null, files).call();
+            standard.flush();
+
+            // report any diagnostics,
+            for (final var diagnostic : diagnostics.getDiagnostics())
+            {
+                final var source = diagnostic.getSource() == null ? "" : diagnostic.getSource().getName() + ":" + diagnostic.getLineNumber() + ": ";
+                switch (diagnostic.getKind())
+                {
+                    case ERROR:
+                        problem("$", source + diagnostic.getMessage(null));
+                        break;
+
+                    case WARNING:
+                    case MANDATORY_WARNING:
+                        warning("$", source + diagnostic.getMessage(null));
+                        break;
+
+                    default:
+                        trace("$", source + diagnostic.getMessage(null));
+                        break;
+                }
+            }
+            if (!succeeded)
+            {
+                return null;
+            }
+
+            // and read back the classes that were written for each source.
+            final var classes = new HashMap<String, List<ClassFile>>();
+            for (final var path : paths)
+            {
+                final var list = new ArrayList<ClassFile>();
+                for (final var className : written.getOrDefault(current.get(path).toAbsolutePath().normalize(), List.of()))
+                {
+                    list.add(ClassFile.parse(Files.readAllBytes(classFile(output, className))));
+                }
+                classes.put(path, list);
+            }
+            return classes;
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to compile '$'", module());
+            return null;
+        }
+    }
+
+    /**
+     * @return The class file for the given binary or internal class name
+     */
+    private Path classFile(final Path output, final String className)
+    {
+        return output.resolve(className.replace('.', '/') + ".class");
+    }
+
+    private void deleteClasses(final Path output, final CompilationState.Source source)
+    {
+        for (final var compiled : source.classes)
+        {
+            try
+            {
+                Files.deleteIfExists(classFile(output, compiled.name));
+            }
+            catch (final IOException e)
+            {
+                warning(e, "Unable to delete class '$'", compiled.name);
+            }
+        }
+    }
+
+    /**
+     * @return The file manager to compile with. It is reused between compilations as long as the options and classpath
+     * stay the same, because it caches the contents of jars on the classpath.
+     */
+    private StandardJavaFileManager fileManager(final String optionsDigest) throws IOException
+    {
+        if (fileManager != null && !optionsDigest.equals(fileManagerOptions))
+        {
+            fileManager.close();
+            fileManager = null;
+        }
+        if (fileManager == null)
+        {
+            fileManager = javac.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+            fileManagerOptions = optionsDigest;
+        }
+        return fileManager;
+    }
+
+    /**
+     * @return True if the given source has changed since it was last compiled. A file with a new size or modification
+     * time is only considered changed if its contents changed, and if they didn't, its stamp is updated and its path
+     * is added to the given set of touched sources, so the state is saved.
+     */
+    private boolean hasChanged(final CompilationState state, final String relative, final Path file, final Set<String> touched)
+    {
+        final var previous = state.source(relative);
+        if (previous == null)
+        {
+            return true;
+        }
+        final var size = size(file);
+        final var modified = modified(file);
+        if (previous.size == size && previous.modified == modified)
+        {
+            return false;
+        }
+        if (previous.digest.equals(module().project().snapshot().digest(file)))
+        {
+            // The file was touched but not changed, so just update its stamp
+            final var stamped = new CompilationState.Source(relative, size, modified, previous.digest);
+            stamped.classes.addAll(previous.classes);
+            state.put(stamped);
+            touched.add(relative);
+            return false;
+        }
+        return true;
+    }
+
+    private long modified(final Path file)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The options to pass to javac
+     */
+    private List<String> options(final Path output, final List<Path> classpath)
+    {
+        final var options = new ArrayList<String>();
+        options.add("-d");
+        options.add(output.toString());
+
+        // Classes that aren't being compiled are found in the output folder
+        final var entries = new ArrayList<String>();
+        entries.add(output.toString());
+        classpath.forEach(entry -> entries.add(entry.toString()));
+        options.add("-classpath");
+        options.add(String.join(java.io.File.pathSeparator, entries));
+
+        options.add("-implicit:none");
+        options.add("-encoding");
+        options.add("UTF-8");
+        if (sourceVersion != null)
+        {
+            options.add("-source");
+            options.add(Integer.toString(sourceVersion.major()));
+        }
+        if (targetVersion != null)
+        {
+            options.add("-target");
+            options.add(Integer.toString(targetVersion.major()));
+        }
+        return options;
+    }
+
+    private Path path(final Folder folder)
+    {
+        return Path.of(folder.path().asString()).toAbsolutePath().normalize();
+    }
+
+    private Path path(final File file)
+    {
+        return Path.of(file.path().asString()).toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return True if any class compiled from the given source refers to one of the given classes
+     */
+    private boolean refersTo(final CompilationState.Source source, final Set<String> classes)
+    {
+        if (!classes.isEmpty())
+        {
+            for (final var compiled : source.classes)
+            {
+                for (final var reference : compiled.references)
+                {
+                    if (classes.contains(reference))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
 
+    private String relative(final Path folder, final Path file)
+    {
+        return folder.relativize(file).toString().replace('\\', '/');
+    }
+
+    private long size(final Path file)
+    {
+        try
+        {
+            return Files.size(file);
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return The file where the state of the last compilation is kept
+     */
+    private File stateFile()
+    {
+        return module().outputFolder().file("compiler.state");
     }
 }
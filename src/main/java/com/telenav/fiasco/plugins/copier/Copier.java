@@ -8,22 +8,61 @@
 package com.telenav.fiasco.plugins.copier;
 
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.Project;
+import com.telenav.fiasco.plugins.FilePattern;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.fiasco.plugins.builder.Snapshot;
 import com.telenav.kivakit.core.progress.ProgressReporter;
 import com.telenav.kivakit.core.progress.reporters.BroadcastingProgressReporter;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
 import com.telenav.kivakit.filesystem.File;
 import com.telenav.kivakit.filesystem.Folder;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
-import com.telenav.kivakit.resource.CopyMode;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Copies selected files from one folder to another.
+ * <p>
+ * The folders that files are copied into are created once, before any files are copied, and then files are copied in
+ * parallel. Each file is copied by its channel, which lets the operating system move the bytes without bringing them
+ * into the JVM. Files whose copies are already up to date, as determined by the {@link Comparison}, are skipped. The
+ * last modified time of each copy is set to that of its source, so unchanged files can be recognized by their sizes
+ * and times in the next build. Contents are compared by the digests in the project's {@link Snapshot}, so files that
+ * haven't changed since they were last hashed aren't read again.
+ * </p>
  *
  * @author shibo
  */
 @SuppressWarnings("unused")
 public class Copier extends Plugin
 {
+    /**
+     * How to tell whether a destination file is already a copy of its source file
+     */
+    public enum Comparison
+    {
+        /** Copy every file, whether or not the copy is up to date */
+        NONE,
+
+        /** Skip files whose copies have the same size and last modified time */
+        SIZE_AND_TIME,
+
+        /** Skip files whose copies have the same digests */
+        CONTENTS
+    }
+
     /** The folder to copy to */
     private Folder to;
 
@@ -33,6 +72,12 @@ public class Copier extends Plugin
     /** The files to copy */
     private Matcher<File> matcher = Matcher.matchAll();
 
+    /** How to tell whether a file needs to be copied */
+    private Comparison comparison = Comparison.SIZE_AND_TIME;
+
+    /** The number of threads to copy files with */
+    private Count threads = Count.count(Runtime.getRuntime().availableProcessors());
+
     /** Progress in copying files */
     private final ProgressReporter progress = BroadcastingProgressReporter.create(this, "files");
 
@@ -41,6 +86,16 @@ public class Copier extends Plugin
         super(module);
     }
 
+    /**
+     * Sets how to tell whether a file's copy is already up to date, which is by size and last modified time unless
+     * it's set
+     */
+    public Copier comparison(final Comparison comparison)
+    {
+        this.comparison = comparison;
+        return this;
+    }
+
     public Copier from(final Folder from)
     {
         this.from = resolveFolder(from);
@@ -63,6 +118,15 @@ public class Copier extends Plugin
         return this;
     }
 
+    /**
+     * Sets the number of threads to copy files with
+     */
+    public Copier threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
     public Copier to(final Folder to)
     {
         this.to = resolveFolder(to);
@@ -78,24 +142,145 @@ public class Copier extends Plugin
     protected void onRun()
     {
         // For each source file in the from folder that matches,
-        final var files = from.nestedFiles(matcher);
-        progress.steps(files.count());
-        progress.start("Copying " + files.size() + " files");
+        final var files = matcher instanceof FilePattern ? ((FilePattern) matcher).nestedFiles(from) : from.nestedFiles(matcher);
+        final var sources = new ArrayList<Path>();
+        final var destinations = new ArrayList<Path>();
+        final var folders = new TreeSet<Path>();
         for (final var source : files)
         {
-            // find the path relative to the root,
-            final var relative = source.relativeTo(from);
+            // find the file with the same path relative to the 'to' folder,
+            final var destination = path(to.file(source.relativeTo(from)));
+            sources.add(path(source));
+            destinations.add(destination);
+            folders.add(destination.getParent());
+        }
+
+        final var executor = Threads.threadPool("Copier", threads);
+        try
+        {
+            // create each folder that files are copied into, once,
+            for (final var folder : folders)
+            {
+                Files.createDirectories(folder);
+            }
+
+            // copy the files in parallel,
+            progress.steps(files.count());
+            progress.start("Copying " + files.size() + " files");
+            final var copies = new ArrayList<Future<Boolean>>();
+            for (var index = 0; index < sources.size(); index++)
+            {
+                final var source = sources.get(index);
+                final var destination = destinations.get(index);
+                copies.add(executor.submit(() -> copy(source, destination)));
+            }
+
+            // and wait for them to finish.
+            var copied = 0;
+            for (final var copy : copies)
+            {
+                if (copy.get())
+                {
+                    copied++;
+                }
+                progress.next();
+            }
+            progress.end(copied + " files copied");
+            information("Copied $ of $ files to '$', with the rest already up to date", copied, files.size(), to);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            problem("Copying to '$' was interrupted", to);
+        }
+        catch (final ExecutionException | IOException e)
+        {
+            problem(e, "Unable to copy '$' to '$'", from, to);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
 
-            // construct a file with the same path relative to the 'to' folder,
-            final var destination = to.file(relative);
+    /**
+     * Copies the given source file to the given destination, unless the destination is already a copy of it
+     *
+     * @return True if the file was copied, false if it was up to date
+     */
+    private boolean copy(final Path source, final Path destination) throws IOException
+    {
+        // If the destination is already a copy of the source, there's nothing to do,
+        final var attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        if (isCopy(source, attributes, destination))
+        {
+            return false;
+        }
 
-            // create any parent folders that might be required
-            destination.parent().mkdirs();
+        // otherwise transfer the bytes from one channel to the other,
+        try (final var in = FileChannel.open(source, StandardOpenOption.READ);
+             final var out = FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final var size = in.size();
+            for (var position = 0L; position < size; )
+            {
+                final var transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0)
+                {
+                    throw new IOException("File '" + source + "' changed while it was being copied");
+                }
+                position += transferred;
+            }
+        }
+
+        // and give the copy the time of its source, last, so that a partial copy is never taken for a complete one.
+        Files.setLastModifiedTime(destination, attributes.lastModifiedTime());
+        return true;
+    }
 
-            // and copy the source file to the destination location
-            source.safeCopyTo(destination, CopyMode.OVERWRITE, progress);
-            progress.next();
+    /**
+     * @return True if the given destination is already a copy of the given source
+     */
+    private boolean isCopy(final Path source, final BasicFileAttributes attributes, final Path destination)
+            throws IOException
+    {
+        if (comparison == Comparison.NONE)
+        {
+            return false;
+        }
+        final BasicFileAttributes existing;
+        try
+        {
+            existing = Files.readAttributes(destination, BasicFileAttributes.class);
+        }
+        catch (final NoSuchFileException e)
+        {
+            return false;
+        }
+        if (!existing.isRegularFile() || existing.size() != attributes.size())
+        {
+            return false;
+        }
+        if (comparison == Comparison.SIZE_AND_TIME)
+        {
+            return existing.lastModifiedTime().equals(attributes.lastModifiedTime());
         }
-        progress.end(files.size() + " files copied");
+        final var snapshot = snapshot();
+        return snapshot.digest(source).equals(snapshot.digest(destination));
+    }
+
+    private Path path(final File file)
+    {
+        return Path.of(file.path().asString());
+    }
+
+    /**
+     * @return The snapshot of the project the module being copied belongs to
+     */
+    private Snapshot snapshot()
+    {
+        final var project = module() instanceof Project ? (Project) module() : module().project();
+        return project.snapshot();
     }
 }
@@ -9,20 +9,45 @@ package com.telenav.fiasco.plugins.librarian;
 
 import com.telenav.fiasco.Library;
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.Project;
 import com.telenav.fiasco.Repository;
+import com.telenav.fiasco.dependency.DependencyList;
+import com.telenav.fiasco.plugins.Digest;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.fiasco.repository.CachingRepository;
 import com.telenav.fiasco.repository.LibraryResolver;
+import com.telenav.fiasco.repository.LocalRepository;
+import com.telenav.fiasco.repository.Mediation;
+import com.telenav.fiasco.repository.RemoteCacheRepository;
 import com.telenav.fiasco.repository.RemoteMavenRepository;
+import com.telenav.fiasco.repository.TransitiveResolver;
+import com.telenav.fiasco.repository.VersionMediator;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.FileList;
 import com.telenav.kivakit.interfaces.comparison.MatcherSet;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-import static com.telenav.kivakit.core.ensure.Ensure.unsupported;
+import java.util.Map;
 
 /**
- * Copies selected files from one folder to another.
+ * Resolves the libraries a module needs, including the libraries those libraries need, and finds their jars.
+ * <p>
+ * Libraries are looked for in the local repository first, then in the repositories this librarian was told to
+ * {@link #lookIn(Repository)}, and then in those of the project's librarian. The graph is taken from the module's
+ * lock file, the first time it's needed in a build, if the lock file was written for the same declared libraries and
+ * repositories. Otherwise, or if the build was told to {@link Project#refreshLibraries(boolean)}, the whole graph is
+ * resolved at once by a {@link TransitiveResolver}, which chooses one version of each library, the nearest unless
+ * another {@link #strategy(VersionMediator.Strategy)} is given, the choices are reported, and the lock file is written
+ * if the graph is different. Librarians that only search the project's repositories share the project librarian's
+ * resolver, so a library needed by several modules is only fetched once. The resolver remembers what it fetched for
+ * as long as it's used, which is across builds in the daemon, so it's replaced when the project refreshes its
+ * libraries.
+ * </p>
  *
  * @author shibo
  */
@@ -33,29 +58,153 @@ public class Librarian extends Plugin implements LibraryResolver
 
     private Repository deploymentRepository;
 
+    private final LocalRepository localRepository = listenTo(new LocalRepository());
+
+    /** The resolver of this librarian's libraries, if it needs its own */
+    private TransitiveResolver resolver;
+
+    /** The lock file of the resolved libraries */
+    private LockFile lockFile;
+
+    /** True once the libraries this module needs have been resolved in this build */
+    private boolean resolved;
+
+    /** How the resolver chooses between versions of a library */
+    private VersionMediator.Strategy strategy = VersionMediator.Strategy.NEAREST;
+
+    /** The versions chosen when the libraries were last resolved, or null if they were restored from the lock file */
+    private Mediation mediation;
+
+    /** The version of each library used, by group:artifact */
+    private final Map<String, Library> chosen = new HashMap<>();
+
     public Librarian(final Module module)
     {
         super(module);
     }
 
+    /**
+     * Forgets the libraries resolved in this build, so the next build reads the lock file again
+     */
+    public synchronized void buildFinished()
+    {
+        resolved = false;
+    }
+
+    /**
+     * Forgets the resolver of this librarian's libraries and what the repositories it looks in remember, so that when
+     * the libraries are next resolved, everything is read again
+     */
+    public synchronized void refresh()
+    {
+        resolver = null;
+        resolved = false;
+        searchPath().forEach(Repository::refresh);
+    }
+
+    /**
+     * Deploys the given library, or this module's library if it's null, to the deployment repository
+     */
     public Librarian deploy(final Library library)
     {
-        deploymentRepository.install(library);
+        if (deploymentRepository == null)
+        {
+            narrate("Not deploying $, which has no deployment repository", module());
+            return this;
+        }
+        final var deployed = library == null ? library() : library;
+        if (deployed != null)
+        {
+            deploymentRepository.install(deployed);
+        }
         return this;
     }
 
+    /**
+     * Installs the given library in the local repository, or if it's null, this module's library, along with the
+     * archive the module was built into
+     */
     public Librarian install(final Library library)
     {
-        RemoteMavenRepository.local().install(library);
+        if (library != null)
+        {
+            localRepository.install(library);
+            return this;
+        }
+
+        // Install the POM of this module's library,
+        final var installed = library();
+        if (installed != null)
+        {
+            localRepository.install(installed);
+
+            // and the archive, if it has been built.
+            final var archive = module().archiver().archive();
+            if (archive.exists())
+            {
+                localRepository.install(installed.artifact(), "jar", Path.of(archive.path().asString()));
+            }
+            else
+            {
+                warning("$ has not been archived, so only its POM was installed", module());
+            }
+        }
         return this;
     }
 
     public Librarian lookIn(final Repository repository)
     {
         repositories.add(repository);
+        resolver = null;
+        resolved = false;
         return this;
     }
 
+    /**
+     * @return The jar files for all libraries this module needs, from the local repository, or if a library isn't
+     * there, from any {@link RemoteCacheRepository} this librarian looks in
+     */
+    public FileList jars()
+    {
+        final var libraries = libraries();
+        final var found = jars(libraries);
+        final var jars = new FileList();
+        for (final var library : libraries)
+        {
+            final var jar = found.get(library);
+            if (jar != null)
+            {
+                // checking that any jar in the lock file is the same one that was locked.
+                final var locked = lockFile().checksum(library);
+                if (locked != null && !locked.equals(checksum(jar)))
+                {
+                    problem("The jar of '$' doesn't match the checksum in '$'", library, lockFile);
+                }
+                jars.add(jar);
+            }
+        }
+        return jars;
+    }
+
+    /**
+     * @return All libraries required by this module and the modules it depends on, including the libraries that those
+     * libraries depend on, in depth-first order
+     */
+    public synchronized DependencyList<Library> libraries()
+    {
+        resolveAll();
+        return graph();
+    }
+
+    /**
+     * @return The versions chosen when the libraries this module needs were last resolved, with the decision made for
+     * each library asked for in more than one version, or null if they haven't been resolved, or were used as locked
+     */
+    public Mediation mediation()
+    {
+        return mediation;
+    }
+
     public List<Repository> repositories()
     {
         return Collections.unmodifiableList(repositories);
@@ -64,15 +213,32 @@ public class Librarian extends Plugin implements LibraryResolver
     @Override
     public List<Library> resolve(final Library library, final MatcherSet<Library> exclusions)
     {
-        for (final var repository : repositories)
+        // Resolve a copy of the library that also excludes the given libraries,
+        final var root = new Library(library.artifact())
+                .excluding(library::excludes)
+                .excluding(exclusions.anyMatches());
+        final var resolved = resolver().resolve(List.of(root)).chosen(root);
+        if (resolved == null)
         {
-            final var libraries = repository.dependencies(library);
-            if (libraries != null)
-            {
-                return libraries;
-            }
+            return List.of();
         }
-        return Collections.emptyList();
+
+        // and return everything it depends on.
+        final var libraries = new ArrayList<>(resolved.graph().depthFirst());
+        libraries.remove(resolved);
+        return libraries;
+    }
+
+    /**
+     * Sets how to choose between versions of a library asked for in more than one version. The strategy of the
+     * project's librarian is used by modules that only look in the project's repositories.
+     */
+    public Librarian strategy(final VersionMediator.Strategy strategy)
+    {
+        this.strategy = strategy;
+        resolver = null;
+        resolved = false;
+        return this;
     }
 
     public Librarian withDeploymentRepository(final Repository deploymentRepository)
@@ -82,8 +248,243 @@ public class Librarian extends Plugin implements LibraryResolver
     }
 
     @Override
-    protected void onRun()
+    protected synchronized void onRun()
+    {
+        resolveAll();
+    }
+
+    private String checksum(final File jar)
+    {
+        final var project = module() instanceof Project ? (Project) module() : module().project();
+        return project.snapshot().digest(Path.of(jar.path().asString()));
+    }
+
+    /**
+     * @return The jar files of the given libraries, from the local repository, or if a library isn't there, from any
+     * {@link RemoteCacheRepository} this librarian looks in
+     */
+    private Map<Library, File> jars(final List<Library> libraries)
+    {
+        // Find the jars of libraries that are still in the local repository,
+        final var found = new HashMap<Library, File>();
+        final var missing = new ArrayList<Library>();
+        for (final var library : libraries)
+        {
+            final var artifact = library.artifact();
+            if (artifact != null && artifact.versionText() != null)
+            {
+                if (localRepository.containsJar(artifact))
+                {
+                    found.put(library, localRepository.jar(artifact));
+                }
+                else
+                {
+                    missing.add(library);
+                }
+            }
+        }
+
+        // and download any that are missing into the caches being looked in.
+        for (final var repository : searchPath())
+        {
+            if (repository instanceof RemoteCacheRepository && !missing.isEmpty())
+            {
+                final var cached = ((RemoteCacheRepository) repository).jars(missing);
+                found.putAll(cached);
+                missing.removeAll(cached.keySet());
+            }
+        }
+        missing.forEach(library -> warning("Library '$' is not in the local repository", library.artifact()));
+        return found;
+    }
+
+    /**
+     * @return The libraries needed by this module and the modules it depends on, in depth-first order, where each
+     * declared library is replaced by the version chosen for it
+     */
+    private DependencyList<Library> graph()
+    {
+        final var libraries = new LinkedHashSet<Library>();
+        for (final var module : module().graph().depthFirst())
+        {
+            for (final var library : module.libraries())
+            {
+                libraries.addAll(chosen.getOrDefault(library.artifact().withoutVersion(), library).graph().depthFirst());
+            }
+        }
+        return new DependencyList<>(new ArrayList<>(libraries));
+    }
+
+    /**
+     * @return The key of the given declared libraries and the repositories they're resolved from
+     */
+    private String key(final List<Library> roots)
+    {
+        final var key = new StringBuilder();
+        roots.forEach(root -> key.append(root.artifact().name()).append('\n'));
+        key.append(resolverStrategy()).append('\n');
+        for (final var repository : searchPath())
+        {
+            key.append(repository instanceof RemoteMavenRepository ? ((RemoteMavenRepository) repository).uri() : repository).append('\n');
+        }
+        return Digest.sha256(key.toString());
+    }
+
+    /**
+     * @return The library this module produces, which depends on the libraries it requires and the libraries of the
+     * modules it requires, or null if the module has no artifact with a version
+     */
+    private Library library()
+    {
+        final var artifact = module().artifact();
+        if (artifact == null || artifact.versionText() == null)
+        {
+            narrate("Not installing or deploying $, which has no artifact with a version", module());
+            return null;
+        }
+        final var dependencies = new ArrayList<Library>(module().libraries());
+        for (final var required : module().dependencies())
+        {
+            if (required.artifact() != null && required.artifact().versionText() != null)
+            {
+                dependencies.add(new Library(required.artifact()));
+            }
+        }
+        return new Library(artifact).dependencies(dependencies);
+    }
+
+    /**
+     * @return The lock file of this module's resolved libraries
+     */
+    private synchronized LockFile lockFile()
+    {
+        if (lockFile == null)
+        {
+            lockFile = listenTo(new LockFile(module().folder().file("libraries.lock")));
+        }
+        return lockFile;
+    }
+
+    /**
+     * @return The repositories to search, in order
+     */
+    private List<Repository> searchPath()
+    {
+        final var search = new ArrayList<Repository>();
+        search.add(localRepository);
+        search.addAll(repositories);
+        final var project = module().project();
+        if (project != null && project != module())
+        {
+            project.librarian().repositories().stream()
+                    .filter(repository -> !search.contains(repository))
+                    .forEach(search::add);
+        }
+        return search;
+    }
+
+    /**
+     * Resolves the libraries needed by this module and the modules it depends on, if there are repositories to look in
+     * and they haven't already been resolved in this build. Unless the project was told to refresh its libraries, the
+     * graph in the module's lock file is used if it was resolved from the same declared libraries and repositories.
+     */
+    private void resolveAll()
+    {
+        if (!resolved && searchPath().size() > 1)
+        {
+            resolved = true;
+            final var roots = new ArrayList<Library>();
+            for (final var module : module().graph().depthFirst())
+            {
+                roots.addAll(module.libraries());
+            }
+
+            // Use the graph in the lock file if it's still good,
+            final var key = key(roots);
+            chosen.clear();
+            mediation = null;
+            final var project = module().project();
+            final var refresh = project != null && project.refreshLibraries();
+            if (!refresh && lockFile().restore(key, roots))
+            {
+                lockFile().libraries().forEach(library -> chosen.put(library.artifact().withoutVersion(), library));
+                narrate("Using the libraries locked in '$'", lockFile);
+                return;
+            }
+
+            // otherwise resolve the graph again, reporting each choice between versions,
+            final var start = System.currentTimeMillis();
+            final var resolver = resolver();
+            try
+            {
+                mediation = resolver.resolve(roots);
+            }
+            catch (final IllegalStateException e)
+            {
+                // If a repository couldn't be read, the graph is incomplete, so the lock file is left alone.
+                problem(e, "Unable to resolve the libraries needed by $", module());
+                return;
+            }
+            chosen.putAll(mediation.chosen());
+            information("Resolved $ libraries needed by $ in $ ms", mediation.chosen().size(), module(), System.currentTimeMillis() - start);
+            for (final var decision : mediation.decisions())
+            {
+                if (decision.isConflict())
+                {
+                    warning("Version conflict: $", decision);
+                }
+                else
+                {
+                    narrate("Chose $", decision);
+                }
+            }
+
+            // and save what any caching repositories learned,
+            searchPath().stream()
+                    .filter(repository -> repository instanceof CachingRepository)
+                    .forEach(repository -> ((CachingRepository) repository).save());
+
+            // then lock the graph, if it's different.
+            final var graph = graph();
+            final var jars = jars(graph);
+            lockFile().save(key, graph, library ->
+            {
+                final var jar = jars.get(library);
+                return jar == null ? null : checksum(jar);
+            }, library ->
+            {
+                final var source = resolver.source(library);
+                return source == null ? null : source.toString();
+            });
+        }
+    }
+
+    /**
+     * @return The resolver for this librarian, which is the project librarian's if this one has no repositories of its
+     * own
+     */
+    private synchronized TransitiveResolver resolver()
+    {
+        final var project = module().project();
+        if (repositories.isEmpty() && project != null && project != module())
+        {
+            return project.librarian().resolver();
+        }
+        if (resolver == null)
+        {
+            resolver = listenTo(new TransitiveResolver(searchPath())).strategy(strategy);
+        }
+        return resolver;
+    }
+
+    /**
+     * @return The strategy of the resolver for this librarian
+     */
+    private VersionMediator.Strategy resolverStrategy()
     {
-        unsupported();
+        final var project = module().project();
+        return repositories.isEmpty() && project != null && project != module()
+                ? project.librarian().resolverStrategy()
+                : strategy;
     }
 }
@@ -0,0 +1,225 @@
+package com.telenav.fiasco.plugins.librarian;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.File;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The graph of libraries resolved for a module, with the checksum of each library's jar and the repository it came
+ * from, so the graph can be used again without fetching any POMs as long as the libraries the module declares and the
+ * repositories it looks in stay the same.
+ * <p>
+ * The lock file starts with the key of the declared libraries and repositories it was resolved from, followed by a
+ * tab-separated line for each library, with its coordinates, the SHA-256 digest of its jar (or - if the jar wasn't
+ * found), the repository it came from and the coordinates of the libraries it depends on, separated by commas. Since the
+ * lock file is in the module's folder, it can be checked in, so that every build of the module uses the same
+ * libraries.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class LockFile extends BaseRepeater
+{
+    /** The value of a column with nothing in it */
+    private static final String NONE = "-";
+
+    /** A library in the lock file */
+    private static class Entry
+    {
+        final String checksum;
+
+        final String repository;
+
+        final List<String> dependencies;
+
+        Entry(final String checksum, final String repository, final List<String> dependencies)
+        {
+            this.checksum = checksum;
+            this.repository = repository;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /** The file */
+    private final File file;
+
+    /** The libraries in the file, by coordinates, in depth-first order */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /** The libraries restored from the file */
+    private final List<Library> restored = new ArrayList<>();
+
+    /**
+     * @param file The lock file
+     */
+    public LockFile(final File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @return The checksum locked for the jar of the given library, or null if there is none
+     */
+    public String checksum(final Library library)
+    {
+        final var entry = entries.get(library.artifact().name());
+        return entry == null || entry.checksum.equals(NONE) ? null : entry.checksum;
+    }
+
+    /**
+     * @return The libraries restored from the lock file by {@link #restore(String, Collection)}, one version of each
+     */
+    public List<Library> libraries()
+    {
+        return Collections.unmodifiableList(restored);
+    }
+
+    /**
+     * Restores the graph of the given libraries from the lock file, if it was resolved from the same libraries and
+     * repositories. The restored libraries are new libraries, so the given ones aren't changed.
+     *
+     * @param key The key of the declared libraries and repositories
+     * @param roots The declared libraries
+     * @return True if the graph was restored
+     */
+    public boolean restore(final String key, final Collection<Library> roots)
+    {
+        entries.clear();
+        restored.clear();
+        if (!file.exists())
+        {
+            return false;
+        }
+        try
+        {
+            // Read the lock file, if it has the same key,
+            final var lines = file.reader().linesAsStringList();
+            if (lines.isEmpty() || !lines.get(0).equals("key\t" + key))
+            {
+                return false;
+            }
+            for (var index = 1; index < lines.size(); index++)
+            {
+                final var columns = lines.get(index).split("\t", -1);
+                entries.put(columns[0], new Entry(columns[1], columns[2], columns[3].isEmpty() ? List.of() : List.of(columns[3].split(","))));
+            }
+
+            // then check that the declared libraries are all there, though possibly in the version chosen for them,
+            final var locked = new HashSet<String>();
+            entries.keySet().forEach(coordinates -> locked.add(coordinates.substring(0, coordinates.lastIndexOf(':'))));
+            for (final var root : roots)
+            {
+                if (root.artifact().versionText() != null && !locked.contains(root.artifact().withoutVersion()))
+                {
+                    entries.clear();
+                    return false;
+                }
+            }
+
+            // and make a library for each entry that depends on the libraries for its dependencies.
+            final var libraries = new LinkedHashMap<String, Library>();
+            for (final var coordinates : entries.keySet())
+            {
+                library(coordinates, libraries, new HashSet<>());
+            }
+            restored.addAll(libraries.values());
+            return true;
+        }
+        catch (final Exception e)
+        {
+            warning(e, "Ignoring unreadable lock file '$'", file);
+            entries.clear();
+            restored.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Saves the graph of the given libraries to the lock file, unless it already holds the same graph, so a lock file
+     * that's checked in only changes when the graph does
+     *
+     * @param key The key of the declared libraries and repositories
+     * @param libraries All of the libraries in the graph, in depth-first order
+     * @param checksums The checksum of each library's jar, or null if its jar wasn't found
+     * @param repositories The repository each library came from, or null if it isn't known
+     */
+    public void save(final String key, final Collection<Library> libraries, final Function<Library, String> checksums, final Function<Library, String> repositories)
+    {
+        // Record each library in the graph,
+        entries.clear();
+        for (final var library : libraries)
+        {
+            if (library.artifact().versionText() != null)
+            {
+                final var dependencies = new ArrayList<String>();
+                library.dependencies().forEach(dependency -> dependencies.add(dependency.artifact().name()));
+                final var checksum = checksums.apply(library);
+                final var repository = repositories.apply(library);
+                entries.put(library.artifact().name(), new Entry(checksum == null ? NONE : checksum, repository == null ? NONE : repository, dependencies));
+            }
+        }
+
+        // and write out the records if they're different.
+        final var lines = new ArrayList<String>();
+        lines.add("key\t" + key);
+        entries.forEach((coordinates, entry) -> lines.add(coordinates + "\t" + entry.checksum + "\t" + entry.repository + "\t" + String.join(",", entry.dependencies)));
+        try
+        {
+            if (file.exists() && file.reader().linesAsStringList().equals(lines))
+            {
+                return;
+            }
+            try (final var out = file.printWriter())
+            {
+                lines.forEach(out::println);
+            }
+            information("Locked $ libraries in '$'", entries.size(), file);
+        }
+        catch (final Exception e)
+        {
+            warning(e, "Unable to save lock file '$'", file);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return file.toString();
+    }
+
+    /**
+     * @return The library with the given coordinates, depending on the libraries for its dependencies, which is made
+     * only once
+     * @throws IllegalStateException If the entry refers to a library that isn't in the lock file, or the entries form a
+     * cycle
+     */
+    private Library library(final String coordinates, final Map<String, Library> libraries, final Set<String> making)
+    {
+        var library = libraries.get(coordinates);
+        if (library == null)
+        {
+            final var entry = entries.get(coordinates);
+            if (entry == null || !making.add(coordinates))
+            {
+                throw new IllegalStateException("Invalid entry for " + coordinates);
+            }
+            final var dependencies = new ArrayList<Library>();
+            entry.dependencies.forEach(dependency -> dependencies.add(library(dependency, libraries, making)));
+            library = new Library(new Library(Artifact.parse(coordinates)), dependencies);
+            libraries.put(coordinates, library);
+            making.remove(coordinates);
+        }
+        return library;
+    }
+}
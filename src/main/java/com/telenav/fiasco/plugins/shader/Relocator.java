@@ -0,0 +1,270 @@
+package com.telenav.fiasco.plugins.shader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Moves classes from one package to another, renaming jar entries and rewriting the class files that refer to them.
+ * <p>
+ * Every class name in a class file, whether in a class reference, a descriptor, a generic signature or an annotation,
+ * is stored in a UTF-8 constant in the constant pool. Relocation rewrites those constants and copies the rest of the
+ * class file as it is, because nothing else refers to a constant by anything but its index. Internal names like
+ * com/google/common/Cache are relocated wherever they start a constant or follow a descriptor delimiter. String
+ * constants that start with a dotted name like com.google.common.Cache are relocated too, so reflection by name keeps
+ * working.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class Relocator
+{
+    /** A package to move */
+    private static class Relocation
+    {
+        final String fromSlashed;
+
+        final String toSlashed;
+
+        final String fromDotted;
+
+        final String toDotted;
+
+        Relocation(final String from, final String to)
+        {
+            fromDotted = from + ".";
+            toDotted = to + ".";
+            fromSlashed = fromDotted.replace('.', '/');
+            toSlashed = toDotted.replace('.', '/');
+        }
+    }
+
+    /** Characters that can come before a class name in a descriptor or signature */
+    private static final String DELIMITERS = ";([<>)^:+-*";
+
+    /** The packages to move, longest first, so that the most specific one applies */
+    private final List<Relocation> relocations = new ArrayList<>();
+
+    /**
+     * @return True if there is nothing to relocate
+     */
+    public boolean isEmpty()
+    {
+        return relocations.isEmpty();
+    }
+
+    /**
+     * Moves the given package and its subpackages to another package
+     *
+     * @param from The package to move, like com.google.common
+     * @param to The package to move it to, like shaded.com.google.common
+     */
+    public Relocator relocate(final String from, final String to)
+    {
+        relocations.add(new Relocation(from, to));
+        relocations.sort(Comparator.comparing((Relocation relocation) -> relocation.fromDotted.length()).reversed());
+        return this;
+    }
+
+    /**
+     * @return The given class file with its references relocated, or the same array if nothing refers to a package
+     * that's being moved
+     */
+    public byte[] relocateClass(final byte[] bytes) throws IOException
+    {
+        if (relocations.isEmpty())
+        {
+            return bytes;
+        }
+
+        // Read the constant pool, noting which UTF-8 constants are the values of string constants,
+        final var in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != 0xCAFEBABE)
+        {
+            throw new IOException("Not a class file");
+        }
+        in.readInt();
+        final var count = in.readUnsignedShort();
+        final var constants = new Object[count];
+        final var strings = new BitSet(count);
+        for (var index = 1; index < count; index++)
+        {
+            final var tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case 1:
+                    constants[index] = in.readUTF();
+                    break;
+
+                case 8:
+                    final var value = in.readUnsignedShort();
+                    strings.set(value);
+                    constants[index] = new byte[] { (byte) tag, (byte) (value >>> 8), (byte) value };
+                    break;
+
+                case 7:
+                case 16:
+                case 19:
+                case 20:
+                    constants[index] = read(in, tag, 2);
+                    break;
+
+                case 15:
+                    constants[index] = read(in, tag, 3);
+                    break;
+
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    constants[index] = read(in, tag, 4);
+                    break;
+
+                case 5:
+                case 6:
+                    constants[index] = read(in, tag, 8);
+                    index++;
+                    break;
+
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        final var poolEnd = bytes.length - in.available();
+
+        // relocate the names in the UTF-8 constants,
+        var changed = false;
+        for (var index = 1; index < count; index++)
+        {
+            if (constants[index] instanceof String)
+            {
+                final var text = (String) constants[index];
+                var relocated = relocate(text, false);
+                if (strings.get(index))
+                {
+                    relocated = relocate(relocated, true);
+                }
+                if (!relocated.equals(text))
+                {
+                    constants[index] = relocated;
+                    changed = true;
+                }
+            }
+        }
+        if (!changed)
+        {
+            return bytes;
+        }
+
+        // and write the class with the new constant pool and everything else as it was.
+        final var buffer = new ByteArrayOutputStream(bytes.length + 256);
+        final var out = new DataOutputStream(buffer);
+        out.write(bytes, 0, 10);
+        for (var index = 1; index < count; index++)
+        {
+            final var constant = constants[index];
+            if (constant instanceof String)
+            {
+                out.writeByte(1);
+                out.writeUTF((String) constant);
+            }
+            else if (constant instanceof byte[])
+            {
+                out.write((byte[]) constant);
+            }
+        }
+        out.write(bytes, poolEnd, bytes.length - poolEnd);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return The given dotted class name, like the name of a service or its provider, relocated
+     */
+    public String relocateClassName(final String name)
+    {
+        return relocate(name, true);
+    }
+
+    /**
+     * @return The given jar entry name, like com/google/common/Cache.class, relocated
+     */
+    public String relocatePath(final String path)
+    {
+        for (final var relocation : relocations)
+        {
+            if (path.startsWith(relocation.fromSlashed))
+            {
+                return relocation.toSlashed + path.substring(relocation.fromSlashed.length());
+            }
+        }
+        return path;
+    }
+
+    /**
+     * @return True if a class name could start at the given index of the given text
+     */
+    private boolean isStart(final String text, final int index, final boolean dotted)
+    {
+        if (index == 0)
+        {
+            return true;
+        }
+        final var previous = text.charAt(index - 1);
+        if (dotted)
+        {
+            return !Character.isJavaIdentifierPart(previous) && previous != '.' && previous != '/';
+        }
+        return DELIMITERS.indexOf(previous) >= 0
+                || (previous == 'L' && (index == 1 || DELIMITERS.indexOf(text.charAt(index - 2)) >= 0))
+                || (previous == '/' && index == 1);
+    }
+
+    private byte[] read(final DataInputStream in, final int tag, final int length) throws IOException
+    {
+        final var bytes = new byte[length + 1];
+        bytes[0] = (byte) tag;
+        in.readFully(bytes, 1, length);
+        return bytes;
+    }
+
+    /**
+     * @return The given text with the class names in it relocated
+     */
+    private String relocate(final String text, final boolean dotted)
+    {
+        StringBuilder relocated = null;
+        var copied = 0;
+        for (var index = 0; index < text.length(); index++)
+        {
+            if (isStart(text, index, dotted))
+            {
+                for (final var relocation : relocations)
+                {
+                    final var from = dotted ? relocation.fromDotted : relocation.fromSlashed;
+                    if (text.startsWith(from, index))
+                    {
+                        if (relocated == null)
+                        {
+                            relocated = new StringBuilder(text.length() + 32);
+                        }
+                        relocated.append(text, copied, index).append(dotted ? relocation.toDotted : relocation.toSlashed);
+                        copied = index + from.length();
+                        index = copied - 1;
+                        break;
+                    }
+                }
+            }
+        }
+        return relocated == null ? text : relocated.append(text, copied, text.length()).toString();
+    }
+}
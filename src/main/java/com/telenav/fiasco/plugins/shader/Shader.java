@@ -2,17 +2,341 @@ package com.telenav.fiasco.plugins.shader;
 
 import com.telenav.fiasco.Module;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.fiasco.plugins.archiver.JarIndex;
+import com.telenav.fiasco.plugins.archiver.JarWriter;
+import com.telenav.fiasco.plugins.archiver.JarWriter.Contents;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.Folder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Builds a shaded jar, holding the module's classes and resources along with those of the modules and libraries it
+ * requires, in the shaded output folder.
+ * <p>
+ * Each library jar is indexed in parallel, reading only its central directory, and entries are streamed into the
+ * shaded jar by a {@link JarWriter}, so no jar is ever loaded into memory as a whole. Entries that don't need to
+ * change are copied from library jars without being decompressed. Packages can be moved with
+ * {@link #relocate(String, String)}, in which case class files are rewritten by a {@link Relocator}, and those that
+ * don't refer to a moved package are still copied as they are.
+ * </p>
+ * <p>
+ * Where more than one jar or folder has an entry with the same name, the first one wins, with the module first, then
+ * the modules it requires and then libraries, in dependency order. Service files in META-INF/services are merged
+ * instead, keeping each provider once. Manifests, signatures and module descriptors of libraries are left out, since
+ * they don't apply to the shaded jar.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
 public class Shader extends Plugin
 {
+    /** The folder of service files, which are merged */
+    private static final String SERVICES = "META-INF/services/";
+
+    /** Module descriptors, which are left out of the shaded jar */
+    private static final Pattern MODULE_INFO = Pattern.compile("(META-INF/versions/\\d+/)?module-info\\.class");
+
+    /** Entries of libraries that are left out of the shaded jar */
+    private static final Pattern EXCLUDED = Pattern.compile("(?i)META-INF/MANIFEST\\.MF|META-INF/INDEX\\.LIST"
+            + "|META-INF/[^/]+\\.(SF|DSA|RSA|EC)|(META-INF/versions/\\d+/)?module-info\\.class");
+
+    /** The entries of a folder or jar, by name */
+    private static class Source
+    {
+        final String name;
+
+        final Map<String, Contents> entries = new LinkedHashMap<>();
+
+        final Map<String, JarWriter.Source> services = new LinkedHashMap<>();
+
+        Source(final String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /** The packages to move */
+    private final Relocator relocator = new Relocator();
+
+    /** The number of threads to index jars and compress entries with */
+    private Count threads = Count.count(Runtime.getRuntime().availableProcessors());
+
     public Shader(final Module module)
     {
         super(module);
     }
 
+    @Override
+    public List<String> outputs()
+    {
+        return List.of("shaded");
+    }
+
+    /**
+     * Moves the given package and its subpackages to another package in the shaded jar
+     *
+     * @param from The package to move, like com.google.common
+     * @param to The package to move it to, like shaded.com.google.common
+     */
+    public Shader relocate(final String from, final String to)
+    {
+        relocator.relocate(from, to);
+        return this;
+    }
+
+    /**
+     * @return The shaded jar file, which is named after the module's jar
+     */
+    public File shadedJar()
+    {
+        final var name = path(module().archiver().archive()).getFileName().toString().replaceAll("\\.jar$", "");
+        return module().outputFolder().folder("shaded").file(name + "-shaded.jar");
+    }
+
+    /**
+     * Sets the number of threads to index jars and compress entries with
+     */
+    public Shader threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
     @Override
     protected void onRun()
     {
+        final var jars = new ArrayList<JarIndex>();
+        final var executor = Threads.threadPool("Shader", threads);
+        try
+        {
+            // Index the module, the modules it requires and then its libraries in parallel,
+            final var modules = new ArrayList<>(module().graph().depthFirst());
+            Collections.reverse(modules);
+            final var sources = new ArrayList<Future<Source>>();
+            for (final var module : modules)
+            {
+                sources.add(executor.submit(() -> folder(module.toString(), path(module.classesFolder()))));
+                sources.add(executor.submit(() -> folder(module.toString(), path(module.resourceFolder()))));
+            }
+            for (final var jar : module().librarian().jars())
+            {
+                sources.add(executor.submit(() -> jar(path(jar), jars)));
+            }
 
+            // then merge them in that order, with the first of any duplicate winning, except for services,
+            final var entries = new TreeMap<String, Contents>();
+            final var services = new TreeMap<String, List<JarWriter.Source>>();
+            final var origins = new TreeMap<String, String>();
+            var duplicates = 0;
+            for (final var future : sources)
+            {
+                final var source = future.get();
+                for (final var entry : source.entries.entrySet())
+                {
+                    if (entries.putIfAbsent(entry.getKey(), entry.getValue()) == null)
+                    {
+                        origins.put(entry.getKey(), source.name);
+                    }
+                    else if (!entry.getKey().endsWith("/"))
+                    {
+                        duplicates++;
+                        narrate("Ignoring '$' in $, which is also in $", entry.getKey(), source.name, origins.get(entry.getKey()));
+                    }
+                }
+                source.services.forEach((name, service) -> services.computeIfAbsent(name, ignored -> new ArrayList<>()).add(service));
+            }
+            services.forEach((name, files) -> entries.put(name, Contents.bytes(() -> merge(files))));
+            if (duplicates > 0)
+            {
+                warning("Ignored $ duplicate entries while shading '$'", duplicates, module());
+            }
+
+            // and write the shaded jar.
+            final var jar = Path.of(shadedJar().path().asString());
+            deleteOthers(jar);
+            final var count = listenTo(new JarWriter().threads(threads)).write(jar, entries);
+            information("Shaded $ entries from $ libraries into '$'", count, module().librarian().jars().size(), jar.getFileName());
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            problem("Shading of '$' was interrupted", module());
+        }
+        catch (final ExecutionException | IOException e)
+        {
+            problem(e, "Unable to shade '$'", module());
+        }
+        finally
+        {
+            // Stop indexing, and wait for any jars still being indexed, so that every index that was opened is closed.
+            executor.shutdownNow();
+            Threads.await(executor);
+            for (final var jar : jars)
+            {
+                close(jar);
+            }
+        }
+    }
+
+    private void close(final JarIndex jar)
+    {
+        try
+        {
+            jar.close();
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to close jar");
+        }
+    }
+
+    /**
+     * Deletes any files other than the given jar in its folder
+     */
+    private void deleteOthers(final Path jar) throws IOException
+    {
+        if (Files.isDirectory(jar.getParent()))
+        {
+            try (final var files = Files.list(jar.getParent()))
+            {
+                for (final var file : files.collect(Collectors.toList()))
+                {
+                    if (!file.equals(jar))
+                    {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The entries of the given folder of classes or resources
+     */
+    private Source folder(final String name, final Path folder) throws IOException
+    {
+        final var source = new Source("module '" + name + "'");
+        if (Files.isDirectory(folder))
+        {
+            try (final var paths = Files.walk(folder))
+            {
+                for (final var file : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList()))
+                {
+                    final var path = folder.relativize(file).toString().replace(java.io.File.separatorChar, '/');
+                    if (MODULE_INFO.matcher(path).matches())
+                    {
+                        continue;
+                    }
+                    if (path.startsWith(SERVICES))
+                    {
+                        source.services.put(relocateService(path), () -> Files.readAllBytes(file));
+                    }
+                    else if (path.endsWith(".class"))
+                    {
+                        source.entries.put(relocator.relocatePath(path), Contents.bytes(() -> relocator.relocateClass(Files.readAllBytes(file))));
+                    }
+                    else
+                    {
+                        source.entries.put(relocator.relocatePath(path), Contents.file(file));
+                    }
+                }
+            }
+        }
+        return source;
+    }
+
+    /**
+     * @return The entries of the given library jar, leaving out those that don't belong in a shaded jar
+     */
+    private Source jar(final Path file, final List<JarIndex> jars) throws IOException
+    {
+        final var source = new Source("'" + file.getFileName() + "'");
+        final var jar = JarIndex.read(file);
+        synchronized (jars)
+        {
+            jars.add(jar);
+        }
+        for (final var name : jar.names())
+        {
+            final var entry = jar.entry(name);
+            if (name.endsWith("/") || EXCLUDED.matcher(name).matches())
+            {
+                continue;
+            }
+            if (name.startsWith(SERVICES))
+            {
+                source.services.put(relocateService(name), () -> jar.bytes(entry));
+            }
+            else if (name.endsWith(".class") && !relocator.isEmpty())
+            {
+                source.entries.put(relocator.relocatePath(name), Contents.transformed(jar, entry, relocator::relocateClass));
+            }
+            else
+            {
+                source.entries.put(relocator.relocatePath(name), Contents.raw(jar, entry));
+            }
+        }
+        return source;
+    }
+
+    /**
+     * @return The given service files merged, with each provider once and the provider names relocated
+     */
+    private byte[] merge(final List<JarWriter.Source> files) throws IOException
+    {
+        final var providers = new LinkedHashSet<String>();
+        for (final var file : files)
+        {
+            for (final var line : new String(file.bytes(), StandardCharsets.UTF_8).split("\r?\n"))
+            {
+                final var provider = line.replaceAll("#.*", "").trim();
+                if (!provider.isEmpty())
+                {
+                    providers.add(relocator.relocateClassName(provider));
+                }
+            }
+        }
+        final var merged = new ByteArrayOutputStream();
+        for (final var provider : providers)
+        {
+            merged.write((provider + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return merged.toByteArray();
+    }
+
+    private Path path(final Folder folder)
+    {
+        return Path.of(folder.path().asString()).toAbsolutePath().normalize();
+    }
+
+    private Path path(final File file)
+    {
+        return Path.of(file.path().asString()).toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return The name of the given service file with the service name relocated
+     */
+    private String relocateService(final String path)
+    {
+        return SERVICES + relocator.relocateClassName(path.substring(SERVICES.length()));
     }
 }
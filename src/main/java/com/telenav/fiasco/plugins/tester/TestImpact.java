@@ -0,0 +1,223 @@
+package com.telenav.fiasco.plugins.tester;
+
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.fiasco.plugins.builder.Snapshot;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.filesystem.File;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Which classes and resources each test class used the last time it passed, so that the {@link Tester} only needs to
+ * run tests that use something that has changed since.
+ * <p>
+ * For each test class, the paths it loaded from the module's class and resource folders are kept, like
+ * com/telenav/Server.class or config.properties, along with a digest of their contents when the test passed. A test
+ * is affected by a change if the digest of the things it used is different now. Tests that are new or that failed the
+ * last time they ran are always affected, and if the libraries on the test classpath change, every test is.
+ * </p>
+ * <p>
+ * The state is a file of tab-separated lines. A "classpath" line holds a stamp of the libraries, and a "test" line
+ * holds the name of a test class, the digest of what it used and then the paths it used.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class TestImpact extends BaseRepeater
+{
+    /**
+     * @return The state stored in the given file, or an empty state if there is none, with the given listener attached
+     * before the file is read
+     */
+    public static TestImpact load(final File file, final Listener listener)
+    {
+        final var impact = new TestImpact();
+        impact.addListener(listener);
+        if (file.exists())
+        {
+            try
+            {
+                for (final var line : file.reader().lines())
+                {
+                    final var columns = line.split("\t", -1);
+                    switch (columns[0])
+                    {
+                        case "classpath":
+                            impact.classpath = columns[1];
+                            break;
+
+                        case "test":
+                            final var used = new TreeSet<>(List.of(columns).subList(3, columns.length));
+                            impact.tests.put(columns[1], new Test(columns[2], used));
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+            }
+            catch (final Exception e)
+            {
+                impact.warning(e, "Ignoring unreadable test impact state '$'", file);
+                final var empty = new TestImpact();
+                empty.addListener(listener);
+                return empty;
+            }
+        }
+        return impact;
+    }
+
+    /** What a test class used when it last passed */
+    private static class Test
+    {
+        final String digest;
+
+        final Set<String> used;
+
+        Test(final String digest, final Set<String> used)
+        {
+            this.digest = digest;
+            this.used = used;
+        }
+    }
+
+    /** The stamp of the libraries on the test classpath */
+    private String classpath = "";
+
+    /** The tests that passed, by class name */
+    private final Map<String, Test> tests = new TreeMap<>();
+
+    /** The folders that used paths are found in, in classpath order */
+    private List<Path> roots = List.of();
+
+    /** The snapshot that digests of files come from, if any */
+    private Snapshot snapshot;
+
+    /** The digests of files, computed at most once per build */
+    private final Map<String, String> digests = new HashMap<>();
+
+    /**
+     * Returns the given tests that need to run. If the library stamp has changed, all tests need to run, and otherwise
+     * only those that are new, failed last time or used something that has changed.
+     *
+     * @param tests All test classes
+     * @param classpath The stamp of the libraries on the test classpath
+     */
+    public List<String> affected(final Collection<String> tests, final String classpath)
+    {
+        if (!classpath.equals(this.classpath))
+        {
+            this.tests.clear();
+            this.classpath = classpath;
+            return new ArrayList<>(tests);
+        }
+        final var affected = new ArrayList<String>();
+        for (final var test : tests)
+        {
+            final var previous = this.tests.get(test);
+            if (previous == null || !previous.digest.equals(digest(previous.used)))
+            {
+                affected.add(test);
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Records that the given test class failed, so it will run again next time
+     */
+    public void failed(final String test)
+    {
+        tests.remove(test);
+    }
+
+    /**
+     * Records that the given test class passed, using the given paths
+     */
+    public void passed(final String test, final Set<String> used)
+    {
+        tests.put(test, new Test(digest(used), new TreeSet<>(used)));
+    }
+
+    /**
+     * Forgets any tests that aren't in the given set, because they no longer exist
+     */
+    public void retain(final Collection<String> tests)
+    {
+        this.tests.keySet().retainAll(Set.copyOf(tests));
+    }
+
+    /**
+     * Sets the folders that used paths are found in, in classpath order
+     */
+    public void roots(final List<Path> roots)
+    {
+        this.roots = roots;
+        digests.clear();
+    }
+
+    /**
+     * Sets the snapshot to take digests of files from, so files that haven't changed aren't hashed again
+     */
+    public void snapshot(final Snapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Saves this state to the given file
+     */
+    public void save(final File file)
+    {
+        file.parent().mkdirs();
+        try (final var out = file.printWriter())
+        {
+            out.println("classpath\t" + classpath);
+            tests.forEach((name, test) ->
+            {
+                final var line = new StringBuilder("test\t").append(name).append('\t').append(test.digest);
+                test.used.forEach(path -> line.append('\t').append(path));
+                out.println(line);
+            });
+        }
+    }
+
+    /**
+     * @return A digest of the current contents of the given paths
+     */
+    private String digest(final Set<String> used)
+    {
+        final var digest = new StringBuilder();
+        for (final var path : used)
+        {
+            digest.append(path).append(' ').append(digests.computeIfAbsent(path, this::digestOf)).append('\n');
+        }
+        return Digest.sha256(digest.toString());
+    }
+
+    /**
+     * @return The digest of the first file with the given path in the roots, or "-" if there is none
+     */
+    private String digestOf(final String path)
+    {
+        for (final var root : roots)
+        {
+            final var file = root.resolve(path);
+            if (Files.isRegularFile(file))
+            {
+                return snapshot == null ? Digest.sha256(file) : snapshot.digest(file);
+            }
+        }
+        return "-";
+    }
+}
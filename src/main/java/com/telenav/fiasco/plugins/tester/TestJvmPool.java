@@ -0,0 +1,351 @@
+package com.telenav.fiasco.plugins.tester;
+
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.core.value.level.Percent;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A pool of warm JVMs running {@link TestWorker}s, which the {@link Tester}s of all modules share for the length of a
+ * build. Starting a JVM and warming up JUnit can take longer than a test class, so a JVM that has run one test class
+ * goes back to the pool to run the next. Each JVM runs in the folder of the module whose tests it runs, so tests can
+ * use paths relative to the module, as they can with Maven, and it's only used for that module's tests.
+ * <p>
+ * Small modules can save more time by sharing JVMs, which {@link #shareAcrossModules(boolean)} turns on. Shared JVMs
+ * run in the project folder, so tests that use relative paths won't find their files, and while workers load each
+ * module's libraries and each test class in class loaders of their own, anything a test changes in the JVM itself,
+ * like system properties, is seen by the tests of the next module.
+ * </p>
+ * <p>
+ * A JVM is recycled after it has run a number of test classes, or when the heap in use after garbage collection goes
+ * over a threshold, so that leaks in tests can't build up. A JVM running a test class that takes longer than its
+ * timeout is stopped and discarded. JVMs are only shared by tests with the same JVM options, and all of them are
+ * stopped when the build finishes. The standard error of each JVM, which includes anything tests
+ * print, goes to a log in the given folder, which is cleared at the start of each build.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class TestJvmPool extends BaseRepeater
+{
+    /**
+     * A JVM running a {@link TestWorker}
+     */
+    public class TestJvm
+    {
+        /** The options the JVM was started with */
+        private final List<String> options;
+
+        /** The folder the JVM runs in */
+        private final Path directory;
+
+        private final Process process;
+
+        private final BufferedWriter toWorker;
+
+        private final BufferedReader fromWorker;
+
+        /** The log of the JVM's standard error */
+        private final Path log;
+
+        /** The number of test classes run */
+        private int runs;
+
+        /** The percentage of the heap in use after the last garbage collection */
+        private int heapUsed;
+
+        /** True if the JVM was stopped because a test class took too long */
+        private volatile boolean timedOut;
+
+        TestJvm(final List<String> options, final Path directory, final Path log) throws IOException
+        {
+            this.options = options;
+            this.directory = directory;
+            this.log = log;
+
+            final var command = new ArrayList<String>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(options);
+            command.add("-classpath");
+            command.add(workerLocation().toString());
+            command.add(TestWorker.class.getName());
+            process = new ProcessBuilder(command)
+                    .directory(directory.toFile())
+                    .redirectError(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                    .start();
+            toWorker = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            fromWorker = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return The log of the JVM's standard error
+         */
+        public Path log()
+        {
+            return log;
+        }
+
+        /**
+         * Runs a test class, stopping the JVM if it takes longer than the given timeout
+         *
+         * @param test The name of the test class
+         * @param folder The module folder
+         * @param libraries The libraries on the test classpath
+         * @param roots The folders holding the classes and resources of the module and the modules it requires
+         * @param timeout How long the test class can take
+         * @return The lines the worker wrote about the test class, or null if the JVM exited or was stopped first
+         */
+        public List<String> run(final String test, final Path folder, final List<Path> libraries, final List<Path> roots,
+                                final Duration timeout) throws IOException
+        {
+            // Send the request,
+            toWorker.write("run\t" + test + "\t" + folder + "\t" + join(libraries) + "\t" + join(roots));
+            toWorker.newLine();
+            toWorker.flush();
+            runs++;
+
+            // stop the JVM if it takes too long, which ends the output the worker is read from,
+            final var watchdog = CompletableFuture.runAsync(() ->
+            {
+                timedOut = true;
+                process.destroyForcibly();
+            }, CompletableFuture.delayedExecutor(timeout.milliseconds(), TimeUnit.MILLISECONDS));
+            try
+            {
+                // and read lines up to the one that says the worker is done.
+                final var lines = new ArrayList<String>();
+                for (var line = fromWorker.readLine(); line != null; line = fromWorker.readLine())
+                {
+                    lines.add(line);
+                    if (line.startsWith("heap\t"))
+                    {
+                        heapUsed = Integer.parseInt(line.substring(5));
+                    }
+                    if (line.startsWith("done\t"))
+                    {
+                        return lines;
+                    }
+                }
+                return null;
+            }
+            finally
+            {
+                watchdog.cancel(false);
+            }
+        }
+
+        /**
+         * @return True if the JVM was stopped because a test class took longer than its timeout
+         */
+        public boolean timedOut()
+        {
+            return timedOut;
+        }
+
+        private void stop()
+        {
+            process.destroy();
+        }
+
+        private String join(final List<Path> paths)
+        {
+            return paths.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator));
+        }
+    }
+
+    /** The project folder, which JVMs run in if they're shared across modules */
+    private final Folder folder;
+
+    /** The folder where JVM logs are written */
+    private final Folder logs;
+
+    /** The number of test classes a JVM runs before it is recycled */
+    private Count recycleAfter = Count.count(250);
+
+    /** The percentage of the heap in use after garbage collection above which a JVM is recycled */
+    private Percent maximumHeapUsed = Percent.percent(75);
+
+    /** The maximum number of idle JVMs to keep */
+    private Count maximumIdle = Count.count(Runtime.getRuntime().availableProcessors());
+
+    /** JVMs that are waiting for work */
+    private final List<TestJvm> idle = new ArrayList<>();
+
+    /** The number of JVMs started since the logs were cleared */
+    private int started;
+
+    /** True if JVMs run the tests of any module, rather than only those of the module they were started for */
+    private volatile boolean shareAcrossModules;
+
+    /**
+     * @param folder The project folder
+     * @param logs The folder where JVM logs are written
+     */
+    public TestJvmPool(final Folder folder, final Folder logs)
+    {
+        this.folder = folder;
+        this.logs = logs;
+    }
+
+    /**
+     * Takes a JVM with the given options for running the tests of the module in the given folder from the pool,
+     * starting one if there isn't one waiting
+     */
+    public TestJvm acquire(final Path module, final List<String> options) throws IOException
+    {
+        final var directory = shareAcrossModules ? Path.of(folder.path().asString()) : module;
+        synchronized (idle)
+        {
+            for (final var jvm : idle)
+            {
+                if (jvm.options.equals(options) && jvm.directory.equals(directory) && jvm.process.isAlive())
+                {
+                    idle.remove(jvm);
+                    return jvm;
+                }
+            }
+        }
+        return start(options, directory);
+    }
+
+    /**
+     * Stops all idle JVMs at the end of a build
+     */
+    public void buildFinished()
+    {
+        synchronized (idle)
+        {
+            idle.forEach(TestJvm::stop);
+            idle.clear();
+            started = 0;
+        }
+    }
+
+    /**
+     * Stops a JVM that can't be used any more, because its worker exited or stopped responding
+     */
+    public void discard(final TestJvm jvm)
+    {
+        jvm.process.destroyForcibly();
+    }
+
+    /**
+     * Sets the percentage of the heap in use after garbage collection above which a JVM is recycled
+     */
+    public TestJvmPool maximumHeapUsed(final Percent maximum)
+    {
+        maximumHeapUsed = maximum;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of JVMs to keep waiting for work between modules
+     */
+    public TestJvmPool maximumIdle(final Count maximum)
+    {
+        maximumIdle = maximum;
+        return this;
+    }
+
+    /**
+     * Sets whether JVMs run the tests of any module in the project folder, rather than only those of the module they
+     * were started for in its folder
+     */
+    public TestJvmPool shareAcrossModules(final boolean share)
+    {
+        shareAcrossModules = share;
+        return this;
+    }
+
+    /**
+     * Sets the number of test classes a JVM runs before it is recycled
+     */
+    public TestJvmPool recycleAfter(final Count testClasses)
+    {
+        recycleAfter = testClasses;
+        return this;
+    }
+
+    /**
+     * Returns a JVM to the pool, recycling it if it has run enough tests or is short of memory
+     */
+    public void release(final TestJvm jvm)
+    {
+        // If the JVM has done its share or is short of memory,
+        if (jvm.runs >= recycleAfter.asInt() || jvm.heapUsed >= maximumHeapUsed.asInt())
+        {
+            // stop it, and a new one will be started when it's needed.
+            narrate("Recycling test JVM after $ test classes with $% of its heap in use", jvm.runs, jvm.heapUsed);
+            jvm.stop();
+            return;
+        }
+
+        // Otherwise, keep it for the next test class if there's room.
+        synchronized (idle)
+        {
+            if (idle.size() < maximumIdle.asInt())
+            {
+                idle.add(jvm);
+                return;
+            }
+        }
+        jvm.stop();
+    }
+
+    private TestJvm start(final List<String> options, final Path directory) throws IOException
+    {
+        // Clear the logs of the last build when starting the first JVM of this one,
+        final Path log;
+        synchronized (idle)
+        {
+            final var logFolder = Path.of(logs.path().asString());
+            if (started == 0 && Files.isDirectory(logFolder))
+            {
+                try (final var files = Files.list(logFolder))
+                {
+                    for (final var file : files.collect(Collectors.toList()))
+                    {
+                        Files.delete(file);
+                    }
+                }
+            }
+            Files.createDirectories(logFolder);
+            log = logFolder.resolve("jvm-" + started++ + ".log");
+        }
+
+        // then start the JVM.
+        narrate("Starting test JVM $ in '$'", log.getFileName(), directory);
+        return new TestJvm(options, directory, log);
+    }
+
+    /**
+     * @return The classpath entry holding the {@link TestWorker} class
+     */
+    private Path workerLocation()
+    {
+        try
+        {
+            return Path.of(TestWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch (final Exception e)
+        {
+            throw new IllegalStateException("Unable to locate test worker", e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.telenav.fiasco.plugins.tester;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The main class of a test JVM in a {@link TestJvmPool}. It reads requests to run test classes from standard input, one
+ * per line, runs each with JUnit 4 and writes the results to standard output. Anything the tests themselves print to
+ * standard output goes to standard error instead, so it can't be confused with results.
+ * <p>
+ * Each request names a test class, the module folder, the libraries on the test classpath and the folders holding the
+ * module's classes and resources, so a worker shared between modules knows which module each test class is from:
+ * </p>
+ * <pre>
+ * run &lt;class&gt; &lt;module folder&gt; &lt;libraries&gt; &lt;folders&gt;
+ * </pre>
+ * <p>
+ * Libraries are loaded by a class loader for each module, which the module's test classes share, so JUnit and the
+ * libraries stay warm from one test class to the next, as they would in a Maven fork, while static state in libraries
+ * never leaks from one module to another. Each test class is loaded from the folders by a new
+ * {@link RecordingClassLoader}, which notes every class and resource the test looks for there, so the {@link Tester}
+ * knows which tests a change can affect. It also means that static state in the module's own classes doesn't leak from
+ * one test class to the next. Workers run in the module folder, unless the {@link TestJvmPool} shares them between
+ * modules, and the module folder is also the "basedir" system property.
+ * </p>
+ * <p>
+ * For each test class, the worker writes a "failure" line for each failed test, a "used" line with the paths of the
+ * classes and resources the test looked for, a "heap" line with the percentage of the heap in use after the last
+ * garbage collection, and then a "done" line:
+ * </p>
+ * <pre>
+ * failure &lt;class&gt; &lt;description&gt;
+ * used &lt;class&gt; &lt;path&gt; &lt;path&gt; ...
+ * heap &lt;percent&gt;
+ * done &lt;class&gt; &lt;milliseconds&gt; &lt;tests run&gt; &lt;tests failed&gt; &lt;tests ignored&gt;
+ * </pre>
+ * <p>
+ * Fields are separated by tabs. In a request, the paths in the lists of libraries and folders are separated by the
+ * path separator, while each path in a "used" line is a field of its own. Newlines, tabs and backslashes in
+ * descriptions are escaped. This class only uses the JDK, and JUnit is found by reflection, because the test
+ * classpath isn't Fiasco's.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class TestWorker
+{
+    /**
+     * Loads classes and resources from the module's folders, noting the path of each one that is looked for, whether
+     * or not it's found
+     */
+    static class RecordingClassLoader extends URLClassLoader
+    {
+        static
+        {
+            registerAsParallelCapable();
+        }
+
+        private final Set<String> used = Collections.synchronizedSet(new TreeSet<>());
+
+        RecordingClassLoader(final URL[] roots, final ClassLoader parent)
+        {
+            super(roots, parent);
+        }
+
+        /**
+         * @return The paths of the classes and resources that have been looked for
+         */
+        List<String> used()
+        {
+            synchronized (used)
+            {
+                return List.copyOf(used);
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException
+        {
+            used.add(name.replace('.', '/') + ".class");
+            return super.findClass(name);
+        }
+
+        @Override
+        public URL findResource(final String name)
+        {
+            used.add(name);
+            return super.findResource(name);
+        }
+
+        @Override
+        public Enumeration<URL> findResources(final String name) throws IOException
+        {
+            used.add(name);
+            return super.findResources(name);
+        }
+    }
+
+    /** The number of library class loaders to keep, for workers that run the tests of several modules */
+    private static final int LIBRARY_LOADERS = 4;
+
+    public static void main(final String[] arguments) throws Exception
+    {
+        // Keep standard output for results, sending anything the tests print to standard error,
+        final var results = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        System.setOut(System.err);
+
+        // keep the library class loaders of recently tested modules,
+        final var libraryLoaders = new LinkedHashMap<String, URLClassLoader>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, URLClassLoader> eldest)
+            {
+                if (size() > LIBRARY_LOADERS)
+                {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        // then run each test class we're given.
+        final var in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        for (var line = in.readLine(); line != null; line = in.readLine())
+        {
+            final var fields = line.split("\t", -1);
+            final var className = fields[1];
+            System.setProperty("basedir", fields[2]);
+            final var libraries = libraryLoaders.computeIfAbsent(fields[2] + "\t" + fields[3],
+                    key -> new URLClassLoader(urls(fields[3]), ClassLoader.getPlatformClassLoader()));
+            final var start = System.nanoTime();
+            var run = 0;
+            var failed = 0;
+            var ignored = 0;
+            final var loader = new RecordingClassLoader(urls(fields[4]), libraries);
+            Thread.currentThread().setContextClassLoader(loader);
+            try
+            {
+                final var runClasses = Class.forName("org.junit.runner.JUnitCore", true, libraries).getMethod("runClasses", Class[].class);
+                final var type = Class.forName(className, true, loader);
+                final var result = runClasses.invoke(null, (Object) new Class<?>[] { type });
+                run = (Integer) result.getClass().getMethod("getRunCount").invoke(result);
+                ignored = (Integer) result.getClass().getMethod("getIgnoreCount").invoke(result);
+                final var failures = (List<?>) result.getClass().getMethod("getFailures").invoke(result);
+                failed = failures.size();
+                for (final var failure : failures)
+                {
+                    final var trace = (String) failure.getClass().getMethod("getTrace").invoke(failure);
+                    results.println("failure\t" + className + "\t" + escape(failure + "\n" + trace));
+                }
+            }
+            catch (final ClassNotFoundException e)
+            {
+                failed++;
+                final var missing = e.getMessage().startsWith("org.junit") ? "JUnit 4 is not on the test classpath" : "Unable to find " + className;
+                results.println("failure\t" + className + "\t" + escape(missing));
+            }
+            catch (final Throwable e)
+            {
+                failed++;
+                results.println("failure\t" + className + "\t" + escape("Unable to run " + className + ": " + e));
+            }
+            finally
+            {
+                Thread.currentThread().setContextClassLoader(null);
+                close(loader);
+            }
+            final var used = new StringBuilder("used\t").append(className);
+            loader.used().forEach(path -> used.append('\t').append(path));
+            results.println(used);
+            results.println("heap\t" + heapUsed());
+            final var milliseconds = (System.nanoTime() - start) / 1_000_000;
+            results.println("done\t" + className + "\t" + milliseconds + "\t" + run + "\t" + failed + "\t" + ignored);
+        }
+    }
+
+    /**
+     * @return The given text with backslashes, tabs and newlines escaped so that it fits on one line
+     */
+    static String escape(final String text)
+    {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "");
+    }
+
+    /**
+     * @return The given text with the escapes added by {@link #escape(String)} removed
+     */
+    static String unescape(final String text)
+    {
+        final var builder = new StringBuilder();
+        for (var i = 0; i < text.length(); i++)
+        {
+            final var next = text.charAt(i);
+            if (next == '\\' && i + 1 < text.length())
+            {
+                final var escaped = text.charAt(++i);
+                builder.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+            }
+            else
+            {
+                builder.append(next);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void close(final URLClassLoader loader)
+    {
+        try
+        {
+            loader.close();
+        }
+        catch (final IOException ignored)
+        {
+        }
+    }
+
+    /**
+     * @return The percentage of the maximum heap size that was still in use after the last garbage collection
+     */
+    private static long heapUsed()
+    {
+        var used = 0L;
+        for (final var pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null)
+            {
+                used += pool.getCollectionUsage().getUsed();
+            }
+        }
+        return used * 100 / Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * @return The URLs of the entries in the given path list
+     */
+    private static URL[] urls(final String paths)
+    {
+        return Arrays.stream(paths.split(File.pathSeparator))
+                .filter(path -> !path.isEmpty())
+                .map(path ->
+                {
+                    try
+                    {
+                        return Path.of(path).toUri().toURL();
+                    }
+                    catch (final MalformedURLException e)
+                    {
+                        throw new IllegalArgumentException(path, e);
+                    }
+                })
+                .toArray(URL[]::new);
+    }
+}
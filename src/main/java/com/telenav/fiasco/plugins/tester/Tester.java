@@ -8,22 +8,505 @@
 package com.telenav.fiasco.plugins.tester;
 
 import com.telenav.fiasco.Module;
+import com.telenav.fiasco.plugins.Digest;
 import com.telenav.fiasco.plugins.Plugin;
+import com.telenav.fiasco.plugins.builder.BuildTimings;
+import com.telenav.fiasco.plugins.compiler.ClassFile;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.Folder;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
- * Runs unit tests
+ * Runs unit tests.
+ * <p>
+ * The module's test sources are compiled and the JUnit 4 test classes among them are run in parallel in JVMs from the
+ * project's {@link TestJvmPool}, each running a {@link TestWorker} in the module's folder. The JVMs stay warm from one
+ * test class to the next. Test classes are handed out longest first, using the time each took in earlier builds, and
+ * each fork takes the next class as soon as it's done with the last. The longest classes start first and short ones
+ * fill in the gaps at the end, so all forks finish at around the same time.
+ * </p>
+ * <p>
+ * A test class that runs for longer than the {@link #timeout(Duration)}, which is ten minutes unless it's set, fails,
+ * and the JVM running it is stopped, so the fork goes on with the next class in a new JVM.
+ * </p>
+ * <p>
+ * Test classes are public, concrete, top-level classes with names that start with Test or end with Test or Tests.
+ * Each test failure is reported as a problem, and a report for each test class is written to the test-reports output
+ * folder. Anything the tests print goes to the logs of the pool.
+ * </p>
+ * <p>
+ * Only the test classes affected by changes since they last passed are run. Each fork records the classes and
+ * resources that each test class uses from the module and the modules it requires, and this is kept in
+ * test-impact.state in the output folder (see {@link TestImpact}). A test class runs again if anything it used has
+ * changed, if it's new, or if it failed last time. The reports of test classes that don't need to run are kept from
+ * the run where they passed. All test classes run when the libraries on the test classpath change, or when the project
+ * is built with {@link com.telenav.fiasco.Project#allTests(boolean)}.
+ * </p>
  *
  * @author shibo
  */
 public class Tester extends Plugin
 {
+    /** The names of test classes */
+    private static final Pattern TEST_CLASS = Pattern.compile("(.*/)?(Test[^/]*|[^/]*Tests?)");
+
+    /** The results of running a test class */
+    private static class TestResult
+    {
+        final String className;
+
+        final List<String> failures = new ArrayList<>();
+
+        final Set<String> used = new TreeSet<>();
+
+        long milliseconds;
+
+        int run;
+
+        int failed;
+
+        int ignored;
+
+        TestResult(final String className)
+        {
+            this.className = className;
+        }
+    }
+
+    /** The number of JVMs to run tests in at once */
+    private Count forks = Count.count(Runtime.getRuntime().availableProcessors());
+
+    /** Options for the forked JVMs */
+    private final List<String> jvmOptions = new ArrayList<>();
+
+    /** How long a test class can run before it fails and the JVM running it is stopped */
+    private Duration timeout = Duration.minutes(10);
+
     public Tester(final Module module)
     {
         super(module);
     }
 
+    /**
+     * Sets the maximum number of JVMs to run tests in at once
+     */
+    public Tester forks(final Count forks)
+    {
+        this.forks = forks;
+        return this;
+    }
+
+    /**
+     * Adds options for the forked JVMs, such as -Xmx2g
+     */
+    public Tester jvmOptions(final String... options)
+    {
+        jvmOptions.addAll(List.of(options));
+        return this;
+    }
+
+    /**
+     * Sets how long a test class can run before it fails and the JVM running it is stopped
+     */
+    public Tester timeout(final Duration timeout)
+    {
+        this.timeout = timeout;
+        return this;
+    }
+
+    @Override
+    public List<String> outputs()
+    {
+        return List.of("test-reports", "test-impact.state");
+    }
+
     @Override
     protected void onRun()
     {
+        final var sources = module().testSources();
+        if (sources.isEmpty())
+        {
+            narrate("Module '$' has no tests", module());
+            return;
+        }
+
+        final var testClasses = path(module().outputFolder().folder("test-classes"));
+        final var reports = path(module().outputFolder().folder("test-reports"));
+        delete(testClasses);
+
+        // Compile the tests,
+        final var classpath = new ArrayList<Path>();
+        classpath.add(testClasses);
+        classpath.add(path(module().classesFolder()));
+        classpath.addAll(module().compiler().classpath());
+        if (!compile(sources.asJavaFiles(), testClasses, classpath))
+        {
+            return;
+        }
+
+        // find the test classes, longest running first,
+        final var timings = BuildTimings.load(module().outputFolder().file("test-timings.properties"), this);
+        final var tests = new ArrayList<>(testClasses(testClasses));
+        tests.sort(Comparator.comparing((String test) -> timings.estimate(test)).reversed());
+        if (tests.isEmpty())
+        {
+            narrate("Module '$' has no test classes", module());
+            return;
+        }
+
+        // and select those affected by changes since they last passed.
+        final var roots = roots(classpath);
+        final var libraries = new ArrayList<>(classpath);
+        libraries.removeAll(roots);
+        final var impactFile = module().outputFolder().file("test-impact.state");
+        final var impact = TestImpact.load(impactFile, this);
+        impact.roots(roots);
+        impact.snapshot(module().project().snapshot());
+        impact.retain(tests);
+        final var affected = module().project().allTests() ? tests : impact.affected(tests, stamp(libraries));
+        prepare(reports, tests, affected);
+        if (affected.isEmpty())
+        {
+            information("No test classes of '$' are affected by changes", module());
+            impact.save(impactFile);
+            return;
+        }
+
+        // Run the selected tests in JVMs from the pool,
+        final var queue = new ArrayDeque<>(affected);
+        final var results = new TreeMap<String, TestResult>();
+        final var forkCount = Math.min(forks.asInt(), affected.size());
+        information("Running $ of $ test classes of '$' in $ JVMs", affected.size(), tests.size(), module(), forkCount);
+        final var executor = Threads.threadPool("Tests", Count.count(forkCount));
+        for (var fork = 0; fork < forkCount; fork++)
+        {
+            executor.submit(() -> fork(queue, libraries, roots, results));
+        }
+        executor.shutdown();
+        Threads.await(executor);
+
+        // report the results,
+        report(results, reports, tests.size() - affected.size());
+
+        // and remember what each test class used and how long it took.
+        for (final var result : results.values())
+        {
+            if (result.failed == 0)
+            {
+                impact.passed(result.className, result.used);
+            }
+            else
+            {
+                impact.failed(result.className);
+            }
+            timings.record(result.className, Duration.milliseconds(result.milliseconds));
+        }
+        impact.save(impactFile);
+        timings.save();
+    }
+
+    /**
+     * Compiles the given test sources
+     *
+     * @return True if compilation succeeded
+     */
+    private boolean compile(final List<File> sources, final Path output, final List<Path> classpath)
+    {
+        final var javac = ToolProvider.getSystemJavaCompiler();
+        final var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        try (final var fileManager = javac.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8))
+        {
+            Files.createDirectories(output);
+            final var options = List.of("-d", output.toString(),
+                    "-classpath", classpath.stream().map(Path::toString).collect(Collectors.joining(File.pathSeparator)),
+                    "-encoding", "UTF-8");
+            final var files = fileManager.getJavaFileObjectsFromFiles(sources);
+            final var succeeded = javac.getTask(null, fileManager, diagnostics, options, null, files).call();
+            for (final var diagnostic : diagnostics.getDiagnostics())
+            {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+                {
+                    final var source = diagnostic.getSource() == null ? "" : diagnostic.getSource().getName() + ":" + diagnostic.getLineNumber() + ": ";
+                    problem("$", source + diagnostic.getMessage(null));
+                }
+            }
+            if (!succeeded)
+            {
+                problem("Compilation of tests in '$' failed", module());
+            }
+            return succeeded;
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to compile tests in '$'", module());
+            return false;
+        }
+    }
+
+    private void delete(final Path folder)
+    {
+        if (Files.exists(folder))
+        {
+            try (final var files = Files.walk(folder))
+            {
+                for (final var file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                {
+                    Files.delete(file);
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs test classes from the given queue in JVMs from the pool until the queue is empty. If a JVM exits while
+     * running a test class, or the class takes longer than the timeout, the class fails and the JVM is discarded.
+     */
+    private void fork(final Queue<String> queue, final List<Path> libraries, final List<Path> roots,
+                      final Map<String, TestResult> results)
+    {
+        final var pool = module().project().testJvms();
+        final var folder = path(module().folder());
+        while (true)
+        {
+            // Take the next test class,
+            final String test;
+            synchronized (queue)
+            {
+                test = queue.poll();
+            }
+            if (test == null)
+            {
+                break;
+            }
+
+            // and run it in a JVM from the pool.
+            final var result = new TestResult(test);
+            try
+            {
+                final var jvm = pool.acquire(folder, jvmOptions);
+                final var lines = jvm.run(test, folder, libraries, roots, timeout);
+                if (lines == null)
+                {
+                    result.failed++;
+                    result.failures.add(jvm.timedOut()
+                            ? test + " was stopped after running for longer than " + timeout + " (see " + jvm.log() + ")"
+                            : "The test JVM exited while running " + test + " (see " + jvm.log() + ")");
+                    pool.discard(jvm);
+                }
+                else
+                {
+                    read(lines, result);
+                    pool.release(jvm);
+                }
+            }
+            catch (final IOException e)
+            {
+                result.failed++;
+                result.failures.add("Unable to run " + test + ": " + e);
+            }
+            synchronized (results)
+            {
+                results.put(test, result);
+            }
+        }
+    }
+
+    /**
+     * Reads the results of a test class from the lines written by a worker
+     */
+    private void read(final List<String> lines, final TestResult result)
+    {
+        for (final var line : lines)
+        {
+            final var fields = line.split("\t", -1);
+            switch (fields[0])
+            {
+                case "failure":
+                    result.failures.add(TestWorker.unescape(fields[2]));
+                    break;
+
+                case "used":
+                    result.used.addAll(List.of(fields).subList(2, fields.length));
+                    break;
+
+                case "done":
+                    result.milliseconds = Long.parseLong(fields[2]);
+                    result.run = Integer.parseInt(fields[3]);
+                    result.failed = Integer.parseInt(fields[4]);
+                    result.ignored = Integer.parseInt(fields[5]);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Creates the reports folder, removing the reports of the test classes that are about to run and anything else
+     * that isn't the report of a current test class
+     */
+    private void prepare(final Path reports, final List<String> tests, final List<String> affected)
+    {
+        try
+        {
+            Files.createDirectories(reports);
+            final var current = new HashSet<String>();
+            for (final var test : tests)
+            {
+                current.add(test + ".txt");
+            }
+            for (final var test : affected)
+            {
+                current.remove(test + ".txt");
+            }
+            current.add("summary.txt");
+            try (final var files = Files.list(reports))
+            {
+                for (final var file : files.collect(Collectors.toList()))
+                {
+                    if (!current.contains(file.getFileName().toString()))
+                    {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reports failures as problems and writes a report for each test class and a summary
+     *
+     * @param skipped The number of test classes that didn't need to run
+     */
+    private void report(final Map<String, TestResult> results, final Path reports, final int skipped)
+    {
+        var run = 0;
+        var failed = 0;
+        var ignored = 0;
+        try
+        {
+            for (final var result : results.values())
+            {
+                run += result.run;
+                failed += result.failed;
+                ignored += result.ignored;
+                final var report = new StringBuilder();
+                report.append(result.className).append(": ").append(result.run).append(" run, ")
+                        .append(result.failed).append(" failed, ").append(result.ignored).append(" ignored in ")
+                        .append(result.milliseconds).append(" ms\n");
+                for (final var failure : result.failures)
+                {
+                    report.append('\n').append(failure).append('\n');
+                    problem("Test failed in '$': $", module(), failure);
+                }
+                Files.writeString(reports.resolve(result.className + ".txt"), report);
+            }
+            final var summary = run + " run, " + failed + " failed, " + ignored + " ignored"
+                    + (skipped > 0 ? ", " + skipped + " unaffected test classes skipped" : "");
+            Files.writeString(reports.resolve("summary.txt"), summary + "\n");
+            information("Tests of '$': $", module(), summary);
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to write test reports for '$'", module());
+        }
+    }
+
+    /**
+     * @return The folders that test classes are loaded from by a {@link TestWorker}, so that it can note what each test
+     * uses: the test classes and resources, the module's classes and resources and the classes of modules it requires
+     */
+    private List<Path> roots(final List<Path> classpath)
+    {
+        final var roots = new ArrayList<Path>();
+        roots.add(classpath.get(0));
+        roots.add(path(module().testResourceFolder()));
+        roots.add(classpath.get(1));
+        roots.add(path(module().resourceFolder()));
+        for (final var entry : classpath.subList(2, classpath.size()))
+        {
+            if (Files.isDirectory(entry))
+            {
+                roots.add(entry);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * @return A stamp of the given libraries and the JVM options, which changes if any of them do
+     */
+    private String stamp(final List<Path> libraries)
+    {
+        final var stamp = new StringBuilder(String.join(" ", jvmOptions)).append('\n');
+        for (final var library : libraries)
+        {
+            final var file = library.toFile();
+            stamp.append(library).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
+        }
+        return Digest.sha256(stamp.toString());
+    }
+
+    /**
+     * @return The names of the test classes in the given folder
+     */
+    private List<String> testClasses(final Path folder)
+    {
+        final var tests = new ArrayList<String>();
+        try (final var files = Files.walk(folder))
+        {
+            for (final var file : files.filter(file -> file.toString().endsWith(".class")).collect(Collectors.toList()))
+            {
+                final var classFile = ClassFile.parse(Files.readAllBytes(file));
+                final var name = classFile.name();
+                if (!name.contains("$") && TEST_CLASS.matcher(name).matches() && classFile.isPublic() && !classFile.isAbstract())
+                {
+                    tests.add(name.replace('/', '.'));
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return tests;
+    }
+
+    private Path path(final Folder folder)
+    {
+        return Path.of(folder.path().asString()).toAbsolutePath().normalize();
     }
 }
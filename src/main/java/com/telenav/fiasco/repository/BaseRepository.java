@@ -1,8 +1,193 @@
 package com.telenav.fiasco.repository;
 
+import com.telenav.fiasco.Library;
 import com.telenav.fiasco.Repository;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.kivakit.core.collections.list.ObjectList;
 import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class for repositories in standard Maven layout, which find the dependencies of a library by reading its POM
+ * file, along with any parent POMs and imported bills of materials it refers to, which are looked for in this
+ * repository unless a {@link Pom.Loader} that looks elsewhere is given. Subclasses only need to say how to
+ * {@link #open(String)} a file at a given path in the layout.
+ * <p>
+ * Since many artifacts share the same parent POMs, parents are only read once.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
 public abstract class BaseRepository extends BaseRepeater implements Repository
 {
+    /**
+     * @return The path of the given artifact's file with the given extension in Maven layout, like
+     * com/google/guava/guava/31.1-jre/guava-31.1-jre.jar
+     */
+    protected static String path(final String group, final String artifact, final String version, final String extension)
+    {
+        return group.replace('.', '/') + "/" + artifact + "/" + version + "/" + artifact + "-" + version + "." + extension;
+    }
+
+    /**
+     * @return A path next to the given file, for writing the file before moving it into place
+     */
+    protected static Path temporary(final Path file)
+    {
+        return file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".part");
+    }
+
+    /** The POMs that other POMs have referred to, by coordinates */
+    private final Map<String, Optional<Pom>> poms = new ConcurrentHashMap<>();
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return The libraries that the given library needs at runtime, or null if the library isn't in this repository
+     * @throws UncheckedIOException If the library's POM, or a POM it refers to, can't be read
+     */
+    @Override
+    public ObjectList<Library> dependencies(final Library library)
+    {
+        return dependencies(library, this::pom);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return The libraries that the given library needs at runtime, or null if the library isn't in this repository
+     * @throws UncheckedIOException If the library's POM, or a POM it refers to, can't be read, so a failure to read
+     * the repository is never taken for the library not being in it
+     */
+    @Override
+    public ObjectList<Library> dependencies(final Library library, final Pom.Loader loader)
+    {
+        final var artifact = library.artifact();
+        try
+        {
+            // Read the library's POM,
+            final var bytes = read(path(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), "pom"));
+            if (bytes == null)
+            {
+                return null;
+            }
+
+            // then merge in its parents and imports, and return the libraries it needs.
+            return ObjectList.objectList(Pom.parse(bytes).effective(loader).libraries());
+        }
+        catch (final IOException e)
+        {
+            throw new UncheckedIOException("Unable to read the POM of " + artifact + " from " + this, e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The versions are read from the artifact's maven-metadata.xml file.
+     * </p>
+     */
+    @Override
+    public List<String> versions(final Artifact artifact)
+    {
+        final var path = artifact.group().toString().replace('.', '/') + "/" + artifact.identifier() + "/maven-metadata.xml";
+        try
+        {
+            final var metadata = read(path);
+            return metadata == null ? List.of() : Pom.versions(metadata);
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to read the versions of '$' from $", artifact.withoutVersion(), this);
+            return List.of();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The POMs that were read are forgotten.
+     * </p>
+     */
+    @Override
+    public void refresh()
+    {
+        poms.clear();
+    }
+
+    /**
+     * Deletes the given file or folder and everything in it
+     *
+     * @return True if there was anything to delete
+     */
+    protected boolean delete(final Path path)
+    {
+        if (!Files.exists(path))
+        {
+            return false;
+        }
+        try (final var paths = Files.walk(path))
+        {
+            for (final var next : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.deleteIfExists(next);
+            }
+            return true;
+        }
+        catch (final IOException | UncheckedIOException e)
+        {
+            problem(e, "Unable to delete '$'", path);
+            return false;
+        }
+    }
+
+    /**
+     * @return A stream of the file at the given path in Maven layout, or null if there is no such file
+     * @throws IOException If the file exists but can't be opened
+     */
+    protected abstract InputStream open(String path) throws IOException;
+
+    /**
+     * @return The contents of the file at the given path in Maven layout, or null if there is no such file
+     * @throws IOException If the file exists but can't be read
+     */
+    protected byte[] read(final String path) throws IOException
+    {
+        try (final var in = open(path))
+        {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each POM is read only the first time it's asked for.
+     * </p>
+     */
+    @Override
+    public Pom pom(final String group, final String artifact, final String version) throws IOException
+    {
+        final var key = group + ":" + artifact + ":" + version;
+        final var cached = poms.get(key);
+        if (cached != null)
+        {
+            return cached.orElse(null);
+        }
+        final var bytes = read(path(group, artifact, version, "pom"));
+        final var pom = bytes == null ? null : Pom.parse(bytes);
+        poms.put(key, Optional.ofNullable(pom));
+        return pom;
+    }
 }
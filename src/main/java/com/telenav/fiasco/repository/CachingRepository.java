@@ -0,0 +1,437 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.Repository;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.fiasco.repository.artifact.Group;
+import com.telenav.kivakit.core.collections.list.ObjectList;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.time.Duration;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the dependencies of libraries in another repository, so they don't have to be read and worked out from POM
+ * files again, and remembers for a while which libraries the repository doesn't have, so it isn't asked again.
+ * <p>
+ * The dependencies of the most recently used libraries are kept in memory, up to a maximum number of libraries. All of
+ * the dependencies ever found, and the misses that haven't expired, are kept in an index file in a compact binary form,
+ * which is read when the cache is created and written by {@link #save()}. Since a released library never changes, its
+ * dependencies are kept until the library is installed or removed, but a library that isn't in the repository is only
+ * remembered as missing for a day by default, since it may be deployed later. Snapshot versions are never cached, and
+ * nothing is cached when the repository can't be read, so a timeout or server error doesn't hide a library.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class CachingRepository extends BaseRepeater implements Repository
+{
+    /** The first bytes of an index file, and its format version */
+    private static final int MAGIC = 0x46434931;
+
+    /** The repository being cached */
+    private final Repository repository;
+
+    /** The file the index is kept in */
+    private final File index;
+
+    /** The encoded dependencies of every library found, by coordinates */
+    private final Map<String, byte[]> found = new ConcurrentHashMap<>();
+
+    /** The time each library that wasn't found can be looked for again, by coordinates */
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+
+    /** The decoded dependencies of recently used libraries, from least to most recently used */
+    private final LinkedHashMap<String, List<Library>> recent = new LinkedHashMap<>(256, 0.75f, true);
+
+    /** The most libraries to keep decoded dependencies in memory for */
+    private Count maximum = Count.count(10_000);
+
+    /** How long to remember that a library isn't in the repository */
+    private Duration missingFor = Duration.ONE_DAY;
+
+    /** True if the index has changed since it was read or saved */
+    private volatile boolean changed;
+
+    /**
+     * @param repository The repository to cache
+     * @param index The file to keep the index in
+     */
+    public CachingRepository(final Repository repository, final File index)
+    {
+        this.repository = repository;
+        this.index = index;
+        load();
+    }
+
+    @Override
+    public ObjectList<Library> dependencies(final Library library)
+    {
+        return dependencies(library, repository::pom);
+    }
+
+    @Override
+    public ObjectList<Library> dependencies(final Library library, final Pom.Loader loader)
+    {
+        // Snapshots can change, so they aren't cached,
+        final var key = library.artifact().name();
+        final var version = library.artifact().versionText();
+        if (version == null || version.endsWith("-SNAPSHOT"))
+        {
+            return repository.dependencies(library, loader);
+        }
+
+        // and otherwise, if the dependencies are in memory or in the index, copy them,
+        final var cached = cached(key);
+        if (cached != null)
+        {
+            return copy(cached);
+        }
+
+        // or if the library was missing not long ago, it's still missing.
+        final var retry = missing.get(key);
+        if (retry != null && retry > System.currentTimeMillis())
+        {
+            return null;
+        }
+
+        // Otherwise, ask the repository, which throws rather than returning null if it can't be read, so only a
+        // library that really isn't there is remembered as missing,
+        final var dependencies = repository.dependencies(library, loader);
+        if (dependencies == null)
+        {
+            // noting when to ask again if it doesn't have the library,
+            missing.put(key, System.currentTimeMillis() + missingFor.milliseconds());
+        }
+        else
+        {
+            // and keeping the dependencies if it does.
+            found.put(key, encode(dependencies));
+            missing.remove(key);
+            remember(key, dependencies);
+        }
+        changed = true;
+        return dependencies == null ? null : copy(dependencies);
+    }
+
+    @Override
+    public void install(final Library library)
+    {
+        repository.install(library);
+        forget(library);
+    }
+
+    /**
+     * Sets the most libraries to keep decoded dependencies in memory for
+     */
+    public CachingRepository maximum(final Count maximum)
+    {
+        this.maximum = maximum;
+        return this;
+    }
+
+    /**
+     * Sets how long to remember that a library isn't in the repository
+     */
+    public CachingRepository missingFor(final Duration missingFor)
+    {
+        this.missingFor = missingFor;
+        return this;
+    }
+
+    @Override
+    public Pom pom(final String group, final String artifact, final String version) throws IOException
+    {
+        return repository.pom(group, artifact, version);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The libraries remembered as missing are looked for again. The dependencies of libraries that were found are
+     * kept, since they never change.
+     * </p>
+     */
+    @Override
+    public void refresh()
+    {
+        missing.clear();
+        changed = true;
+        repository.refresh();
+    }
+
+    @Override
+    public boolean remove(final Library library)
+    {
+        forget(library);
+        return repository.remove(library);
+    }
+
+    @Override
+    public boolean removeAll()
+    {
+        found.clear();
+        missing.clear();
+        synchronized (recent)
+        {
+            recent.clear();
+        }
+        changed = true;
+        return repository.removeAll();
+    }
+
+    /**
+     * Writes the index to its file if it has changed, leaving out misses that have expired
+     */
+    public synchronized void save()
+    {
+        if (!changed)
+        {
+            return;
+        }
+        changed = false;
+        final var file = Path.of(index.path().asString());
+        try
+        {
+            // Write the index to a temporary file,
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            final var temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".part");
+            try
+            {
+                try (final var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+                {
+                    out.writeInt(MAGIC);
+                    out.writeInt(found.size());
+                    for (final var entry : found.entrySet())
+                    {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue().length);
+                        out.write(entry.getValue());
+                    }
+                    final var now = System.currentTimeMillis();
+                    missing.values().removeIf(retry -> retry <= now);
+                    final var misses = new LinkedHashMap<>(missing);
+                    out.writeInt(misses.size());
+                    for (final var entry : misses.entrySet())
+                    {
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(entry.getValue());
+                    }
+                }
+
+                // and move it into place.
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        catch (final IOException e)
+        {
+            changed = true;
+            warning(e, "Unable to save repository index '$'", index);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return repository.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Since new versions may be deployed at any time, versions aren't cached.
+     * </p>
+     */
+    @Override
+    public List<String> versions(final Artifact artifact)
+    {
+        return repository.versions(artifact);
+    }
+
+    /**
+     * @return The dependencies of the library with the given coordinates, if they're in memory or in the index
+     */
+    private List<Library> cached(final String key)
+    {
+        synchronized (recent)
+        {
+            final var dependencies = recent.get(key);
+            if (dependencies != null)
+            {
+                return dependencies;
+            }
+        }
+        final var encoded = found.get(key);
+        if (encoded != null)
+        {
+            try
+            {
+                final var dependencies = decode(encoded);
+                remember(key, dependencies);
+                return dependencies;
+            }
+            catch (final IOException e)
+            {
+                warning(e, "Ignoring unreadable entry for '$' in '$'", key, index);
+                found.remove(key);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Copies of the given libraries, so the libraries kept in the cache are never shared
+     */
+    private ObjectList<Library> copy(final List<Library> libraries)
+    {
+        final var copies = new ArrayList<Library>();
+        for (final var library : libraries)
+        {
+            final var copy = new Library(library.artifact());
+            library.exclusionPatterns().forEach(copy::excluding);
+            copies.add(copy);
+        }
+        return ObjectList.objectList(copies);
+    }
+
+    private List<Library> decode(final byte[] encoded) throws IOException
+    {
+        final var in = new DataInputStream(new ByteArrayInputStream(encoded));
+        final var count = in.readUnsignedShort();
+        final var libraries = new ArrayList<Library>(count);
+        for (var index = 0; index < count; index++)
+        {
+            final var group = new Group(in.readUTF());
+            final var identifier = new Artifact.Identifier(in.readUTF());
+            final var library = new Library(new Artifact(group, identifier, in.readUTF()));
+            final var exclusions = in.readUnsignedShort();
+            for (var exclusion = 0; exclusion < exclusions; exclusion++)
+            {
+                library.excluding(new LibraryPattern(in.readUTF(), in.readUTF()));
+            }
+            libraries.add(library);
+        }
+        return libraries;
+    }
+
+    /**
+     * @return The given libraries, with their exclusions, in the compact form kept in the index
+     */
+    private byte[] encode(final List<Library> libraries)
+    {
+        try
+        {
+            final var bytes = new ByteArrayOutputStream();
+            final var out = new DataOutputStream(bytes);
+            out.writeShort(libraries.size());
+            for (final var library : libraries)
+            {
+                final var artifact = library.artifact();
+                out.writeUTF(artifact.group().toString());
+                out.writeUTF(artifact.identifier().toString());
+                out.writeUTF(artifact.versionText());
+                out.writeShort(library.exclusionPatterns().size());
+                for (final var pattern : library.exclusionPatterns())
+                {
+                    final var text = pattern.toString();
+                    out.writeUTF(text.substring(0, text.indexOf(':')));
+                    out.writeUTF(text.substring(text.indexOf(':') + 1));
+                }
+            }
+            return bytes.toByteArray();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Forgets anything cached for the given library
+     */
+    private void forget(final Library library)
+    {
+        final var key = library.artifact().name();
+        found.remove(key);
+        missing.remove(key);
+        synchronized (recent)
+        {
+            recent.remove(key);
+        }
+        changed = true;
+    }
+
+    /**
+     * Reads the index, if there is one
+     */
+    private void load()
+    {
+        final var file = Path.of(index.path().asString());
+        if (!Files.exists(file))
+        {
+            return;
+        }
+        try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                warning("Ignoring repository index '$', which is in an unknown format", index);
+                return;
+            }
+            for (var count = in.readInt(); count > 0; count--)
+            {
+                final var key = in.readUTF();
+                final var encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                found.put(key, encoded);
+            }
+            for (var count = in.readInt(); count > 0; count--)
+            {
+                missing.put(in.readUTF(), in.readLong());
+            }
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Ignoring unreadable repository index '$'", index);
+            found.clear();
+            missing.clear();
+        }
+    }
+
+    /**
+     * Keeps the given dependencies in memory, forgetting the least recently used if there are too many
+     */
+    private void remember(final String key, final List<Library> dependencies)
+    {
+        synchronized (recent)
+        {
+            recent.put(key, dependencies);
+            if (recent.size() > maximum.asInt())
+            {
+                final var eldest = recent.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+}
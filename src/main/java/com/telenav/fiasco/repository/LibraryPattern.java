@@ -4,13 +4,48 @@ import com.telenav.fiasco.Library;
 import com.telenav.kivakit.interfaces.comparison.Matcher;
 
 /**
+ * Matches libraries by group and identifier, like org.slf4j:slf4j-api, where either may be * to match any group or any
+ * identifier. This is the form of the exclusions in a POM.
+ *
  * @author jonathanl (shibo)
  */
 public class LibraryPattern implements Matcher<Library>
 {
+    /** Matches any group or identifier */
+    private static final String ANY = "*";
+
+    /**
+     * @return The pattern group:identifier, or null if the given text isn't one
+     */
+    public static LibraryPattern parse(final String pattern)
+    {
+        final var colon = pattern.indexOf(':');
+        return colon < 0 ? null : new LibraryPattern(pattern.substring(0, colon), pattern.substring(colon + 1));
+    }
+
+    /** The group to match */
+    private final String group;
+
+    /** The identifier to match */
+    private final String identifier;
+
+    public LibraryPattern(final String group, final String identifier)
+    {
+        this.group = group;
+        this.identifier = identifier;
+    }
+
     @Override
     public boolean matches(final Library library)
     {
-        return false;
+        final var artifact = library.artifact();
+        return (group.equals(ANY) || group.equals(artifact.group().toString()))
+                && (identifier.equals(ANY) || identifier.equals(artifact.identifier().toString()));
+    }
+
+    @Override
+    public String toString()
+    {
+        return group + ":" + identifier;
     }
 }
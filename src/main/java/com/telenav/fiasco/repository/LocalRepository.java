@@ -1,31 +1,377 @@
 package com.telenav.fiasco.repository;
 
 import com.telenav.fiasco.Library;
-import com.telenav.kivakit.core.collections.list.ObjectList;
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.kivakit.filesystem.File;
+import com.telenav.kivakit.filesystem.Folder;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A repository on the local disk, in standard Maven layout, like the user's ~/.m2/repository, which Maven can share.
+ * <p>
+ * Whether the repository has a POM or jar, and which versions of an artifact it has, is answered from a
+ * {@link RepositoryIndex} rather than by looking at the disk, which matters for a repository with hundreds of thousands
+ * of files. Files are installed by writing them next to where they belong and then moving them into place, along with
+ * their SHA-1 checksums, so a build reading the repository never sees part of a file. A file that's already installed
+ * with the same checksum isn't written again.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
 public class LocalRepository extends BaseRepository
 {
+    /** The contents of a file to install, which can be read more than once */
+    private interface Contents
+    {
+        InputStream open() throws IOException;
+    }
+
+    /** The root folder of this repository */
+    private final Folder folder;
+
+    /** The root folder, as a path */
+    private final Path root;
+
+    /** The index of the POMs and jars in this repository */
+    private final RepositoryIndex index;
+
+    /**
+     * A local repository in the user's ~/.m2/repository folder
+     */
+    public LocalRepository()
+    {
+        this(Folder.userHome().folder(".m2/repository"));
+    }
+
+    /**
+     * @param folder The root folder of the repository
+     */
+    public LocalRepository(final Folder folder)
+    {
+        this.folder = folder;
+        root = Path.of(folder.path().asString()).toAbsolutePath().normalize();
+        index = RepositoryIndex.index(root, this);
+    }
+
+    /**
+     * @return True if this repository has the given artifact's file with the given extension
+     */
+    public boolean contains(final Artifact artifact, final String extension)
+    {
+        return artifact.versionText() != null
+                && index.contains(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), extension);
+    }
+
+    /**
+     * @return True if this repository's index has the given artifact's jar and it's on disk. If something else deleted
+     * the jar, the artifact's version is removed from the index, and is looked for on disk again when it's next needed.
+     */
+    public boolean containsJar(final Artifact artifact)
+    {
+        if (!contains(artifact, "jar"))
+        {
+            return false;
+        }
+        if (!Files.exists(root.resolve(path(artifact, "jar"))))
+        {
+            index.removed(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The root folder of this repository
+     */
+    public Folder folder()
+    {
+        return folder;
+    }
+
+    /**
+     * Installs a POM for the given library, listing the libraries it depends on. The library's jar is installed with
+     * {@link #install(Artifact, String, Path)}.
+     */
     @Override
-    public ObjectList<Library> dependencies(Library library)
+    public void install(final Library library)
+    {
+        final var artifact = library.artifact();
+        if (artifact.versionText() == null)
+        {
+            problem("Cannot install '$', which has no version", artifact);
+            return;
+        }
+        final var pom = pom(library).getBytes(StandardCharsets.UTF_8);
+        write(artifact, "pom", () -> new ByteArrayInputStream(pom));
+    }
+
+    /**
+     * Installs the given file as the given artifact's file with the given extension, replacing any different file
+     * that's there
+     *
+     * @return True if the file is installed
+     */
+    public boolean install(final Artifact artifact, final String extension, final Path file)
     {
-        return null;
+        return write(artifact, extension, () -> Files.newInputStream(file));
     }
 
+    /**
+     * @return The jar file for the given artifact in this repository, which may not exist
+     */
+    public File jar(final Artifact artifact)
+    {
+        return File.file(root.resolve(path(artifact, "jar")).toFile());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The index looks on disk again for files that weren't there, and reads what other processes have added to it.
+     * </p>
+     */
     @Override
-    public void install(Library library)
+    public void refresh()
     {
+        super.refresh();
+        index.refresh();
+    }
 
+    /**
+     * Walks the repository to build its index again, which picks up any files that were deleted by other tools
+     */
+    public LocalRepository reindex()
+    {
+        index.rebuild();
+        return this;
     }
 
     @Override
-    public boolean remove(Library library)
+    public boolean remove(final Library library)
     {
-        return false;
+        // Delete the folder of the library's version,
+        final var artifact = library.artifact();
+        if (artifact.versionText() == null)
+        {
+            return false;
+        }
+        final var removed = delete(root.resolve(path(artifact, "pom")).getParent());
+
+        // and forget it.
+        index.removed(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText());
+        return removed;
     }
 
     @Override
     public boolean removeAll()
     {
-        return false;
+        // Delete everything in the repository,
+        var removed = true;
+        try (final var children = Files.list(root))
+        {
+            for (final var child : (Iterable<Path>) children::iterator)
+            {
+                removed &= delete(child);
+            }
+        }
+        catch (final NoSuchFileException e)
+        {
+            // There's nothing to remove.
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to list '$'", root);
+            removed = false;
+        }
+
+        // and start a new index.
+        index.rebuild();
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The versions are those in this repository's index.
+     * </p>
+     */
+    @Override
+    public List<String> versions(final Artifact artifact)
+    {
+        return new ArrayList<>(index.versions(artifact.group().toString(), artifact.identifier().toString()));
+    }
+
+    @Override
+    public String toString()
+    {
+        return folder.toString();
+    }
+
+    @Override
+    protected InputStream open(final String path) throws IOException
+    {
+        if (!index.contains(path))
+        {
+            return null;
+        }
+        try
+        {
+            return Files.newInputStream(root.resolve(path));
+        }
+        catch (final NoSuchFileException e)
+        {
+            return null;
+        }
+    }
+
+    private String escape(final String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * @return The SHA-1 checksum of the given installed file, from its checksum file if it has one, or null if the
+     * file isn't installed
+     */
+    private String installed(final Path target) throws IOException
+    {
+        if (!Files.exists(target))
+        {
+            return null;
+        }
+        final var checksum = Path.of(target + ".sha1");
+        if (Files.exists(checksum))
+        {
+            return Files.readString(checksum, StandardCharsets.US_ASCII).trim();
+        }
+        return sha1(() -> Files.newInputStream(target));
+    }
+
+    private String path(final Artifact artifact, final String extension)
+    {
+        return path(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), extension);
+    }
+
+    /**
+     * @return A POM for the given library, listing the libraries it depends on and what they exclude
+     */
+    private String pom(final Library library)
+    {
+        final var pom = new StringBuilder();
+        final var artifact = library.artifact();
+        pom.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n")
+                .append("  <modelVersion>4.0.0</modelVersion>\n")
+                .append("  <groupId>").append(escape(artifact.group().toString())).append("</groupId>\n")
+                .append("  <artifactId>").append(escape(artifact.identifier().toString())).append("</artifactId>\n")
+                .append("  <version>").append(escape(artifact.versionText())).append("</version>\n");
+        final var dependencies = library.dependencies();
+        if (!dependencies.isEmpty())
+        {
+            pom.append("  <dependencies>\n");
+            for (final var dependency : dependencies)
+            {
+                final var needed = dependency.artifact();
+                pom.append("    <dependency>\n")
+                        .append("      <groupId>").append(escape(needed.group().toString())).append("</groupId>\n")
+                        .append("      <artifactId>").append(escape(needed.identifier().toString())).append("</artifactId>\n")
+                        .append("      <version>").append(escape(needed.versionText())).append("</version>\n");
+                if (!dependency.exclusionPatterns().isEmpty())
+                {
+                    pom.append("      <exclusions>\n");
+                    for (final var pattern : dependency.exclusionPatterns())
+                    {
+                        final var text = pattern.toString();
+                        pom.append("        <exclusion>\n")
+                                .append("          <groupId>").append(escape(text.substring(0, text.indexOf(':')))).append("</groupId>\n")
+                                .append("          <artifactId>").append(escape(text.substring(text.indexOf(':') + 1))).append("</artifactId>\n")
+                                .append("        </exclusion>\n");
+                    }
+                    pom.append("      </exclusions>\n");
+                }
+                pom.append("    </dependency>\n");
+            }
+            pom.append("  </dependencies>\n");
+        }
+        return pom.append("</project>\n").toString();
+    }
+
+    /**
+     * @return The SHA-1 checksum of the given contents
+     */
+    private String sha1(final Contents contents) throws IOException
+    {
+        try (final var in = new DigestInputStream(contents.open(), Digest.sha1()))
+        {
+            in.transferTo(OutputStream.nullOutputStream());
+            return Digest.hexadecimal(in.getMessageDigest().digest());
+        }
+    }
+
+    /**
+     * Writes the given artifact's file with the given extension and its SHA-1 checksum, and adds it to the index,
+     * unless the file is already installed with the same checksum
+     *
+     * @return True if the file is installed
+     */
+    private boolean write(final Artifact artifact, final String extension, final Contents contents)
+    {
+        final var target = root.resolve(path(artifact, extension));
+        try
+        {
+            // If the same file is already installed, there's nothing to write,
+            final var sha1 = sha1(contents);
+            if (sha1.equals(installed(target)))
+            {
+                index.added(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), extension);
+                narrate("'$' is already installed in $", target.getFileName(), this);
+                return true;
+            }
+
+            // otherwise, write the checksum and then the file next to where they belong,
+            Files.createDirectories(target.getParent());
+            final var checksum = temporary(target);
+            final var temporary = temporary(target);
+            try
+            {
+                Files.writeString(checksum, sha1, StandardCharsets.US_ASCII);
+                try (final var in = contents.open())
+                {
+                    Files.copy(in, temporary);
+                }
+
+                // and move them into place,
+                Files.move(checksum, Path.of(target + ".sha1"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally
+            {
+                Files.deleteIfExists(checksum);
+                Files.deleteIfExists(temporary);
+            }
+
+            // then add the file to the index.
+            index.added(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), extension);
+            information("Installed '$' in $", target.getFileName(), this);
+            return true;
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to install '$'", target);
+            return false;
+        }
     }
 }
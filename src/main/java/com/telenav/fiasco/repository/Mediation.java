@@ -0,0 +1,251 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.repository.artifact.VersionRange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The versions of libraries chosen by a {@link VersionMediator}, and a {@link Decision} for each library that was asked
+ * for in more than one version, or with a range, saying which version was chosen, why, and who asked for which.
+ * <p>
+ * The chosen libraries are copies that depend on the chosen versions of their dependencies, so the graph of each
+ * chosen library is the graph this mediation chose. Since they're copies, the libraries that were asked for, which
+ * other resolutions and modules share, are never changed.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class Mediation
+{
+    /**
+     * A request for a version of a library
+     */
+    public static class Request
+    {
+        private final Library library;
+
+        private final Library requestedBy;
+
+        private final int depth;
+
+        private final VersionRange range;
+
+        Request(final Library library, final Library requestedBy, final int depth, final VersionRange range)
+        {
+            this.library = library;
+            this.requestedBy = requestedBy;
+            this.depth = depth;
+            this.range = range;
+        }
+
+        /**
+         * @return The depth of the request, which is zero for a declared library
+         */
+        public int depth()
+        {
+            return depth;
+        }
+
+        /**
+         * @return The version of the library that was asked for
+         */
+        public Library library()
+        {
+            return library;
+        }
+
+        /**
+         * @return The range the library was asked for with, or null if it was asked for with a version
+         */
+        public VersionRange range()
+        {
+            return range;
+        }
+
+        /**
+         * @return The library that asked for the library, or null if it was declared
+         */
+        public Library requestedBy()
+        {
+            return requestedBy;
+        }
+
+        @Override
+        public String toString()
+        {
+            return library.artifact().versionText()
+                    + (range == null ? "" : " for " + range)
+                    + (requestedBy == null ? " declared" : " by " + requestedBy + " at depth " + depth);
+        }
+    }
+
+    /**
+     * The choice of a version of a library
+     */
+    public static class Decision
+    {
+        private final String artifact;
+
+        private final Library chosen;
+
+        private final String reason;
+
+        private final boolean conflict;
+
+        private final List<Request> requests;
+
+        Decision(final String artifact, final Library chosen, final String reason, final boolean conflict, final List<Request> requests)
+        {
+            this.artifact = artifact;
+            this.chosen = chosen;
+            this.reason = reason;
+            this.conflict = conflict;
+            this.requests = requests;
+        }
+
+        /**
+         * @return The group:artifact of the library
+         */
+        public String artifact()
+        {
+            return artifact;
+        }
+
+        /**
+         * @return The chosen version of the library
+         */
+        public Library chosen()
+        {
+            return chosen;
+        }
+
+        /**
+         * @return True if no version asked for was in every range the library was asked for with
+         */
+        public boolean isConflict()
+        {
+            return conflict;
+        }
+
+        /**
+         * @return Why the version was chosen
+         */
+        public String reason()
+        {
+            return reason;
+        }
+
+        /**
+         * @return Every request for a version of the library, in the order they were made
+         */
+        public List<Request> requests()
+        {
+            return Collections.unmodifiableList(requests);
+        }
+
+        @Override
+        public String toString()
+        {
+            final var requested = new StringBuilder();
+            for (final var request : requests)
+            {
+                requested.append(requested.length() == 0 ? "" : ", ").append(request);
+            }
+            return artifact + ":" + chosen.artifact().versionText() + " (" + reason + ") from " + requested;
+        }
+    }
+
+    /** The strategy the versions were chosen with */
+    private final VersionMediator.Strategy strategy;
+
+    /** The chosen version of each library, by group:artifact, in the order they were reached */
+    private final Map<String, Library> chosen = new LinkedHashMap<>();
+
+    /** The decisions made */
+    private final List<Decision> decisions;
+
+    /**
+     * @param chosen The chosen version of each library, by group:artifact, in the order they were reached
+     * @param dependencies The chosen dependencies of each chosen library, which don't form any cycles
+     */
+    Mediation(final VersionMediator.Strategy strategy, final Map<String, Library> chosen, final Map<Library, List<Library>> dependencies, final List<Decision> decisions)
+    {
+        this.strategy = strategy;
+        this.decisions = decisions;
+        final var copies = new IdentityHashMap<Library, Library>();
+        chosen.forEach((artifact, library) -> this.chosen.put(artifact, copy(library, dependencies, copies)));
+    }
+
+    /**
+     * @return The chosen version of each library, by group:artifact, in the order they were reached from the roots
+     */
+    public Map<String, Library> chosen()
+    {
+        return Collections.unmodifiableMap(chosen);
+    }
+
+    /**
+     * @return The chosen version of the given library, or null if the library wasn't reached
+     */
+    public Library chosen(final Library library)
+    {
+        return chosen.get(library.artifact().withoutVersion());
+    }
+
+    /**
+     * @return The decision made for each library that was asked for in more than one version, or with a range
+     */
+    public List<Decision> decisions()
+    {
+        return Collections.unmodifiableList(decisions);
+    }
+
+    /**
+     * @return A report of every decision, one to a line
+     */
+    public String report()
+    {
+        final var report = new StringBuilder();
+        decisions.forEach(decision -> report.append(decision).append('\n'));
+        return report.toString();
+    }
+
+    /**
+     * @return The strategy the versions were chosen with
+     */
+    public VersionMediator.Strategy strategy()
+    {
+        return strategy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return chosen.size() + " libraries chosen " + strategy.name().toLowerCase() + " first, with " + decisions.size() + " decisions";
+    }
+
+    /**
+     * @return A copy of the given library that depends on copies of its chosen dependencies, made only once
+     */
+    private Library copy(final Library library, final Map<Library, List<Library>> dependencies, final Map<Library, Library> copies)
+    {
+        var copy = copies.get(library);
+        if (copy == null)
+        {
+            final var children = new ArrayList<Library>();
+            for (final var child : dependencies.getOrDefault(library, List.of()))
+            {
+                children.add(copy(child, dependencies, copies));
+            }
+            copy = new Library(library, children);
+            copies.put(library, copy);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,487 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.fiasco.repository.artifact.Group;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A Maven project object model, with just enough of it to find the libraries an artifact depends on: its coordinates,
+ * its parent, its properties, its managed dependency versions and its dependencies.
+ * <p>
+ * A POM as it's read is usually incomplete, since versions and other values come from parent POMs, properties and
+ * imported bills of materials. {@link #effective(Loader)} merges those in, the way Maven does, and
+ * {@link #libraries()} then gives the libraries that are needed at runtime.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class Pom
+{
+    /** The deepest chain of parents or imports that will be followed */
+    private static final int MAXIMUM_DEPTH = 32;
+
+    /** A property reference, like ${project.version} */
+    private static final Pattern PROPERTY = Pattern.compile("\\$\\{([^}]+)}");
+
+    /**
+     * @return The POM in the given bytes
+     * @throws IOException If the bytes aren't a POM
+     */
+    public static Pom parse(final byte[] bytes) throws IOException
+    {
+        try
+        {
+            // Parse the XML,
+            final var project = document(bytes);
+
+            // then read the coordinates, parent and properties,
+            final var pom = new Pom();
+            pom.groupId = text(project, "groupId");
+            pom.artifactId = text(project, "artifactId");
+            pom.version = text(project, "version");
+            pom.packaging = text(project, "packaging");
+            final var parent = child(project, "parent");
+            if (parent != null)
+            {
+                pom.parent = new Dependency(text(parent, "groupId"), text(parent, "artifactId"), text(parent, "version"));
+            }
+            final var properties = child(project, "properties");
+            if (properties != null)
+            {
+                for (final var property : children(properties))
+                {
+                    pom.properties.put(property.getTagName(), property.getTextContent().trim());
+                }
+            }
+
+            // and the managed and declared dependencies.
+            final var management = child(project, "dependencyManagement");
+            pom.managed.addAll(dependencies(management == null ? null : child(management, "dependencies")));
+            pom.dependencies.addAll(dependencies(child(project, "dependencies")));
+            return pom;
+        }
+        catch (final ParserConfigurationException | SAXException e)
+        {
+            throw new IOException("Invalid POM", e);
+        }
+    }
+
+    /**
+     * @return The versions listed in the given maven-metadata.xml file of an artifact
+     * @throws IOException If the bytes aren't valid XML
+     */
+    public static List<String> versions(final byte[] metadata) throws IOException
+    {
+        try
+        {
+            final var versions = new ArrayList<String>();
+            final var versioning = child(document(metadata), "versioning");
+            final var listed = versioning == null ? null : child(versioning, "versions");
+            if (listed != null)
+            {
+                for (final var version : children(listed))
+                {
+                    versions.add(version.getTextContent().trim());
+                }
+            }
+            return versions;
+        }
+        catch (final ParserConfigurationException | SAXException e)
+        {
+            throw new IOException("Invalid metadata", e);
+        }
+    }
+
+    /**
+     * Loads the POMs that a POM refers to, like its parent
+     */
+    public interface Loader
+    {
+        /**
+         * @return The POM of the given artifact, as it was read, or null if there is none
+         */
+        Pom load(String groupId, String artifactId, String version) throws IOException;
+    }
+
+    /**
+     * A dependency, managed dependency or parent in a POM
+     */
+    public static class Dependency
+    {
+        String groupId;
+
+        String artifactId;
+
+        String version;
+
+        String scope;
+
+        String type;
+
+        String classifier;
+
+        String optional;
+
+        /** The excluded libraries, as {@link LibraryPattern}s */
+        final List<String> exclusions = new ArrayList<>();
+
+        Dependency(final String groupId, final String artifactId, final String version)
+        {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+        }
+
+        Dependency(final Dependency that)
+        {
+            groupId = that.groupId;
+            artifactId = that.artifactId;
+            version = that.version;
+            scope = that.scope;
+            type = that.type;
+            classifier = that.classifier;
+            optional = that.optional;
+            exclusions.addAll(that.exclusions);
+        }
+
+        /**
+         * @return The key that identifies this dependency for management and inheritance
+         */
+        String key()
+        {
+            return groupId + ":" + artifactId + ":" + (type == null ? "jar" : type) + (classifier == null ? "" : ":" + classifier);
+        }
+    }
+
+    private static Element child(final Element element, final String name)
+    {
+        for (final var child : children(element))
+        {
+            if (child.getTagName().equals(name))
+            {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(final Element element)
+    {
+        final var children = new ArrayList<Element>();
+        for (var node = element.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (node.getNodeType() == Node.ELEMENT_NODE)
+            {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @return The root element of the XML in the given bytes, parsed without loading any external entities
+     */
+    private static Element document(final byte[] bytes) throws ParserConfigurationException, SAXException, IOException
+    {
+        final var factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setExpandEntityReferences(false);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes)).getDocumentElement();
+    }
+
+    /**
+     * @return The dependencies in the given dependencies element, if any
+     */
+    private static List<Dependency> dependencies(final Element element)
+    {
+        final var dependencies = new ArrayList<Dependency>();
+        if (element != null)
+        {
+            for (final var child : children(element))
+            {
+                final var dependency = new Dependency(text(child, "groupId"), text(child, "artifactId"), text(child, "version"));
+                dependency.scope = text(child, "scope");
+                dependency.type = text(child, "type");
+                dependency.classifier = text(child, "classifier");
+                dependency.optional = text(child, "optional");
+                final var exclusions = child(child, "exclusions");
+                if (exclusions != null)
+                {
+                    for (final var exclusion : children(exclusions))
+                    {
+                        dependency.exclusions.add(text(exclusion, "groupId") + ":" + text(exclusion, "artifactId"));
+                    }
+                }
+                dependencies.add(dependency);
+            }
+        }
+        return dependencies;
+    }
+
+    private static String text(final Element element, final String name)
+    {
+        final var child = child(element, name);
+        return child == null ? null : child.getTextContent().trim();
+    }
+
+    private String groupId;
+
+    private String artifactId;
+
+    private String version;
+
+    private String packaging;
+
+    private Dependency parent;
+
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    private final List<Dependency> managed = new ArrayList<>();
+
+    private final List<Dependency> dependencies = new ArrayList<>();
+
+    private Pom()
+    {
+    }
+
+    /**
+     * @return The artifact this POM describes
+     */
+    public Artifact artifact()
+    {
+        return new Artifact(new Group(groupId), new Artifact.Identifier(artifactId), version);
+    }
+
+    /**
+     * Merges in the parents of this POM and any bills of materials it imports, and replaces property references with
+     * their values
+     *
+     * @param loader The loader of parents and imported POMs
+     * @return The effective POM
+     * @throws IOException If a parent or imported POM can't be read
+     */
+    public Pom effective(final Loader loader) throws IOException
+    {
+        return effective(loader, 0);
+    }
+
+    /**
+     * @return The libraries that this effective POM's artifact needs at runtime, which are its compile and runtime
+     * dependencies that aren't optional, with any exclusions they declare
+     */
+    public List<Library> libraries()
+    {
+        final var libraries = new ArrayList<Library>();
+        for (final var dependency : dependencies)
+        {
+            final var scope = dependency.scope == null ? "compile" : dependency.scope;
+            final var type = dependency.type == null ? "jar" : dependency.type;
+            if ((scope.equals("compile") || scope.equals("runtime"))
+                    && !"true".equals(dependency.optional)
+                    && (type.equals("jar") || type.equals("bundle"))
+                    && (dependency.classifier == null || dependency.classifier.isEmpty())
+                    && dependency.version != null)
+            {
+                final var library = new Library(new Artifact(new Group(dependency.groupId), new Artifact.Identifier(dependency.artifactId), dependency.version));
+                for (final var exclusion : dependency.exclusions)
+                {
+                    final var pattern = LibraryPattern.parse(exclusion);
+                    if (pattern != null)
+                    {
+                        library.excluding(pattern);
+                    }
+                }
+                libraries.add(library);
+            }
+        }
+        return libraries;
+    }
+
+    private Pom effective(final Loader loader, final int depth) throws IOException
+    {
+        if (depth > MAXIMUM_DEPTH)
+        {
+            throw new IOException("POM parents or imports of " + groupId + ":" + artifactId + " are too deep");
+        }
+
+        // Start with the effective parent, if there is one,
+        final var effective = new Pom();
+        if (parent != null)
+        {
+            final var parentPom = loader.load(parent.groupId, parent.artifactId, parent.version);
+            if (parentPom == null)
+            {
+                throw new IOException("Missing parent POM " + parent.groupId + ":" + parent.artifactId + ":" + parent.version);
+            }
+            final var inherited = parentPom.effective(loader, depth + 1);
+            effective.properties.putAll(inherited.properties);
+            effective.managed.addAll(inherited.managed);
+            effective.dependencies.addAll(inherited.dependencies);
+        }
+
+        // inheriting the group and version from the parent if they aren't given,
+        effective.groupId = groupId != null ? groupId : parent == null ? null : parent.groupId;
+        effective.artifactId = artifactId;
+        effective.version = version != null ? version : parent == null ? null : parent.version;
+        effective.packaging = packaging;
+        effective.parent = parent;
+
+        // then add this POM's properties and those Maven defines,
+        effective.properties.putAll(properties);
+        for (final var prefix : List.of("project.", "pom.", ""))
+        {
+            effective.properties.put(prefix + "groupId", effective.groupId);
+            effective.properties.put(prefix + "artifactId", artifactId);
+            effective.properties.put(prefix + "version", effective.version);
+        }
+        if (parent != null)
+        {
+            effective.properties.put("project.parent.groupId", parent.groupId);
+            effective.properties.put("project.parent.version", parent.version);
+            effective.properties.put("parent.version", parent.version);
+        }
+
+        // resolve the properties in this POM's managed dependencies, which take the place of inherited ones,
+        final var managed = new LinkedHashMap<String, Dependency>();
+        for (final var dependency : this.managed)
+        {
+            final var resolved = effective.interpolate(dependency);
+            if ("import".equals(resolved.scope) && "pom".equals(resolved.type))
+            {
+                continue;
+            }
+            managed.putIfAbsent(resolved.key(), resolved);
+        }
+        for (final var dependency : effective.managed)
+        {
+            managed.putIfAbsent(dependency.key(), dependency);
+        }
+
+        // and add those of any imported bills of materials, which come after those declared.
+        for (final var dependency : this.managed)
+        {
+            final var resolved = effective.interpolate(dependency);
+            if ("import".equals(resolved.scope) && "pom".equals(resolved.type))
+            {
+                final var bom = loader.load(resolved.groupId, resolved.artifactId, resolved.version);
+                if (bom == null)
+                {
+                    throw new IOException("Missing imported POM " + resolved.key() + ":" + resolved.version);
+                }
+                for (final var imported : bom.effective(loader, depth + 1).managed)
+                {
+                    managed.putIfAbsent(imported.key(), imported);
+                }
+            }
+        }
+        effective.managed.clear();
+        effective.managed.addAll(managed.values());
+
+        // Finally, add this POM's dependencies in place of any inherited ones, with the versions, scopes and exclusions
+        // that are managed for them if they don't have their own.
+        final var declared = new LinkedHashMap<String, Dependency>();
+        effective.dependencies.forEach(dependency -> declared.put(dependency.key(), dependency));
+        for (final var dependency : dependencies)
+        {
+            final var resolved = effective.interpolate(dependency);
+            final var management = managed.get(resolved.key());
+            if (management != null)
+            {
+                if (resolved.version == null)
+                {
+                    resolved.version = management.version;
+                }
+                if (resolved.scope == null)
+                {
+                    resolved.scope = management.scope;
+                }
+                if (resolved.optional == null)
+                {
+                    resolved.optional = management.optional;
+                }
+                resolved.exclusions.addAll(management.exclusions);
+            }
+            declared.remove(resolved.key());
+            declared.put(resolved.key(), resolved);
+        }
+        effective.dependencies.clear();
+        effective.dependencies.addAll(declared.values());
+        return effective;
+    }
+
+    /**
+     * @return The given dependency with the property references in it replaced by their values
+     */
+    private Dependency interpolate(final Dependency dependency)
+    {
+        final var resolved = new Dependency(dependency);
+        resolved.groupId = interpolate(dependency.groupId);
+        resolved.artifactId = interpolate(dependency.artifactId);
+        resolved.version = interpolate(dependency.version);
+        resolved.scope = interpolate(dependency.scope);
+        resolved.type = interpolate(dependency.type);
+        resolved.classifier = interpolate(dependency.classifier);
+        resolved.optional = interpolate(dependency.optional);
+        resolved.exclusions.replaceAll(this::interpolate);
+        return resolved;
+    }
+
+    /**
+     * @return The given text with property references replaced by their values, leaving references to properties
+     * that aren't defined as they are
+     */
+    private String interpolate(final String text)
+    {
+        return interpolate(text, new HashSet<>());
+    }
+
+    /**
+     * @return The given text with each property reference replaced by the property's value, with the references in
+     * that replaced in turn, leaving references to properties that aren't defined, or whose values refer back to
+     * themselves, as they are
+     */
+    private String interpolate(final String text, final Set<String> resolving)
+    {
+        if (text == null || !text.contains("${"))
+        {
+            return text;
+        }
+        final var interpolated = new StringBuilder();
+        final var matcher = PROPERTY.matcher(text);
+        var end = 0;
+        while (matcher.find())
+        {
+            interpolated.append(text, end, matcher.start());
+            final var name = matcher.group(1);
+            final var value = properties.get(name);
+            if (value == null || !resolving.add(name))
+            {
+                interpolated.append(matcher.group());
+            }
+            else
+            {
+                interpolated.append(interpolate(value, resolving));
+                resolving.remove(name);
+            }
+            end = matcher.end();
+        }
+        return interpolated.append(text, end, text.length()).toString();
+    }
+}
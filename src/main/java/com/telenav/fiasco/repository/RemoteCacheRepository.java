@@ -2,9 +2,31 @@ package com.telenav.fiasco.repository;
 
 import com.telenav.fiasco.Library;
 import com.telenav.fiasco.Repository;
-import com.telenav.kivakit.core.collections.list.ObjectList;
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+import com.telenav.kivakit.filesystem.File;
 import com.telenav.kivakit.filesystem.Folder;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 /**
  * A read-only repository that caches artifacts read from the network.
  *
@@ -13,6 +35,13 @@ import com.telenav.kivakit.filesystem.Folder;
  * from the repositories that it is configured to cache, it allows rapid population of the {@link LocalRepository}
  * without accessing the network.
  * </p>
+ * <p>
+ * A file that isn't in the cache is streamed from the first repository that has it into a temporary file next to where
+ * it belongs, computing its SHA-1 and SHA-256 digests as it goes. If the repository publishes a checksum for the file,
+ * the digest must match it, or the file is thrown away. Only then is the file renamed into place, along with its
+ * checksums, so a file in the cache is always whole and verified, even if a download is interrupted. If several threads
+ * ask for the same file at once, only one of them downloads it, and the others wait for it.
+ * </p>
  *
  * @author jonathanl (shibo)
  */
@@ -21,40 +50,369 @@ public class RemoteCacheRepository extends BaseRepository
     /** The folder where this cache stores artifacts */
     private final Folder folder;
 
+    /** The root of the cache, in Maven layout */
+    private final Path root;
+
     /** The repositories that this cache is caching */
     private final Repository[] repositories;
 
+    /** The downloads in progress, by path */
+    private final Map<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+
+    /** The number of artifacts to download at a time */
+    private Count threads = Count._8;
+
     /**
      * @param folder The folder for storing cached artifacts
      * @param repositories The repositories to cache, in search order
      */
-    public RemoteCacheRepository(Folder folder, Repository... repositories)
+    public RemoteCacheRepository(final Folder folder, final Repository... repositories)
     {
         this.folder = folder;
         this.repositories = repositories;
+        root = Path.of(folder.path().asString()).toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return The given artifact's file with the given extension, downloading it into the cache if it isn't there, or
+     * null if none of the cached repositories has it
+     */
+    public File file(final Artifact artifact, final String extension)
+    {
+        try
+        {
+            final var file = cached(path(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), extension));
+            return file == null ? null : File.file(file.toFile());
+        }
+        catch (final IOException e)
+        {
+            problem(e, "Unable to cache '$'", artifact);
+            return null;
+        }
     }
 
+    /**
+     * @return The folder where this cache stores artifacts
+     */
+    public Folder folder()
+    {
+        return folder;
+    }
+
+    /**
+     * Downloads the library's POM and jar into this cache
+     */
     @Override
-    public ObjectList<Library> dependencies(Library library)
+    public void install(final Library library)
     {
-        return null;
+        file(library.artifact(), "pom");
+        jar(library.artifact());
+    }
+
+    /**
+     * @return The jar of the given artifact, downloading it into the cache if it isn't there, or null if none of the
+     * cached repositories has it
+     */
+    public File jar(final Artifact artifact)
+    {
+        return file(artifact, "jar");
     }
 
+    /**
+     * Downloads the jars of the given libraries into the cache, several at a time
+     *
+     * @return The jar of each library that one of the cached repositories has
+     */
+    public Map<Library, File> jars(final Collection<Library> libraries)
+    {
+        final var jars = new LinkedHashMap<Library, File>();
+        final var executor = Threads.threadPool("Cache", threads);
+        try
+        {
+            final var downloads = new LinkedHashMap<Library, Future<File>>();
+            for (final var library : libraries)
+            {
+                downloads.put(library, executor.submit(() -> jar(library.artifact())));
+            }
+            for (final var entry : downloads.entrySet())
+            {
+                final var jar = entry.getValue().get();
+                if (jar != null)
+                {
+                    jars.put(entry.getKey(), jar);
+                }
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while downloading libraries into " + folder, e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new IllegalStateException("Unable to download libraries into " + folder, e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return jars;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The cached repositories are refreshed too.
+     * </p>
+     */
     @Override
-    public void install(Library library)
+    public void refresh()
     {
-        // copy library into this cache
+        super.refresh();
+        for (final var repository : repositories)
+        {
+            repository.refresh();
+        }
     }
 
     @Override
-    public boolean remove(Library library)
+    public boolean remove(final Library library)
     {
-        return false;
+        final var artifact = library.artifact();
+        final var version = root.resolve(path(artifact.group().toString(), artifact.identifier().toString(), artifact.versionText(), "pom")).getParent();
+        return delete(version);
     }
 
     @Override
     public boolean removeAll()
     {
-        return false;
+        return delete(root);
+    }
+
+    /**
+     * Sets the number of artifacts to download at a time
+     */
+    public RemoteCacheRepository threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return folder.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Since new versions may be deployed at any time, the versions are asked for from the cached repositories each
+     * time, rather than being cached.
+     * </p>
+     */
+    @Override
+    public List<String> versions(final Artifact artifact)
+    {
+        final var versions = new LinkedHashSet<String>();
+        for (final var repository : repositories)
+        {
+            versions.addAll(repository.versions(artifact));
+        }
+        return new ArrayList<>(versions);
+    }
+
+    @Override
+    protected InputStream open(final String path) throws IOException
+    {
+        final var file = cached(path);
+        return file == null ? null : Files.newInputStream(file);
+    }
+
+    /**
+     * @return The file at the given path in the cache, downloading it if it isn't there, or null if none of the cached
+     * repositories has it
+     */
+    private Path cached(final String path) throws IOException
+    {
+        // If the file is in the cache, there's nothing to do,
+        final var target = root.resolve(path).normalize();
+        if (Files.exists(target))
+        {
+            return target;
+        }
+
+        // and if another thread is already downloading it, wait for that thread,
+        final var download = new CompletableFuture<Path>();
+        final var existing = downloads.putIfAbsent(path, download);
+        if (existing != null)
+        {
+            return await(path, existing);
+        }
+
+        // otherwise download it, letting any other threads that want it know when it's done.
+        try
+        {
+            final var downloaded = Files.exists(target) ? target : download(path, target);
+            download.complete(downloaded);
+            return downloaded;
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            download.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            downloads.remove(path, download);
+        }
+    }
+
+    private Path await(final String path, final CompletableFuture<Path> download) throws IOException
+    {
+        try
+        {
+            return download.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + path, e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new IOException("Unable to download " + path, e.getCause());
+        }
+    }
+
+    /**
+     * @return The checksum that the given repository publishes for the file at the given path with the given extension,
+     * or null if it doesn't publish one
+     */
+    private String checksum(final BaseRepository repository, final String path, final String extension) throws IOException
+    {
+        final var bytes = repository.read(path + "." + extension);
+        if (bytes == null)
+        {
+            return null;
+        }
+
+        // A checksum file may also hold the file's name after the checksum.
+        final var text = new String(bytes, StandardCharsets.US_ASCII).trim();
+        return text.isEmpty() ? null : text.split("\\s+")[0].toLowerCase();
+    }
+
+    /**
+     * Downloads the file at the given path from the first cached repository that has a valid copy of it into the given
+     * target file
+     *
+     * @return The target file, or null if none of the repositories has the file
+     * @throws IOException If none of the repositories has the file and one of them couldn't be read
+     */
+    private Path download(final String path, final Path target) throws IOException
+    {
+        IOException failure = null;
+        for (final var repository : repositories)
+        {
+            if (!(repository instanceof BaseRepository))
+            {
+                continue;
+            }
+            final var upstream = (BaseRepository) repository;
+            try (final var in = upstream.open(path))
+            {
+                if (in == null)
+                {
+                    continue;
+                }
+
+                // Stream the file into a temporary file next to the target, digesting it on the way,
+                Files.createDirectories(target.getParent());
+                final var temporary = temporary(target);
+                try
+                {
+                    final var sha1 = Digest.sha1();
+                    final var sha256 = Digest.sha256();
+                    try (final var out = Files.newOutputStream(temporary))
+                    {
+                        final var buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) > 0)
+                        {
+                            sha1.update(buffer, 0, read);
+                            sha256.update(buffer, 0, read);
+                            out.write(buffer, 0, read);
+                        }
+                    }
+
+                    // then check the digests against any checksums the repository publishes,
+                    final var digests = Map.of("sha1", Digest.hexadecimal(sha1.digest()), "sha256", Digest.hexadecimal(sha256.digest()));
+                    if (!isChecksum(path) && !verify(upstream, path, digests))
+                    {
+                        continue;
+                    }
+
+                    // and move the checksums and then the file into place.
+                    if (!isChecksum(path))
+                    {
+                        for (final var digest : digests.entrySet())
+                        {
+                            final var checksum = temporary(target);
+                            Files.writeString(checksum, digest.getValue(), StandardCharsets.US_ASCII);
+                            Files.move(checksum, Path.of(target + "." + digest.getKey()), StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    }
+                    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+                    information("Downloaded '$' from $", path, upstream);
+                    return target;
+                }
+                finally
+                {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            catch (final NoSuchFileException e)
+            {
+                // The repository doesn't have the file after all.
+            }
+            catch (final IOException e)
+            {
+                warning(e, "Unable to download '$' from $", path, upstream);
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return null;
+    }
+
+    private boolean isChecksum(final String path)
+    {
+        return path.endsWith(".sha1") || path.endsWith(".sha256") || path.endsWith(".sha512") || path.endsWith(".md5");
+    }
+
+    /**
+     * @return True if the given digests of the file at the given path match the strongest checksum the given repository
+     * publishes for it, or if it publishes none
+     */
+    private boolean verify(final BaseRepository repository, final String path, final Map<String, String> digests) throws IOException
+    {
+        for (final var algorithm : new String[] { "sha256", "sha1" })
+        {
+            final var expected = checksum(repository, path, algorithm);
+            if (expected != null)
+            {
+                if (expected.equals(digests.get(algorithm)))
+                {
+                    return true;
+                }
+                problem("Discarding '$' from $, which has $ $ instead of $", path, repository, algorithm, digests.get(algorithm), expected);
+                return false;
+            }
+        }
+        warning("Caching '$' from $ without verifying it, since it has no checksum", path, repository);
+        return true;
     }
 }
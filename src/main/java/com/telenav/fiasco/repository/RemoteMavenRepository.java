@@ -1,34 +1,79 @@
 package com.telenav.fiasco.repository;
 
 import com.telenav.fiasco.Library;
-import com.telenav.kivakit.core.collections.list.ObjectList;
+import com.telenav.kivakit.filesystem.Folder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 /**
+ * A repository in standard Maven layout at a URL, read with HTTP GET. A file: URL, where ~ is the user's home folder,
+ * reads a repository on the local disk in the same way.
+ * <p>
+ * All remote repositories share one HTTP client, so connections to a server are reused across requests, and requests
+ * from many threads at once are multiplexed over them.
+ * </p>
+ *
  * @author jonathanl (shibo)
  */
 public class RemoteMavenRepository extends BaseRepository
 {
     public static RemoteMavenRepository mavenCentral = new RemoteMavenRepository("Maven Central", "https://repo1.maven.org/maven2/");
 
+    /** The client shared by all remote repositories */
+    private static final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
     public static RemoteMavenRepository local()
     {
-        return new RemoteMavenRepository("Maven Central", "file://~/.m2/repository");
+        return new RemoteMavenRepository("Local", "file://~/.m2/repository");
     }
 
-    @SuppressWarnings("unused")
-    public RemoteMavenRepository(final String name, final String url)
-    {
-    }
+    /** The name of this repository */
+    private final String name;
 
-    @Override
-    public ObjectList<Library> dependencies(final Library library)
+    /** The base URI of this repository, ending in a slash */
+    private final URI uri;
+
+    /**
+     * @param name The name of the repository
+     * @param url The URL of the root of the repository
+     */
+    public RemoteMavenRepository(final String name, final String url)
     {
-        return null;
+        this.name = name;
+        final var base = url.endsWith("/") ? url : url + "/";
+        uri = base.startsWith("file://~/")
+                ? Path.of(System.getProperty("user.home"), base.substring("file://~/".length())).toUri()
+                : URI.create(base);
     }
 
+    /**
+     * Installs the given library's POM if this repository is on the local disk, since installing into a remote
+     * repository isn't supported
+     */
     @Override
     public void install(final Library library)
     {
+        if ("file".equals(uri.getScheme()))
+        {
+            final var local = listenTo(new LocalRepository(Folder.parseFolder(Path.of(uri).toString())));
+            local.install(library);
+        }
+        else
+        {
+            warning("Cannot install '$' in $, which isn't on the local disk", library, this);
+        }
     }
 
     @Override
@@ -42,4 +87,59 @@ public class RemoteMavenRepository extends BaseRepository
     {
         return false;
     }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * @return The base URI of this repository
+     */
+    public URI uri()
+    {
+        return uri;
+    }
+
+    @Override
+    protected InputStream open(final String path) throws IOException
+    {
+        final var location = uri.resolve(path);
+
+        // If the repository is on the local disk, open the file,
+        if ("file".equals(location.getScheme()))
+        {
+            try
+            {
+                return Files.newInputStream(Path.of(location));
+            }
+            catch (final NoSuchFileException e)
+            {
+                return null;
+            }
+        }
+
+        // otherwise stream it from the server, which answers 404 if it doesn't have it.
+        final var request = HttpRequest.newBuilder(location).GET().build();
+        try
+        {
+            final var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            if (response.statusCode() == 200)
+            {
+                return response.body();
+            }
+            response.body().close();
+            if (response.statusCode() == 404)
+            {
+                return null;
+            }
+            throw new IOException("GET " + location + " failed with status " + response.statusCode());
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + location, e);
+        }
+    }
 }
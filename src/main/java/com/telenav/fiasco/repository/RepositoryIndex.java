@@ -0,0 +1,491 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the POMs and jars in a repository in Maven layout, so that finding out whether a repository has an
+ * artifact, or which versions of it it has, doesn't need to look at the disk.
+ * <p>
+ * The index is a file in the root of the repository, which is built by walking the repository the first time it's
+ * needed. After that, it's memory-mapped and read in one pass, and each install or removal appends a record to it, under
+ * a file lock, so several builds can share it. Since other tools, like Maven, also write to the repository, a file that
+ * isn't in the index is looked for on disk once before deciding it isn't there, and is added to the index if it is, and
+ * the versions of an artifact are looked for on disk the first time they're asked for. {@link #rebuild()} walks the
+ * repository again, which also compacts the index.
+ * </p>
+ * <p>
+ * Since a process like the daemon can run many builds, {@link #refreshAll()} is called when each build finishes, so the
+ * next build looks on disk again for files that weren't there, and reads any records that other processes have
+ * appended to the index, or the whole index if another process rebuilt it.
+ * </p>
+ * <p>
+ * The index file starts with a magic number, followed by records of a byte that says whether files were added or
+ * removed, the length and UTF-8 bytes of the coordinates group:artifact:version, and a byte of flags saying which files
+ * were added.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class RepositoryIndex extends BaseRepeater
+{
+    /** The first bytes of an index file, and its format version */
+    private static final int MAGIC = 0x46524931;
+
+    /** A record of files that were added */
+    private static final byte ADDED = 1;
+
+    /** A record of a version that was removed */
+    private static final byte REMOVED = 2;
+
+    /** The flag for a POM file */
+    private static final int POM = 1;
+
+    /** The flag for a jar file */
+    private static final int JAR = 2;
+
+    /** The index of each repository, by root folder */
+    private static final Map<Path, RepositoryIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Refreshes every index that has been used, which is done when a build finishes
+     */
+    public static void refreshAll()
+    {
+        indexes.values().forEach(RepositoryIndex::refresh);
+    }
+
+    /**
+     * @param root The root folder of the repository
+     * @param listener The listener to any messages from the index, if it has to be created
+     * @return The index of the repository with the given root folder, which is shared by everything using that
+     * repository
+     */
+    public static RepositoryIndex index(final Path root, final Listener listener)
+    {
+        return indexes.computeIfAbsent(root.toAbsolutePath().normalize(), folder ->
+        {
+            final var index = new RepositoryIndex(folder);
+            index.addListener(listener);
+            return index;
+        });
+    }
+
+    /** The root folder of the repository */
+    private final Path root;
+
+    /** The index file */
+    private final Path file;
+
+    /** The flags of the files of each version, by coordinates */
+    private final Map<String, Integer> files = new ConcurrentHashMap<>();
+
+    /** The versions of each artifact, by group:artifact */
+    private final Map<String, Set<String>> versions = new ConcurrentHashMap<>();
+
+    /** The files that were looked for on disk and not found since the index was refreshed, by coordinates.extension */
+    private final Set<String> absent = ConcurrentHashMap.newKeySet();
+
+    /** The artifacts whose versions were looked for on disk since the index was refreshed, by group:artifact */
+    private final Set<String> listed = ConcurrentHashMap.newKeySet();
+
+    /** The number of bytes of the index file that have been read */
+    private long position;
+
+    /** The identity of the index file that was read, which changes when the index is rebuilt */
+    private Object fileKey;
+
+    /** True once the index has been read */
+    private volatile boolean loaded;
+
+    /** True if records may have been appended to the index file since it was read */
+    private volatile boolean stale;
+
+    private RepositoryIndex(final Path root)
+    {
+        this.root = root;
+        file = root.resolve(".fiasco-index");
+    }
+
+    /**
+     * Records that the file of the given artifact with the given extension was added to the repository
+     */
+    public void added(final String group, final String artifact, final String version, final String extension)
+    {
+        added(group + ":" + artifact + ":" + version, extension);
+    }
+
+    /**
+     * @return True if the repository has the file of the given artifact with the given extension
+     */
+    public boolean contains(final String group, final String artifact, final String version, final String extension)
+    {
+        return contains(group + ":" + artifact + ":" + version, extension, BaseRepository.path(group, artifact, version, extension));
+    }
+
+    /**
+     * @return True if the repository has the POM or jar at the given path in Maven layout, or if the path isn't that
+     * of a POM or jar, whether the file exists
+     */
+    public boolean contains(final String path)
+    {
+        final var coordinates = coordinates(Path.of(path));
+        return coordinates == null
+                ? Files.exists(root.resolve(path))
+                : contains(coordinates[0], coordinates[1], path);
+    }
+
+    /**
+     * Walks the repository to build the index again
+     */
+    public synchronized void rebuild()
+    {
+        absent.clear();
+        listed.clear();
+        files.clear();
+        versions.clear();
+        try
+        {
+            // Find every POM and jar in the repository,
+            if (Files.isDirectory(root))
+            {
+                Files.walkFileTree(root, new SimpleFileVisitor<>()
+                {
+                    @Override
+                    public FileVisitResult visitFile(final Path path, final BasicFileAttributes attributes)
+                    {
+                        scan(path);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(final Path path, final IOException e)
+                    {
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+
+            // and write them to a new index file, which replaces the old one.
+            Files.createDirectories(root);
+            final var temporary = BaseRepository.temporary(file);
+            try
+            {
+                try (final var channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+                {
+                    channel.write(ByteBuffer.allocate(4).putInt(0, MAGIC));
+                    for (final var entry : files.entrySet())
+                    {
+                        channel.write(record(ADDED, entry.getKey(), entry.getValue()));
+                    }
+                }
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+                position = Files.size(file);
+                fileKey = fileKey();
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+            information("Indexed $ versions of $ artifacts in '$'", files.size(), versions.size(), root);
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to index repository '$'", root);
+        }
+        loaded = true;
+        stale = false;
+    }
+
+    /**
+     * Forgets which files weren't found on disk, and reads the index again when it's next used, so files added or
+     * removed since it was read are seen
+     */
+    public void refresh()
+    {
+        absent.clear();
+        listed.clear();
+        stale = true;
+    }
+
+    /**
+     * Records that the given version of the given artifact was removed from the repository
+     */
+    public void removed(final String group, final String artifact, final String version)
+    {
+        load();
+        final var key = group + ":" + artifact + ":" + version;
+        apply(REMOVED, key, 0);
+        append(REMOVED, key, 0);
+    }
+
+    /**
+     * @return The versions of the given artifact that the repository has a POM for, in no particular order
+     */
+    public Set<String> versions(final String group, final String artifact)
+    {
+        // Add any versions that something else, like Maven, has put in the repository since the index was refreshed,
+        load();
+        final var key = group + ":" + artifact;
+        if (listed.add(key))
+        {
+            final var folder = root.resolve(group.replace('.', '/')).resolve(artifact);
+            if (Files.isDirectory(folder))
+            {
+                try (final var children = Files.list(folder))
+                {
+                    children.filter(Files::isDirectory).forEach(child ->
+                    {
+                        final var version = child.getFileName().toString();
+                        contains(key + ":" + version, "pom", BaseRepository.path(group, artifact, version, "pom"));
+                    });
+                }
+                catch (final IOException | UncheckedIOException e)
+                {
+                    warning(e, "Unable to list the versions of '$' in '$'", key, root);
+                }
+            }
+        }
+
+        // and return the versions the index knows of.
+        return Collections.unmodifiableSet(versions.getOrDefault(key, Set.of()));
+    }
+
+    /**
+     * Records that the file of the artifact with the given coordinates and extension was added to the repository
+     */
+    private void added(final String key, final String extension)
+    {
+        load();
+        absent.remove(key + "." + extension);
+        final var flag = flag(extension);
+        final var before = files.getOrDefault(key, 0);
+        if (flag != 0 && (before & flag) == 0)
+        {
+            apply(ADDED, key, flag);
+            append(ADDED, key, flag);
+        }
+    }
+
+    /**
+     * Appends a record to the index file
+     */
+    private void append(final byte type, final String key, final int flags)
+    {
+        try (final var channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            try (final var ignored = channel.lock())
+            {
+                channel.write(record(type, key, flags));
+            }
+        }
+        catch (final IOException e)
+        {
+            warning(e, "Unable to update repository index '$'", file);
+        }
+    }
+
+    /**
+     * Applies a record to the index in memory
+     */
+    private void apply(final byte type, final String key, final int flags)
+    {
+        final var artifact = key.substring(0, key.lastIndexOf(':'));
+        final var version = key.substring(key.lastIndexOf(':') + 1);
+        if (type == ADDED)
+        {
+            files.merge(key, flags, (a, b) -> a | b);
+            versions.computeIfAbsent(artifact, ignored -> ConcurrentHashMap.newKeySet()).add(version);
+        }
+        else
+        {
+            files.remove(key);
+            final var known = versions.get(artifact);
+            if (known != null)
+            {
+                known.remove(version);
+            }
+        }
+    }
+
+    /**
+     * @return True if the index has the given file, or if it doesn't, and the file hasn't already been looked for,
+     * whether it's on disk
+     */
+    private boolean contains(final String key, final String extension, final String path)
+    {
+        // If the index has the file, the repository has it,
+        load();
+        final var flag = flag(extension);
+        final var flags = files.get(key);
+        if (flag != 0 && flags != null && (flags & flag) != 0)
+        {
+            return true;
+        }
+
+        // and if it was looked for already, it still isn't there,
+        if (absent.contains(key + "." + extension))
+        {
+            return false;
+        }
+
+        // but otherwise it may have been put there by something else, like Maven.
+        if (Files.exists(root.resolve(path)))
+        {
+            added(key, extension);
+            return true;
+        }
+        absent.add(key + "." + extension);
+        return false;
+    }
+
+    /**
+     * @return The coordinates group:artifact:version and extension of the POM or jar at the given path relative to the
+     * root, like group/artifact/version/artifact-version.jar, or null if it isn't one
+     */
+    private String[] coordinates(final Path relative)
+    {
+        final var count = relative.getNameCount();
+        if (count >= 4)
+        {
+            final var name = relative.getFileName().toString();
+            final var version = relative.getName(count - 2).toString();
+            final var artifact = relative.getName(count - 3).toString();
+            final var extension = name.substring(name.lastIndexOf('.') + 1);
+            if (flag(extension) != 0 && name.equals(artifact + "-" + version + "." + extension))
+            {
+                final var group = relative.subpath(0, count - 3).toString().replace(java.io.File.separatorChar, '.');
+                return new String[] { group + ":" + artifact + ":" + version, extension };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The identity of the index file, or null if it has none
+     */
+    private Object fileKey() throws IOException
+    {
+        return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    }
+
+    private int flag(final String extension)
+    {
+        switch (extension)
+        {
+            case "pom":
+                return POM;
+
+            case "jar":
+                return JAR;
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads the index file the first time the index is used, or builds it if there isn't one, and after the index has
+     * been refreshed, reads any records appended to it since
+     */
+    private void load()
+    {
+        if (loaded && !stale)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (loaded && !stale)
+            {
+                return;
+            }
+            if (!Files.exists(file))
+            {
+                rebuild();
+                return;
+            }
+            try (final var channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                // If the index file was replaced or truncated, read all of it again,
+                final var key = fileKey();
+                if (!loaded || key == null || !key.equals(fileKey) || channel.size() < position)
+                {
+                    files.clear();
+                    versions.clear();
+                    position = 0;
+                }
+
+                // and map the part that hasn't been read,
+                final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+                if (position == 0 && (buffer.remaining() < 4 || buffer.getInt() != MAGIC))
+                {
+                    rebuild();
+                    return;
+                }
+
+                // then apply each whole record in it.
+                while (buffer.remaining() >= 3)
+                {
+                    final var start = buffer.position();
+                    final var type = buffer.get();
+                    final var length = buffer.getShort() & 0xffff;
+                    if (buffer.remaining() < length + 1)
+                    {
+                        buffer.position(start);
+                        break;
+                    }
+                    final var bytes = new byte[length];
+                    buffer.get(bytes);
+                    apply(type, new String(bytes, StandardCharsets.UTF_8), buffer.get());
+                }
+                position += buffer.position();
+                fileKey = key;
+                loaded = true;
+                stale = false;
+            }
+            catch (final IOException | UncheckedIOException e)
+            {
+                warning(e, "Rebuilding unreadable repository index '$'", file);
+                rebuild();
+            }
+        }
+    }
+
+    private ByteBuffer record(final byte type, final String key, final int flags)
+    {
+        final var bytes = key.getBytes(StandardCharsets.UTF_8);
+        final var record = ByteBuffer.allocate(4 + bytes.length);
+        record.put(type).putShort((short) bytes.length).put(bytes).put((byte) flags);
+        return record.flip();
+    }
+
+    /**
+     * Adds the given file to the index if it's the POM or jar of an artifact version
+     */
+    private void scan(final Path path)
+    {
+        final var coordinates = coordinates(root.relativize(path));
+        if (coordinates != null)
+        {
+            apply(ADDED, coordinates[0], flag(coordinates[1]));
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.Repository;
+import com.telenav.fiasco.repository.artifact.VersionRange;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+import com.telenav.kivakit.core.thread.Threads;
+import com.telenav.kivakit.core.value.count.Count;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Resolves the whole graph of libraries that a set of libraries depends on, fetching the POMs of the libraries in the
+ * graph concurrently.
+ * <p>
+ * As soon as a library's dependencies arrive, the dependencies of each of them are requested, so requests for the
+ * deeper levels of the graph are in flight while the shallower levels are still being resolved. Each library is only
+ * ever requested once, however many paths lead to it, and however many threads ask for it at once. Requests to each
+ * repository are limited to a number at a time, so a server isn't flooded. Repositories are searched in order, and the
+ * first that has a library is the one it comes from, while the parent POMs and imported bills of materials of its POM
+ * may come from any of them. A library is only taken to be missing if every repository says it doesn't have it.
+ * If a repository can't be read, the next is tried, and if none has the library, the request fails and the resolution
+ * with it. A request that fails is forgotten, so the library is asked for again by the next resolution.
+ * </p>
+ * <p>
+ * Every version of every library that can be reached is added to a {@link VersionMediator}, one level at a time, in
+ * the order libraries were declared, so the result doesn't depend on the order requests complete in. The mediator then
+ * chooses one version of each library, the nearest by default, as in Maven, or the highest, and leaves out libraries
+ * excluded with {@link Library#excluding} by any library on the path to them. A library declared with a version range
+ * is asked for in the highest version in the range that a repository has.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class TransitiveResolver extends BaseRepeater
+{
+    /** The repositories to search, in order */
+    private final List<Repository> repositories;
+
+    /** The number of requests that can be made to each repository at a time */
+    private final Map<Repository, Semaphore> limits = new IdentityHashMap<>();
+
+    /** The requests for the dependencies of each library that have been made, by coordinates */
+    private final Map<String, CompletableFuture<List<Library>>> requests = new ConcurrentHashMap<>();
+
+    /** The repository each library was found in, by coordinates */
+    private final Map<String, Repository> sources = new ConcurrentHashMap<>();
+
+    /** The versions of each library that the repositories have, by group:artifact, for choosing versions in ranges */
+    private final Map<String, List<String>> versions = new ConcurrentHashMap<>();
+
+    /** The ranges that libraries whose versions were chosen from a range were declared with */
+    private final Map<Library, VersionRange> pins = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /** How to choose between versions of a library */
+    private VersionMediator.Strategy strategy = VersionMediator.Strategy.NEAREST;
+
+    /** The number of threads to make requests with */
+    private Count threads = Count._16;
+
+    /**
+     * @param repositories The repositories to search, in order
+     */
+    public TransitiveResolver(final List<Repository> repositories)
+    {
+        this.repositories = new ArrayList<>(repositories);
+        repositories.forEach(repository -> limits.put(repository, new Semaphore(8)));
+    }
+
+    /**
+     * Sets the number of requests that can be made to the given repository at a time
+     */
+    public TransitiveResolver limit(final Repository repository, final Count requests)
+    {
+        limits.put(repository, new Semaphore(requests.asInt()));
+        return this;
+    }
+
+    /**
+     * Resolves the graph of libraries that the given libraries depend on, choosing one version of each library with a
+     * {@link VersionMediator}. The given libraries aren't changed.
+     *
+     * @param roots The libraries to resolve, in the order they were declared
+     * @return The versions chosen, each depending on the versions chosen for its dependencies, and why
+     * @throws IllegalStateException If the dependencies of a library couldn't be read
+     */
+    public synchronized Mediation resolve(final List<Library> roots)
+    {
+        final var executor = Threads.threadPool("Resolver", threads);
+        try
+        {
+            // Add the roots that have versions to the graph, choosing a version for any declared with a range,
+            final var graph = listenTo(new VersionMediator());
+            final var expanded = new BitSet();
+            var level = new ArrayList<Path>();
+            for (final var root : roots)
+            {
+                if (root.artifact().versionText() == null)
+                {
+                    warning("Not resolving '$', which has no version", root);
+                    continue;
+                }
+                final var range = range(root);
+                final var library = range == null ? root : pin(root, range);
+                if (library != null)
+                {
+                    final var node = graph.add(library);
+                    graph.root(node, range);
+                    if (!expanded.get(node))
+                    {
+                        expanded.set(node);
+                        level.add(new Path(graph.library(node), node, null));
+                    }
+                }
+            }
+            level.forEach(path -> prefetch(path, executor));
+
+            while (true)
+            {
+                // then add every version of every library that can be reached to the graph,
+                expand(graph, level, expanded, executor);
+
+                // and choose a version of each,
+                final var mediation = graph.mediate(strategy);
+
+                // until the dependencies of every chosen version are in the graph.
+                level = new ArrayList<>();
+                for (final var library : mediation.chosen().values())
+                {
+                    final var node = graph.add(library);
+                    if (!expanded.get(node))
+                    {
+                        expanded.set(node);
+                        level.add(new Path(graph.library(node), node, null));
+                    }
+                }
+                if (level.isEmpty())
+                {
+                    return mediation;
+                }
+            }
+        }
+        finally
+        {
+            // Let any requests still in flight finish, so they're ready for the next resolution.
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return The repository the given library was found in, or null if it hasn't been found
+     */
+    public Repository source(final Library library)
+    {
+        return sources.get(library.artifact().name());
+    }
+
+    /**
+     * Sets how to choose between versions of a library
+     */
+    public TransitiveResolver strategy(final VersionMediator.Strategy strategy)
+    {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads to make requests with
+     */
+    public TransitiveResolver threads(final Count threads)
+    {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * A library and the path by which it was reached
+     */
+    private static class Path
+    {
+        final Library library;
+
+        final int node;
+
+        final Path parent;
+
+        Path(final Library library, final int node, final Path parent)
+        {
+            this.library = library;
+            this.node = node;
+            this.parent = parent;
+        }
+
+        /**
+         * @return True if the given library is excluded by any library on this path
+         */
+        boolean excludes(final Library dependency)
+        {
+            for (var at = this; at != null; at = at.parent)
+            {
+                if (at.library.excludes(dependency))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return The dependencies of the given library, waiting for them to arrive if they haven't yet
+     */
+    private List<Library> await(final Library library, final ExecutorService executor)
+    {
+        try
+        {
+            final var dependencies = request(library, executor).get();
+            if (dependencies == null)
+            {
+                warning("Library '$' is not in any repository", library);
+                return List.of();
+            }
+            return dependencies;
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving " + library, e);
+        }
+        catch (final ExecutionException e)
+        {
+            throw new IllegalStateException("Unable to resolve " + library, e.getCause());
+        }
+    }
+
+    /**
+     * Adds the dependencies of the libraries on the given level to the graph, and then those of the libraries on the
+     * next level, and so on, leaving out the dependencies of libraries that are already in it or that are excluded
+     * along the way
+     */
+    private void expand(final VersionMediator graph, List<Path> level, final BitSet expanded, final ExecutorService executor)
+    {
+        while (!level.isEmpty())
+        {
+            final var next = new ArrayList<Path>();
+            for (final var path : level)
+            {
+                for (final var dependency : await(path.library, executor))
+                {
+                    final var node = graph.add(dependency);
+                    graph.depends(path.node, node, pins.get(dependency));
+                    if (!path.excludes(dependency) && !expanded.get(node))
+                    {
+                        expanded.set(node);
+                        next.add(new Path(graph.library(node), node, path));
+                    }
+                }
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * @return The dependencies of the given library from the first repository that has it, or null if none has it
+     * @throws RuntimeException If no repository has the library and one of them couldn't be read, since it may be the
+     * one with the library
+     */
+    private List<Library> fetch(final Library library)
+    {
+        RuntimeException failure = null;
+        for (final var repository : repositories)
+        {
+            final var limit = limits.get(repository);
+            limit.acquireUninterruptibly();
+            try
+            {
+                final var dependencies = repository.dependencies(library, this::pom);
+                if (dependencies != null)
+                {
+                    sources.put(library.artifact().name(), repository);
+                    return pinned(dependencies);
+                }
+            }
+            catch (final RuntimeException e)
+            {
+                warning(e, "Unable to read '$' from $", library, repository);
+                failure = failure == null ? e : failure;
+            }
+            finally
+            {
+                limit.release();
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * @return A copy of the given library with the highest version in the given range that any repository has, or null
+     * if none has a version in the range
+     */
+    private Library pin(final Library library, final VersionRange range)
+    {
+        final var artifact = library.artifact();
+        final var available = versions.computeIfAbsent(artifact.withoutVersion(), ignored ->
+        {
+            final var found = new LinkedHashSet<String>();
+            repositories.forEach(repository -> found.addAll(repository.versions(artifact)));
+            return new ArrayList<>(found);
+        });
+        final var version = range.highest(available);
+        if (version == null)
+        {
+            warning("No version of '$' in $ is in any repository", artifact.withoutVersion(), range);
+            return null;
+        }
+        final var pinned = new Library(artifact.withVersion(version)).excluding(library::excludes);
+        pins.put(pinned, range);
+        return pinned;
+    }
+
+    /**
+     * @return The given dependencies, with any declared with a range replaced by the version chosen for the range
+     */
+    private List<Library> pinned(final List<Library> dependencies)
+    {
+        final var pinned = new ArrayList<Library>();
+        for (final var dependency : dependencies)
+        {
+            final var range = range(dependency);
+            final var library = range == null ? dependency : pin(dependency, range);
+            if (library != null)
+            {
+                pinned.add(library);
+            }
+        }
+        return pinned;
+    }
+
+    /**
+     * @return The POM of the given artifact from the first repository that has it, or null if none has it
+     */
+    private Pom pom(final String group, final String artifact, final String version) throws IOException
+    {
+        for (final var repository : repositories)
+        {
+            final var pom = repository.pom(group, artifact, version);
+            if (pom != null)
+            {
+                return pom;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requests the dependencies of the library at the end of the given path, and as they arrive, the dependencies of
+     * each of those that isn't excluded along the path, and so on, until the resolution is over
+     */
+    private void prefetch(final Path path, final ExecutorService executor)
+    {
+        request(path.library, executor).thenAccept(dependencies ->
+        {
+            for (final var dependency : dependencies == null ? List.<Library>of() : dependencies)
+            {
+                if (!executor.isShutdown() && !path.excludes(dependency) && !requests.containsKey(dependency.artifact().name()))
+                {
+                    prefetch(new Path(dependency, -1, path), executor);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The range the given library was declared with, or null if it was declared with a version or with an
+     * invalid range
+     */
+    private VersionRange range(final Library library)
+    {
+        try
+        {
+            return VersionRange.parse(library.artifact().versionText());
+        }
+        catch (final IllegalArgumentException e)
+        {
+            warning("Ignoring the invalid version range of '$'", library);
+            return null;
+        }
+    }
+
+    /**
+     * @return The request for the dependencies of the given library, which is only made once unless it fails
+     */
+    private CompletableFuture<List<Library>> request(final Library library, final ExecutorService executor)
+    {
+        // If the library hasn't been asked for,
+        final var key = library.artifact().name();
+        final var existing = requests.get(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+        final var request = new CompletableFuture<List<Library>>();
+        final var raced = requests.putIfAbsent(key, request);
+        if (raced != null)
+        {
+            return raced;
+        }
+
+        // fetch its dependencies, forgetting the request if it fails, so it's made again next time.
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    request.complete(fetch(library));
+                }
+                catch (final RuntimeException e)
+                {
+                    requests.remove(key, request);
+                    request.completeExceptionally(e);
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            // A prefetch that arrives after its resolution has finished can't be made, so it's forgotten too.
+            requests.remove(key, request);
+            request.completeExceptionally(e);
+        }
+        return request;
+    }
+}
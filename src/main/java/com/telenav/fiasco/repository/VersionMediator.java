@@ -0,0 +1,638 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.repository.artifact.MavenVersion;
+import com.telenav.fiasco.repository.artifact.VersionRange;
+import com.telenav.kivakit.core.messaging.repeaters.BaseRepeater;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses one version of each library in a graph of libraries where the same library may be asked for in several
+ * versions, and works out what each chosen library depends on.
+ * <p>
+ * The graph is built with {@link #add(Library)}, which gives each distinct group:artifact and group:artifact:version a
+ * number, {@link #depends(int, int, VersionRange)} and {@link #root(int, VersionRange)}. Since the graph is kept as
+ * arrays of numbers, with the dependencies of each library next to each other, walking it doesn't look anything up,
+ * which keeps mediation fast on graphs of thousands of libraries.
+ * </p>
+ * <p>
+ * {@link #mediate(Strategy)} walks the graph from the roots, a level at a time, in the order dependencies were declared,
+ * leaving out libraries excluded by any library on the way to them. With {@link Strategy#NEAREST}, the version nearest
+ * to the roots wins, as in Maven, and with {@link Strategy#HIGHEST}, the highest version asked for wins, as in Gradle.
+ * Either way, a version asked for with a range, like [1.0,2.0), must be in the range, so if the winner isn't in every
+ * range it was asked for with, the nearest or highest version that is wins instead. Since choosing a different version
+ * changes what's in the graph, the walk is repeated until the choices stop changing. Dependencies that would form a
+ * cycle are left out, and every choice between versions is recorded in the {@link Mediation}.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class VersionMediator extends BaseRepeater
+{
+    /**
+     * How to choose between versions of a library
+     */
+    public enum Strategy
+    {
+        /** The highest version asked for wins */
+        HIGHEST,
+
+        /** The version nearest to the roots wins, and of versions at the same depth, the first declared */
+        NEAREST
+    }
+
+    /** The number of each group:artifact */
+    private final Map<String, Integer> artifactNumbers = new HashMap<>();
+
+    /** Each group:artifact, by number */
+    private final List<String> artifacts = new ArrayList<>();
+
+    /** The number of each group:artifact:version */
+    private final Map<String, Integer> nodeNumbers = new HashMap<>();
+
+    /** The library of each node */
+    private final List<Library> libraries = new ArrayList<>();
+
+    /** The version of each node */
+    private final List<MavenVersion> versions = new ArrayList<>();
+
+    /** The artifact number of each node */
+    private int[] artifactOf = new int[64];
+
+    /** The node each dependency is from */
+    private int[] edgeFrom = new int[256];
+
+    /** The node each dependency is on */
+    private int[] edgeTo = new int[256];
+
+    /** The number of dependencies */
+    private int edges;
+
+    /** The ranges that dependencies were declared with, by dependency number */
+    private final Map<Integer, VersionRange> edgeRanges = new HashMap<>();
+
+    /** The roots, in the order they were declared */
+    private int[] roots = new int[16];
+
+    /** The number of roots */
+    private int rootCount;
+
+    /** The ranges that roots were declared with, by position */
+    private final Map<Integer, VersionRange> rootRanges = new HashMap<>();
+
+    /**
+     * Adds the given library to the graph, unless a library with the same coordinates is already in it
+     *
+     * @return The number of the library's node
+     */
+    public int add(final Library library)
+    {
+        final var existing = nodeNumbers.get(library.artifact().name());
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        // Number the library's group:artifact the first time it's seen,
+        final var artifact = artifactNumbers.computeIfAbsent(library.artifact().withoutVersion(), key ->
+        {
+            artifacts.add(key);
+            return artifacts.size() - 1;
+        });
+
+        // and the library itself.
+        final var node = libraries.size();
+        libraries.add(library);
+        versions.add(MavenVersion.parse(library.artifact().versionText()));
+        artifactOf = grow(artifactOf, node);
+        artifactOf[node] = artifact;
+        nodeNumbers.put(library.artifact().name(), node);
+        return node;
+    }
+
+    /**
+     * Records that the library with the first node number depends on the library with the second
+     *
+     * @param range The range the dependency was declared with, or null if it was declared with a version
+     */
+    public void depends(final int from, final int to, final VersionRange range)
+    {
+        edgeFrom = grow(edgeFrom, edges);
+        edgeTo = grow(edgeTo, edges);
+        edgeFrom[edges] = from;
+        edgeTo[edges] = to;
+        if (range != null)
+        {
+            edgeRanges.put(edges, range);
+        }
+        edges++;
+    }
+
+    /**
+     * @return The library with the given node number
+     */
+    public Library library(final int node)
+    {
+        return libraries.get(node);
+    }
+
+    /**
+     * Chooses a version of each library that can be reached from the roots, using the given strategy
+     */
+    public Mediation mediate(final Strategy strategy)
+    {
+        final var nodes = libraries.size();
+
+        // Put the dependencies of each node next to each other, in the order they were declared,
+        final var offsets = new int[nodes + 1];
+        for (var edge = 0; edge < edges; edge++)
+        {
+            offsets[edgeFrom[edge] + 1]++;
+        }
+        for (var node = 0; node < nodes; node++)
+        {
+            offsets[node + 1] += offsets[node];
+        }
+        final var targets = new int[edges];
+        final var order = new int[edges];
+        final var next = Arrays.copyOf(offsets, nodes);
+        for (var edge = 0; edge < edges; edge++)
+        {
+            final var at = next[edgeFrom[edge]]++;
+            targets[at] = edgeTo[edge];
+            order[at] = edge;
+        }
+
+        // then, starting with the highest version of each library if the highest wins,
+        final var forced = filled(artifacts.size());
+        if (strategy == Strategy.HIGHEST)
+        {
+            for (var node = 0; node < nodes; node++)
+            {
+                final var artifact = artifactOf[node];
+                if (forced[artifact] < 0 || versions.get(node).compareTo(versions.get(forced[artifact])) > 0)
+                {
+                    forced[artifact] = node;
+                }
+            }
+        }
+
+        // walk the graph until the choice of each version stops changing.
+        final var conflicts = new boolean[artifacts.size()];
+        var walk = new Walk(offsets, targets, order);
+        for (var pass = 0; ; pass++)
+        {
+            walk.run(forced);
+            if (!settle(walk, strategy, forced, conflicts))
+            {
+                break;
+            }
+            if (pass > artifacts.size())
+            {
+                warning("Versions were still changing after $ passes, so the last choices were kept", pass + 1);
+                break;
+            }
+            walk = new Walk(offsets, targets, order);
+        }
+        return mediation(walk, strategy, conflicts);
+    }
+
+    /**
+     * Adds the library with the given node number as a root
+     *
+     * @param range The range the root was declared with, or null if it was declared with a version
+     */
+    public VersionMediator root(final int node, final VersionRange range)
+    {
+        roots = grow(roots, rootCount);
+        if (range != null)
+        {
+            rootRanges.put(rootCount, range);
+        }
+        roots[rootCount++] = node;
+        return this;
+    }
+
+    /**
+     * @return The number of libraries in the graph
+     */
+    public int size()
+    {
+        return libraries.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return libraries.size() + " libraries with " + edges + " dependencies";
+    }
+
+    /**
+     * One walk of the graph from the roots, given the versions that must be chosen for some libraries
+     */
+    private class Walk
+    {
+        /** Where the dependencies of each node start in the targets */
+        final int[] offsets;
+
+        /** The node each dependency is on */
+        final int[] targets;
+
+        /** The number of each dependency in the targets */
+        final int[] order;
+
+        /** The node chosen for each artifact, or -1 */
+        final int[] winner;
+
+        /** The node each chosen node was reached from, or -1 for a root */
+        final int[] parent;
+
+        /** The depth at which each chosen node was reached */
+        final int[] depth;
+
+        /** The chosen nodes, in the order they were reached */
+        final int[] reached;
+
+        /** The number of chosen nodes */
+        int reachedCount;
+
+        /** Where the chosen dependencies of each chosen node start in the children */
+        final int[] childStart;
+
+        /** The number of chosen dependencies of each chosen node */
+        final int[] childCount;
+
+        /** The chosen dependencies of the chosen nodes */
+        int[] children = new int[256];
+
+        /** The number of chosen dependencies */
+        int childTotal;
+
+        /** The node asked for by each request, and the node that asked for it, or -1 for a root */
+        int[] requestNode = new int[256];
+
+        int[] requestFrom = new int[256];
+
+        /** The depth of each request */
+        int[] requestDepth = new int[256];
+
+        /** The range of each request, or null */
+        VersionRange[] requestRange = new VersionRange[256];
+
+        /** The next request for the same artifact, or -1 */
+        int[] requestNext = new int[256];
+
+        /** The number of requests */
+        int requests;
+
+        /** The first and last request for each artifact, or -1 */
+        final int[] firstRequest;
+
+        final int[] lastRequest;
+
+        /** The artifacts, in the order they were first asked for */
+        final int[] artifactOrder;
+
+        int artifactCount;
+
+        /** Whether each node hasn't been searched (0), is being searched (1) or has been searched (2) for cycles */
+        final byte[] state;
+
+        Walk(final int[] offsets, final int[] targets, final int[] order)
+        {
+            this.offsets = offsets;
+            this.targets = targets;
+            this.order = order;
+            final var nodes = libraries.size();
+            winner = filled(artifacts.size());
+            parent = filled(nodes);
+            depth = new int[nodes];
+            reached = new int[nodes];
+            childStart = new int[nodes];
+            childCount = new int[nodes];
+            firstRequest = filled(artifacts.size());
+            lastRequest = filled(artifacts.size());
+            artifactOrder = new int[artifacts.size()];
+            state = new byte[nodes];
+        }
+
+        /**
+         * Walks the graph from the roots, a level at a time
+         */
+        void run(final int[] forced)
+        {
+            // Start with the roots,
+            for (var index = 0; index < rootCount; index++)
+            {
+                choose(roots[index], -1, 0, rootRanges.get(index), forced);
+            }
+
+            // then visit each chosen node in the order it was reached,
+            for (var visit = 0; visit < reachedCount; visit++)
+            {
+                final var node = reached[visit];
+                childStart[node] = childTotal;
+                for (var at = offsets[node]; at < offsets[node + 1]; at++)
+                {
+                    // leaving out dependencies that are excluded on the way to them,
+                    final var target = targets[at];
+                    if (excluded(node, target))
+                    {
+                        continue;
+                    }
+
+                    // and depending on the version chosen for each of the others.
+                    final var chosen = choose(target, node, depth[node] + 1, edgeRanges.get(order[at]), forced);
+                    if (chosen != node)
+                    {
+                        children = grow(children, childTotal);
+                        children[childTotal++] = chosen;
+                        childCount[node]++;
+                    }
+                }
+            }
+
+            // Finally, leave out any dependencies that would form a cycle.
+            breakCycles();
+        }
+
+        /**
+         * Searches the chosen dependencies depth-first from the roots, leaving out each one that leads back to a
+         * library that's still being searched, since it would form a cycle
+         */
+        private void breakCycles()
+        {
+            var nodes = new int[16];
+            var positions = new int[16];
+            for (var index = 0; index < reachedCount; index++)
+            {
+                final var start = reached[index];
+                if (state[start] != 0)
+                {
+                    continue;
+                }
+                var size = 0;
+                nodes[size] = start;
+                positions[size++] = childStart[start];
+                state[start] = 1;
+                while (size > 0)
+                {
+                    final var node = nodes[size - 1];
+                    final var at = positions[size - 1]++;
+                    if (at >= childStart[node] + childCount[node])
+                    {
+                        state[node] = 2;
+                        size--;
+                        continue;
+                    }
+                    final var child = children[at];
+                    if (state[child] == 1)
+                    {
+                        children[at] = -1;
+                    }
+                    else if (state[child] == 0)
+                    {
+                        state[child] = 1;
+                        nodes = grow(nodes, size);
+                        positions = grow(positions, size);
+                        nodes[size] = child;
+                        positions[size++] = childStart[child];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Records a request for the given node, choosing a version of its artifact if it's the first request for it
+         *
+         * @return The node chosen for the artifact
+         */
+        private int choose(final int node, final int from, final int depth, final VersionRange range, final int[] forced)
+        {
+            final var artifact = artifactOf[node];
+            request(node, from, depth, range);
+            if (winner[artifact] < 0)
+            {
+                final var chosen = forced[artifact] >= 0 ? forced[artifact] : node;
+                winner[artifact] = chosen;
+                parent[chosen] = from;
+                this.depth[chosen] = depth;
+                reached[reachedCount++] = chosen;
+                artifactOrder[artifactCount++] = artifact;
+            }
+            return winner[artifact];
+        }
+
+        /**
+         * @return True if the given target is excluded by the given node or any node on the way to it
+         */
+        private boolean excluded(final int node, final int target)
+        {
+            for (var at = node; at >= 0; at = parent[at])
+            {
+                if (libraries.get(at).excludes(libraries.get(target)))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void request(final int node, final int from, final int depth, final VersionRange range)
+        {
+            requestNode = grow(requestNode, requests);
+            requestFrom = grow(requestFrom, requests);
+            requestDepth = grow(requestDepth, requests);
+            requestNext = grow(requestNext, requests);
+            if (requests >= requestRange.length)
+            {
+                requestRange = Arrays.copyOf(requestRange, requests * 2);
+            }
+            requestNode[requests] = node;
+            requestFrom[requests] = from;
+            requestDepth[requests] = depth;
+            requestRange[requests] = range;
+            requestNext[requests] = -1;
+            final var artifact = artifactOf[node];
+            if (firstRequest[artifact] < 0)
+            {
+                firstRequest[artifact] = requests;
+            }
+            else
+            {
+                requestNext[lastRequest[artifact]] = requests;
+            }
+            lastRequest[artifact] = requests;
+            requests++;
+        }
+    }
+
+    private static int[] filled(final int size)
+    {
+        final var array = new int[size];
+        Arrays.fill(array, -1);
+        return array;
+    }
+
+    /**
+     * @return The given array, or a copy twice as large if it doesn't have room for the given index
+     */
+    private static int[] grow(final int[] array, final int index)
+    {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(16, array.length * 2));
+    }
+
+    /**
+     * @return The node the given strategy would choose for the given artifact in the given walk, from the versions that
+     * are in every range they were asked for with if the given flag is set
+     */
+    private int best(final Walk walk, final int artifact, final Strategy strategy, final boolean inRanges)
+    {
+        var best = -1;
+        for (var request = walk.firstRequest[artifact]; request >= 0; request = walk.requestNext[request])
+        {
+            final var node = walk.requestNode[request];
+            if (inRanges && !inRanges(walk, artifact, node))
+            {
+                continue;
+            }
+            if (best < 0)
+            {
+                best = node;
+                if (strategy == Strategy.NEAREST)
+                {
+                    break;
+                }
+            }
+            else if (versions.get(node).compareTo(versions.get(best)) > 0)
+            {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return True if the given node is in every range its artifact was asked for with in the given walk
+     */
+    private boolean inRanges(final Walk walk, final int artifact, final int node)
+    {
+        for (var request = walk.firstRequest[artifact]; request >= 0; request = walk.requestNext[request])
+        {
+            final var range = walk.requestRange[request];
+            if (range != null && !range.contains(versions.get(node)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The choices made in the given walk, with a decision for each artifact that was asked for in more than one
+     * version, or with a range
+     */
+    private Mediation mediation(final Walk walk, final Strategy strategy, final boolean[] conflicts)
+    {
+        // Record the chosen version of each artifact and what it depends on,
+        final var chosen = new LinkedHashMap<String, Library>();
+        final var dependencies = new IdentityHashMap<Library, List<Library>>();
+        for (var index = 0; index < walk.reachedCount; index++)
+        {
+            final var node = walk.reached[index];
+            chosen.put(artifacts.get(artifactOf[node]), libraries.get(node));
+            final var children = new ArrayList<Library>();
+            for (var at = walk.childStart[node]; at < walk.childStart[node] + walk.childCount[node]; at++)
+            {
+                if (walk.children[at] >= 0)
+                {
+                    children.add(libraries.get(walk.children[at]));
+                }
+            }
+            dependencies.put(libraries.get(node), children);
+        }
+
+        // and the decision made for each artifact that needed one.
+        final var decisions = new ArrayList<Mediation.Decision>();
+        for (var index = 0; index < walk.artifactCount; index++)
+        {
+            final var artifact = walk.artifactOrder[index];
+            final var requests = new ArrayList<Mediation.Request>();
+            final var ranges = new ArrayList<String>();
+            var versionsAskedFor = 0;
+            for (var request = walk.firstRequest[artifact]; request >= 0; request = walk.requestNext[request])
+            {
+                final var node = walk.requestNode[request];
+                final var from = walk.requestFrom[request];
+                final var range = walk.requestRange[request];
+                if (range != null && !ranges.contains(range.toString()))
+                {
+                    ranges.add(range.toString());
+                }
+                if (requests.stream().noneMatch(existing -> existing.library() == libraries.get(node)))
+                {
+                    versionsAskedFor++;
+                }
+                requests.add(new Mediation.Request(libraries.get(node), from < 0 ? null : libraries.get(from), walk.requestDepth[request], range));
+            }
+            if (versionsAskedFor > 1 || !ranges.isEmpty() || conflicts[artifact])
+            {
+                final var winner = walk.winner[artifact];
+                final String reason;
+                if (conflicts[artifact])
+                {
+                    reason = (strategy == Strategy.NEAREST ? "nearest" : "highest") + ", since no version asked for is in " + String.join(" and ", ranges);
+                }
+                else if (winner == best(walk, artifact, strategy, false))
+                {
+                    reason = strategy == Strategy.NEAREST ? "nearest" : "highest";
+                }
+                else
+                {
+                    reason = (strategy == Strategy.NEAREST ? "nearest" : "highest") + " in " + String.join(" and ", ranges);
+                }
+                decisions.add(new Mediation.Decision(artifacts.get(artifact), libraries.get(winner), reason, conflicts[artifact], requests));
+            }
+        }
+        return new Mediation(strategy, chosen, dependencies, decisions);
+    }
+
+    /**
+     * Works out which node the given strategy chooses for each artifact reached in the given walk, forcing that node
+     * to be chosen in the next walk if it wasn't chosen in this one
+     *
+     * @return True if any choice changed
+     */
+    private boolean settle(final Walk walk, final Strategy strategy, final int[] forced, final boolean[] conflicts)
+    {
+        var changed = false;
+        for (var index = 0; index < walk.artifactCount; index++)
+        {
+            // Choose the best version in every range,
+            final var artifact = walk.artifactOrder[index];
+            var best = best(walk, artifact, strategy, true);
+            conflicts[artifact] = best < 0;
+
+            // or if there's none, the best version of all,
+            if (best < 0)
+            {
+                best = best(walk, artifact, strategy, false);
+            }
+
+            // and if it wasn't chosen, choose it in the next walk.
+            if (best != walk.winner[artifact])
+            {
+                forced[artifact] = best;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -12,12 +12,12 @@ import java.util.regex.Pattern;
 @SuppressWarnings("unused")
 public class Artifact implements Named
 {
-    private static final Pattern pattern = Pattern.compile("(?<group>[A-Za-z.]+)"
+    private static final Pattern pattern = Pattern.compile("(?<group>[\\w.-]+)"
             + ":"
-            + "(?<identifier>[A-Za-z-.]+)"
+            + "(?<identifier>[\\w.-]+)"
             + "(:"
-            + "(?<version>[\\d.]+(-(snapshot|alpha|beta|rc|final)))"
-            + ")?");
+            + "(?<version>[\\w.+-]+)"
+            + ")?", Pattern.CASE_INSENSITIVE);
 
     public static Artifact parse(final String descriptor)
     {
@@ -26,12 +26,26 @@ public class Artifact implements Named
         {
             final var group = new Group(matcher.group("group"));
             final var identifier = new Identifier(matcher.group("identifier"));
-            final var version = Version.parseVersion(matcher.group("version"));
-            return new Artifact(group, identifier, version);
+            return new Artifact(group, identifier, matcher.group("version"));
         }
         return null;
     }
 
+    /**
+     * @return The given version text as a {@link Version}, or null if it can't be parsed as one
+     */
+    private static Version parseVersion(final String version)
+    {
+        try
+        {
+            return version == null ? null : Version.parseVersion(version);
+        }
+        catch (final RuntimeException e)
+        {
+            return null;
+        }
+    }
+
     public static class Identifier extends StringIdentifier
     {
         public Identifier(final String identifier)
@@ -46,6 +60,9 @@ public class Artifact implements Named
 
     private Version version;
 
+    /** The version exactly as it was given, since not every Maven version can be parsed as a {@link Version} */
+    private String versionText;
+
     public Artifact(final Group group, final Identifier identifier)
     {
         this.group = group;
@@ -58,6 +75,18 @@ public class Artifact implements Named
         this.group = group;
         this.identifier = identifier;
         this.version = version;
+        versionText = version == null ? null : version.toString();
+    }
+
+    /**
+     * @param version The version, like 31.1-jre, which need not be a version that {@link Version} can parse
+     */
+    public Artifact(final Group group, final Identifier identifier, final String version)
+    {
+        this.group = group;
+        this.identifier = identifier;
+        this.version = parseVersion(version);
+        versionText = version;
     }
 
     public Artifact(final Artifact that)
@@ -65,6 +94,7 @@ public class Artifact implements Named
         group = that.group;
         identifier = that.identifier;
         version = that.version;
+        versionText = that.versionText;
     }
 
     public Group group()
@@ -80,7 +110,7 @@ public class Artifact implements Named
     @Override
     public String name()
     {
-        return group + ":" + identifier + (version == null ? "" : ":" + version);
+        return group + ":" + identifier + (versionText == null ? "" : ":" + versionText);
     }
 
     @Override
@@ -89,11 +119,30 @@ public class Artifact implements Named
         return name();
     }
 
+    /**
+     * @return The version, or null if there is no version or it isn't one that {@link Version} can parse
+     */
     public Version version()
     {
         return version;
     }
 
+    /**
+     * @return The version exactly as it was given, or null if there is none
+     */
+    public String versionText()
+    {
+        return versionText;
+    }
+
+    /**
+     * @return The group and identifier of this artifact, without its version, like com.google.guava:guava
+     */
+    public String withoutVersion()
+    {
+        return group + ":" + identifier;
+    }
+
     public Artifact withGroup(final Group group)
     {
         final var copy = new Artifact(this);
@@ -112,6 +161,15 @@ public class Artifact implements Named
     {
         final var copy = new Artifact(this);
         copy.version = version;
+        copy.versionText = version == null ? null : version.toString();
+        return copy;
+    }
+
+    public Artifact withVersion(final String version)
+    {
+        final var copy = new Artifact(this);
+        copy.version = parseVersion(version);
+        copy.versionText = version;
         return copy;
     }
 }
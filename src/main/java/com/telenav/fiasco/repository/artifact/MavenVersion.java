@@ -0,0 +1,301 @@
+package com.telenav.fiasco.repository.artifact;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A version of an artifact, ordered the way Maven orders versions, so that 1.10 comes after 1.9, 1.0-alpha-1 and
+ * 1.0-rc1 come before 1.0, which is the same as 1.0.0, 1.0-ga and 1.0-final, and 1.0-sp1 comes after it.
+ * <p>
+ * A version is split into numbers and qualifiers at dots, hyphens and changes between digits and letters. A hyphen or
+ * a change between digits and letters starts a nested list, and trailing zeros and release qualifiers in each list are
+ * dropped. Numbers are compared as numbers, the known qualifiers alpha, beta, milestone, rc (or cr), snapshot, release
+ * and sp are compared in that order, and any other qualifier comes after them, ordered by its text.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class MavenVersion implements Comparable<MavenVersion>
+{
+    /** The known qualifiers, in order */
+    private static final List<String> QUALIFIERS = List.of("alpha", "beta", "milestone", "rc", "snapshot", "", "sp");
+
+    /** Other names for known qualifiers */
+    private static final Map<String, String> ALIASES = Map.of("ga", "", "final", "", "release", "", "cr", "rc");
+
+    /** The position of the release qualifier */
+    private static final String RELEASE = String.valueOf(QUALIFIERS.indexOf(""));
+
+    /**
+     * @return The given version
+     */
+    public static MavenVersion parse(final String version)
+    {
+        return new MavenVersion(version);
+    }
+
+    /**
+     * A part of a version
+     */
+    private interface Item
+    {
+        int compareTo(Item that);
+
+        boolean isNull();
+    }
+
+    /**
+     * A number in a version
+     */
+    private static class Number implements Item
+    {
+        final BigInteger value;
+
+        Number(final String value)
+        {
+            this.value = new BigInteger(value);
+        }
+
+        @Override
+        public int compareTo(final Item that)
+        {
+            if (that == null)
+            {
+                return value.signum() == 0 ? 0 : 1;
+            }
+            return that instanceof Number ? value.compareTo(((Number) that).value) : 1;
+        }
+
+        @Override
+        public boolean isNull()
+        {
+            return value.signum() == 0;
+        }
+    }
+
+    /**
+     * A qualifier in a version, like beta or rc
+     */
+    private static class Qualifier implements Item
+    {
+        final String value;
+
+        Qualifier(final String value, final boolean followedByDigit)
+        {
+            // A single letter followed by a number is short for a qualifier, as in 1.0a1,
+            var qualifier = value;
+            if (followedByDigit && qualifier.length() == 1)
+            {
+                switch (qualifier.charAt(0))
+                {
+                    case 'a':
+                        qualifier = "alpha";
+                        break;
+
+                    case 'b':
+                        qualifier = "beta";
+                        break;
+
+                    case 'm':
+                        qualifier = "milestone";
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+
+            // and some qualifiers have other names.
+            this.value = ALIASES.getOrDefault(qualifier, qualifier);
+        }
+
+        @Override
+        public int compareTo(final Item that)
+        {
+            if (that == null)
+            {
+                return comparable(value).compareTo(RELEASE);
+            }
+            if (that instanceof Qualifier)
+            {
+                return comparable(value).compareTo(comparable(((Qualifier) that).value));
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean isNull()
+        {
+            return comparable(value).equals(RELEASE);
+        }
+
+        /**
+         * @return Text for the given qualifier that orders the known qualifiers before any others
+         */
+        private static String comparable(final String qualifier)
+        {
+            final var index = QUALIFIERS.indexOf(qualifier);
+            return index < 0 ? QUALIFIERS.size() + "-" + qualifier : String.valueOf(index);
+        }
+    }
+
+    /**
+     * A list of numbers, qualifiers and lists in a version
+     */
+    private static class Items extends ArrayList<Item> implements Item
+    {
+        @Override
+        public int compareTo(final Item that)
+        {
+            if (that == null)
+            {
+                return isEmpty() ? 0 : get(0).compareTo(null);
+            }
+            if (that instanceof Number)
+            {
+                return -1;
+            }
+            if (that instanceof Qualifier)
+            {
+                return 1;
+            }
+            final var left = iterator();
+            final var right = ((Items) that).iterator();
+            while (left.hasNext() || right.hasNext())
+            {
+                final var a = left.hasNext() ? left.next() : null;
+                final var b = right.hasNext() ? right.next() : null;
+                final var result = a == null ? (b == null ? 0 : -b.compareTo(null)) : a.compareTo(b);
+                if (result != 0)
+                {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean isNull()
+        {
+            return isEmpty();
+        }
+
+        /**
+         * Drops trailing zeros, release qualifiers and empty lists
+         */
+        void normalize()
+        {
+            for (var index = size() - 1; index >= 0; index--)
+            {
+                final var item = get(index);
+                if (item.isNull())
+                {
+                    remove(index);
+                }
+                else if (!(item instanceof Items))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /** The version as it was given */
+    private final String text;
+
+    /** The parts of the version */
+    private final Items items = new Items();
+
+    private MavenVersion(final String text)
+    {
+        this.text = text;
+        split(text.toLowerCase());
+    }
+
+    @Override
+    public int compareTo(final MavenVersion that)
+    {
+        return items.compareTo(that.items);
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    private Item item(final boolean isDigit, final String text)
+    {
+        return isDigit ? new Number(text) : new Qualifier(text, false);
+    }
+
+    /**
+     * Splits the given version into items
+     */
+    private void split(final String version)
+    {
+        final var lists = new ArrayDeque<Items>();
+        var list = items;
+        lists.push(list);
+        var isDigit = false;
+        var start = 0;
+        for (var index = 0; index < version.length(); index++)
+        {
+            final var character = version.charAt(index);
+            if (character == '.' || character == '-')
+            {
+                // A dot or hyphen ends an item, where a missing item is zero,
+                list.add(index == start ? new Number("0") : item(isDigit, version.substring(start, index)));
+                start = index + 1;
+
+                // and a hyphen starts a new list.
+                if (character == '-')
+                {
+                    final var next = new Items();
+                    list.add(next);
+                    list = next;
+                    lists.push(list);
+                }
+            }
+            else if (Character.isDigit(character))
+            {
+                // A number after a qualifier starts a new list,
+                if (!isDigit && index > start)
+                {
+                    list.add(new Qualifier(version.substring(start, index), true));
+                    start = index;
+                    final var next = new Items();
+                    list.add(next);
+                    list = next;
+                    lists.push(list);
+                }
+                isDigit = true;
+            }
+            else
+            {
+                // and so does a qualifier after a number.
+                if (isDigit && index > start)
+                {
+                    list.add(item(true, version.substring(start, index)));
+                    start = index;
+                    final var next = new Items();
+                    list.add(next);
+                    list = next;
+                    lists.push(list);
+                }
+                isDigit = false;
+            }
+        }
+        if (version.length() > start)
+        {
+            list.add(item(isDigit, version.substring(start)));
+        }
+        while (!lists.isEmpty())
+        {
+            lists.pop().normalize();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.telenav.fiasco.repository.artifact;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of versions in Maven's syntax, like [1.0,2.0) for 1.0 up to but not including 2.0, (,1.0] for 1.0 and
+ * anything before it, [1.5,) for 1.5 and anything after it, or [1.0] for exactly 1.0. Several ranges may be given, as
+ * in (,1.0],[1.2,), in which case a version in any of them is in the range.
+ * <p>
+ * Unlike a plain version, like 1.0, which is only a preference that conflict resolution can override, a range is a
+ * requirement.
+ * </p>
+ *
+ * @author jonathanl (shibo)
+ */
+public class VersionRange
+{
+    /**
+     * @return True if the given version text is a range rather than a version
+     */
+    public static boolean isRange(final String version)
+    {
+        return version != null && (version.startsWith("[") || version.startsWith("("));
+    }
+
+    /**
+     * @return The range in the given text, or null if the text isn't a range
+     * @throws IllegalArgumentException If the text looks like a range, but isn't a valid one
+     */
+    public static VersionRange parse(final String text)
+    {
+        if (!isRange(text))
+        {
+            return null;
+        }
+        final var range = new VersionRange(text);
+        var rest = text.trim();
+        while (!rest.isEmpty())
+        {
+            // Find the end of the next interval,
+            final var end = indexOfAny(rest, ")]");
+            if (!isRange(rest) || end < 0)
+            {
+                throw new IllegalArgumentException("Invalid version range " + text);
+            }
+            final var interval = rest.substring(1, end);
+            final var lowerInclusive = rest.charAt(0) == '[';
+            final var upperInclusive = rest.charAt(end) == ']';
+
+            // then read its bounds, where a single version is an exact version,
+            final var comma = interval.indexOf(',');
+            if (comma < 0)
+            {
+                if (!lowerInclusive || !upperInclusive || interval.isBlank())
+                {
+                    throw new IllegalArgumentException("Invalid version range " + text);
+                }
+                final var exact = MavenVersion.parse(interval.trim());
+                range.intervals.add(new Interval(exact, true, exact, true));
+            }
+            else
+            {
+                final var lower = interval.substring(0, comma).trim();
+                final var upper = interval.substring(comma + 1).trim();
+                range.intervals.add(new Interval(lower.isEmpty() ? null : MavenVersion.parse(lower), lowerInclusive,
+                        upper.isEmpty() ? null : MavenVersion.parse(upper), upperInclusive));
+            }
+
+            // and go on to the next interval, if there is one.
+            rest = rest.substring(end + 1).trim();
+            if (rest.startsWith(","))
+            {
+                rest = rest.substring(1).trim();
+            }
+        }
+        return range;
+    }
+
+    private static int indexOfAny(final String text, final String characters)
+    {
+        for (var index = 0; index < text.length(); index++)
+        {
+            if (characters.indexOf(text.charAt(index)) >= 0)
+            {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An interval of versions, which is unbounded at either end that has no version
+     */
+    private static class Interval
+    {
+        final MavenVersion lower;
+
+        final boolean lowerInclusive;
+
+        final MavenVersion upper;
+
+        final boolean upperInclusive;
+
+        Interval(final MavenVersion lower, final boolean lowerInclusive, final MavenVersion upper, final boolean upperInclusive)
+        {
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        boolean contains(final MavenVersion version)
+        {
+            if (lower != null)
+            {
+                final var comparison = version.compareTo(lower);
+                if (comparison < 0 || (comparison == 0 && !lowerInclusive))
+                {
+                    return false;
+                }
+            }
+            if (upper != null)
+            {
+                final var comparison = version.compareTo(upper);
+                return comparison < 0 || (comparison == 0 && upperInclusive);
+            }
+            return true;
+        }
+    }
+
+    /** The range as it was given */
+    private final String text;
+
+    /** The intervals in the range */
+    private final List<Interval> intervals = new ArrayList<>();
+
+    private VersionRange(final String text)
+    {
+        this.text = text;
+    }
+
+    /**
+     * @return True if the given version is in this range
+     */
+    public boolean contains(final MavenVersion version)
+    {
+        for (final var interval : intervals)
+        {
+            if (interval.contains(version))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The highest of the given versions that's in this range, or null if none of them is
+     */
+    public String highest(final Iterable<String> versions)
+    {
+        String highest = null;
+        MavenVersion best = null;
+        for (final var version : versions)
+        {
+            final var parsed = MavenVersion.parse(version);
+            if (contains(parsed) && (best == null || parsed.compareTo(best) > 0))
+            {
+                highest = version;
+                best = parsed;
+            }
+        }
+        return highest;
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
@@ -1,12 +1,17 @@
 open module com.telenav.fiasco
 {
     requires java.compiler;
+    requires java.management;
+    requires java.net.http;
+    requires java.xml;
+    requires jdk.httpserver;
 
     requires kivakit.application;
     requires kivakit.resource;
 
     exports com.telenav.fiasco;
     exports com.telenav.fiasco.repository.artifact;
+    exports com.telenav.fiasco.daemon;
     exports com.telenav.fiasco.dependency;
     exports com.telenav.fiasco.metadata;
     exports com.telenav.fiasco.repository;
@@ -0,0 +1,98 @@
+package com.telenav.fiasco.plugins;
+
+import com.telenav.kivakit.filesystem.FileList;
+import com.telenav.kivakit.filesystem.Folder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the walk done by {@link FilePattern#nestedFiles(Folder)}, which skips folders that can't hold a match,
+ * finds the same files as matching every file in the folder, and as the regular expression used for patterns that
+ * segments can't express.
+ *
+ * @author jonathanl (shibo)
+ */
+public class FilePatternTest
+{
+    @Rule
+    public TemporaryFolder temporary = new TemporaryFolder();
+
+    private Folder folder;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        for (final var path : List.of(
+                "src/main/java/a/A.java",
+                "src/main/java/a/b/B.java",
+                "src/main/resources/a/notes.txt",
+                "src/test/java/a/ATest.java",
+                "target/classes/a/A.class",
+                "target/A.java",
+                "docs/x/notes.txt",
+                "notes.txt",
+                "java"))
+        {
+            final var file = temporary.getRoot().toPath().resolve(path);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, path);
+        }
+        folder = Folder.parseFolder(temporary.getRoot().getAbsolutePath());
+    }
+
+    @Test
+    public void testPrunedWalkFindsEveryMatch()
+    {
+        for (final var pattern : List.of(
+                "**/*.java",
+                "**/src/main/**/*.java",
+                "**/src/*/java/**",
+                "**/a/*.java",
+                "**/notes.txt",
+                "**/x/**",
+                "**/src/**/a/*",
+                "**/java"))
+        {
+            final var parsed = FilePattern.parse(pattern);
+            assertEquals(pattern, relative(folder.nestedFiles(parsed)), relative(parsed.nestedFiles(folder)));
+        }
+    }
+
+    @Test
+    public void testExpectedMatches()
+    {
+        assertEquals(Set.of("src/main/java/a/A.java", "src/main/java/a/b/B.java"),
+                relative(FilePattern.parse("**/src/main/**/*.java").nestedFiles(folder)));
+        assertEquals(Set.of("src/main/java/a/A.java", "src/main/java/a/b/B.java", "src/test/java/a/ATest.java"),
+                relative(FilePattern.parse("**/src/*/java/**").nestedFiles(folder)));
+        assertEquals(Set.of("docs/x/notes.txt", "notes.txt", "src/main/resources/a/notes.txt"),
+                relative(FilePattern.parse("**/notes.txt").nestedFiles(folder)));
+    }
+
+    @Test
+    public void testRegularExpressionFallback()
+    {
+        // "**" inside a name can only be matched with a regular expression, which must agree with the segments.
+        assertEquals(relative(FilePattern.parse("**/*.java").nestedFiles(folder)),
+                relative(FilePattern.parse("**.java").nestedFiles(folder)));
+        assertEquals(relative(FilePattern.parse("**/src/**/*.txt").nestedFiles(folder)),
+                relative(FilePattern.parse("**/src/**.txt").nestedFiles(folder)));
+    }
+
+    private Set<String> relative(final FileList files)
+    {
+        final var paths = new TreeSet<String>();
+        files.forEach(file -> paths.add(file.relativeTo(folder).toString()));
+        return paths;
+    }
+}
@@ -0,0 +1,224 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.plugins.Digest;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.kivakit.core.messaging.Listener;
+import com.telenav.kivakit.core.messaging.listeners.MessageList;
+import com.telenav.kivakit.core.messaging.messages.status.Problem;
+import com.telenav.kivakit.filesystem.Folder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jonathanl (shibo)
+ */
+public class RemoteCacheRepositoryTest
+{
+    /**
+     * A repository in a folder that counts the files opened, and can hold each open until it's released
+     */
+    private static class FolderRepository extends BaseRepository
+    {
+        final Path root;
+
+        final AtomicInteger opened = new AtomicInteger();
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        volatile boolean hold;
+
+        FolderRepository(final Path root)
+        {
+            this.root = root;
+        }
+
+        @Override
+        public void install(final Library library)
+        {
+        }
+
+        @Override
+        public boolean remove(final Library library)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean removeAll()
+        {
+            return false;
+        }
+
+        @Override
+        protected InputStream open(final String path) throws IOException
+        {
+            if (!path.endsWith(".sha1") && !path.endsWith(".sha256"))
+            {
+                opened.incrementAndGet();
+                if (hold)
+                {
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        throw new IOException(e);
+                    }
+                }
+            }
+            try
+            {
+                return Files.newInputStream(root.resolve(path));
+            }
+            catch (final NoSuchFileException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    private static final Artifact ARTIFACT = Artifact.parse("com.example:example:1.0");
+
+    private static final String JAR = "com/example/example/1.0/example-1.0.jar";
+
+    @Rule
+    public TemporaryFolder temporary = new TemporaryFolder();
+
+    @Test
+    public void testChecksumMismatch() throws IOException
+    {
+        // Publish a jar whose checksum doesn't match it,
+        final var upstream = upstream();
+        write(upstream.root.resolve(JAR + ".sha1"), "0000000000000000000000000000000000000000  example-1.0.jar");
+        final var cache = cache(upstream);
+        final var messages = new MessageList(message -> true);
+        cache.addListener(messages);
+
+        // and it should be discarded rather than cached.
+        assertNull(cache.file(ARTIFACT, "jar"));
+        assertFalse(Files.exists(cachePath(cache, JAR)));
+        assertEquals(1, messages.count(Problem.class).asInt());
+        try (final var files = Files.list(cachePath(cache, JAR).getParent()))
+        {
+            assertEquals("No temporary files are left behind", 0, files.count());
+        }
+        catch (final NoSuchFileException ignored)
+        {
+        }
+    }
+
+    @Test
+    public void testChecksumMatch() throws IOException
+    {
+        final var upstream = upstream();
+        write(upstream.root.resolve(JAR + ".sha1"), Digest.hexadecimal(Digest.sha1().digest(Files.readAllBytes(upstream.root.resolve(JAR)))));
+        final var cache = cache(upstream);
+
+        // A verified jar is cached along with its checksums,
+        final var file = cache.file(ARTIFACT, "jar");
+        assertNotNull(file);
+        assertEquals("jar", Files.readString(cachePath(cache, JAR)));
+        assertTrue(Files.exists(cachePath(cache, JAR + ".sha1")));
+        assertTrue(Files.exists(cachePath(cache, JAR + ".sha256")));
+
+        // and is only downloaded once.
+        assertNotNull(cache.file(ARTIFACT, "jar"));
+        assertEquals(1, upstream.opened.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsDownloadOnce() throws Exception
+    {
+        // Hold the download of the jar,
+        final var upstream = upstream();
+        upstream.hold = true;
+        final var cache = cache(upstream);
+
+        // while several threads ask for it,
+        final var threads = 8;
+        final var executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final var requests = new ArrayList<Future<com.telenav.kivakit.filesystem.File>>();
+            for (var index = 0; index < threads; index++)
+            {
+                requests.add(executor.submit(() -> cache.file(ARTIFACT, "jar")));
+            }
+
+            // and once they're all waiting, let the download finish.
+            while (upstream.opened.get() == 0)
+            {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            upstream.release.countDown();
+
+            // Every thread should get the file, which was only downloaded once.
+            for (final var request : requests)
+            {
+                assertNotNull(request.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, upstream.opened.get());
+            assertEquals("jar", Files.readString(cachePath(cache, JAR)));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMissing() throws IOException
+    {
+        final var cache = cache(upstream());
+        assertNull(cache.file(Artifact.parse("com.example:missing:1.0"), "jar"));
+    }
+
+    private RemoteCacheRepository cache(final FolderRepository upstream) throws IOException
+    {
+        final var cache = new RemoteCacheRepository(Folder.parseFolder(temporary.newFolder("cache").getAbsolutePath()), upstream);
+        cache.addListener(Listener.emptyListener());
+        return cache;
+    }
+
+    private Path cachePath(final RemoteCacheRepository cache, final String path)
+    {
+        return Path.of(cache.folder().path().asString()).resolve(path);
+    }
+
+    private FolderRepository upstream() throws IOException
+    {
+        final var upstream = new FolderRepository(temporary.newFolder("upstream").toPath());
+        upstream.addListener(Listener.emptyListener());
+        write(upstream.root.resolve(JAR), "jar");
+        return upstream;
+    }
+
+    private void write(final Path file, final String text) throws IOException
+    {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, text, StandardCharsets.US_ASCII);
+    }
+}
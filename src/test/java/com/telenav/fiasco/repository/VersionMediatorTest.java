@@ -0,0 +1,203 @@
+package com.telenav.fiasco.repository;
+
+import com.telenav.fiasco.Library;
+import com.telenav.fiasco.repository.artifact.Artifact;
+import com.telenav.fiasco.repository.artifact.VersionRange;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jonathanl (shibo)
+ */
+public class VersionMediatorTest
+{
+    private final VersionMediator mediator = new VersionMediator();
+
+    @Test
+    public void testConflict()
+    {
+        // a:1.0 -> c:[1.0] and b:1.0 -> c:[2.0], so no version of c is in both ranges
+        final var a = root("g:a:1.0");
+        final var b = root("g:b:1.0");
+        final var c1 = node("g:c:1.0");
+        final var c2 = node("g:c:2.0");
+        mediator.depends(a, c1, VersionRange.parse("[1.0]"));
+        mediator.depends(b, c2, VersionRange.parse("[2.0]"));
+
+        final var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals("1.0", version(mediation, "g:c"));
+        final var decision = decision(mediation, "g:c");
+        assertTrue(decision.isConflict());
+        assertTrue(decision.reason(), decision.reason().startsWith("nearest, since no version asked for is in"));
+        assertEquals(2, decision.requests().size());
+    }
+
+    @Test
+    public void testCycle()
+    {
+        // a:1.0 -> b:1.0 -> a:1.0
+        final var a = root("g:a:1.0");
+        final var b = node("g:b:1.0");
+        mediator.depends(a, b, null);
+        mediator.depends(b, a, null);
+
+        final var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals(2, mediation.chosen().size());
+        assertTrue(mediation.chosen().get("g:b").dependencies().isEmpty());
+    }
+
+    @Test
+    public void testExclusionAlongPath()
+    {
+        // a:1.0, which excludes x, -> b:1.0 -> x:1.0, and z:1.0 -> y:1.0 -> x:2.0
+        final var a = mediator.add(new Library(Artifact.parse("g:a:1.0")).excluding(LibraryPattern.parse("g:x")));
+        mediator.root(a, null);
+        final var b = node("g:b:1.0");
+        final var x1 = node("g:x:1.0");
+        mediator.depends(a, b, null);
+        mediator.depends(b, x1, null);
+
+        // Only the path through a excludes x,
+        var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertNull(mediation.chosen().get("g:x"));
+        assertTrue(mediation.chosen().get("g:b").dependencies().isEmpty());
+
+        // so x is still reached along another path, in the version asked for there.
+        final var z = root("g:z:1.0");
+        final var y = node("g:y:1.0");
+        final var x2 = node("g:x:2.0");
+        mediator.depends(z, y, null);
+        mediator.depends(y, x2, null);
+        mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals("2.0", version(mediation, "g:x"));
+        assertTrue(mediation.chosen().get("g:b").dependencies().isEmpty());
+        assertEquals(1, mediation.chosen().get("g:y").dependencies().size());
+    }
+
+    @Test
+    public void testHighest()
+    {
+        nearestAndHighest();
+        final var mediation = mediator.mediate(VersionMediator.Strategy.HIGHEST);
+        assertEquals("2.0", version(mediation, "g:c"));
+        assertEquals("highest", decision(mediation, "g:c").reason());
+
+        // The dependencies of the version that won are the ones used.
+        assertEquals("1.0", version(mediation, "g:e"));
+    }
+
+    @Test
+    public void testNearest()
+    {
+        nearestAndHighest();
+        final var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals("1.0", version(mediation, "g:c"));
+        final var decision = decision(mediation, "g:c");
+        assertEquals("nearest", decision.reason());
+        assertFalse(decision.isConflict());
+        assertEquals(2, decision.requests().size());
+
+        // c:2.0 lost, so what it depends on isn't reached.
+        assertNull(mediation.chosen().get("g:e"));
+    }
+
+    @Test
+    public void testNearestFirstDeclared()
+    {
+        // a:1.0 -> c:2.0 and b:1.0 -> c:1.0, at the same depth
+        final var a = root("g:a:1.0");
+        final var b = root("g:b:1.0");
+        mediator.depends(a, node("g:c:2.0"), null);
+        mediator.depends(b, node("g:c:1.0"), null);
+
+        assertEquals("2.0", version(mediator.mediate(VersionMediator.Strategy.NEAREST), "g:c"));
+    }
+
+    @Test
+    public void testRangeForcesChoice()
+    {
+        // a:1.0 -> c:1.0, and b:1.0 -> d:1.0 -> c:[2.0,3.0), so the nearest version isn't in the range
+        final var a = root("g:a:1.0");
+        final var b = root("g:b:1.0");
+        final var d = node("g:d:1.0");
+        final var c1 = node("g:c:1.0");
+        final var c2 = node("g:c:2.0");
+        final var e = node("g:e:1.0");
+        mediator.depends(a, c1, null);
+        mediator.depends(b, d, null);
+        mediator.depends(d, c2, VersionRange.parse("[2.0,3.0)"));
+        mediator.depends(c2, e, null);
+
+        final var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals("2.0", version(mediation, "g:c"));
+        final var decision = decision(mediation, "g:c");
+        assertEquals("nearest in [2.0,3.0)", decision.reason());
+        assertFalse(decision.isConflict());
+
+        // Choosing c:2.0 brings in what it depends on.
+        assertEquals("1.0", version(mediation, "g:e"));
+    }
+
+    @Test
+    public void testSingleVersionHasNoDecision()
+    {
+        final var a = root("g:a:1.0");
+        mediator.depends(a, node("g:b:1.0"), null);
+
+        final var mediation = mediator.mediate(VersionMediator.Strategy.NEAREST);
+        assertEquals(2, mediation.chosen().size());
+        assertTrue(mediation.decisions().isEmpty());
+    }
+
+    private Mediation.Decision decision(final Mediation mediation, final String artifact)
+    {
+        for (final var decision : mediation.decisions())
+        {
+            if (decision.artifact().equals(artifact))
+            {
+                return decision;
+            }
+        }
+        throw new AssertionError("No decision for " + artifact);
+    }
+
+    /**
+     * a:1.0 -> c:1.0 and b:1.0 -> d:1.0 -> c:2.0 -> e:1.0
+     */
+    private void nearestAndHighest()
+    {
+        final var a = root("g:a:1.0");
+        final var b = root("g:b:1.0");
+        final var d = node("g:d:1.0");
+        final var c1 = node("g:c:1.0");
+        final var c2 = node("g:c:2.0");
+        mediator.depends(a, c1, null);
+        mediator.depends(b, d, null);
+        mediator.depends(d, c2, null);
+        mediator.depends(c2, node("g:e:1.0"), null);
+    }
+
+    private int node(final String coordinates)
+    {
+        return mediator.add(new Library(Artifact.parse(coordinates)));
+    }
+
+    private int root(final String coordinates)
+    {
+        final var node = node(coordinates);
+        mediator.root(node, null);
+        return node;
+    }
+
+    private String version(final Mediation mediation, final String artifact)
+    {
+        final var chosen = mediation.chosen().get(artifact);
+        assertNotNull(artifact + " wasn't chosen", chosen);
+        return chosen.artifact().versionText();
+    }
+}
@@ -0,0 +1,87 @@
+package com.telenav.fiasco.repository.artifact;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jonathanl (shibo)
+ */
+public class MavenVersionTest
+{
+    @Test
+    public void testEquivalentVersions()
+    {
+        assertSame("1", "1.0");
+        assertSame("1", "1.0.0");
+        assertSame("1.0", "1.0-ga");
+        assertSame("1.0", "1.0-final");
+        assertSame("1.0", "1.0-release");
+        assertSame("1.0-rc1", "1.0-cr1");
+        assertSame("1.0-RC1", "1.0-rc1");
+    }
+
+    @Test
+    public void testNumbersAreComparedAsNumbers()
+    {
+        assertOrdered("1.9", "1.10");
+        assertOrdered("1.2.3", "1.10");
+        assertOrdered("2.0", "10.0");
+        assertOrdered("1.0", "1.0.1");
+        assertOrdered("1.0.99999999999999999999", "1.1");
+    }
+
+    @Test
+    public void testOrder()
+    {
+        final var expected = List.of(
+                "1.0-alpha-1",
+                "1.0-alpha-2",
+                "1.0-beta-1",
+                "1.0-milestone-1",
+                "1.0-rc1",
+                "1.0-SNAPSHOT",
+                "1.0",
+                "1.0-sp1",
+                "1.0-xyz",
+                "1.0.1",
+                "1.1");
+
+        // Sorting the versions from the reverse of their order should put them in order.
+        final var versions = new ArrayList<MavenVersion>();
+        for (final var version : expected)
+        {
+            versions.add(0, MavenVersion.parse(version));
+        }
+        Collections.sort(versions);
+        final var sorted = new ArrayList<String>();
+        versions.forEach(version -> sorted.add(version.toString()));
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void testQualifiersComeBeforeRelease()
+    {
+        assertOrdered("1.0-alpha", "1.0");
+        assertOrdered("1.0-SNAPSHOT", "1.0");
+        assertOrdered("1.0", "1.0-sp");
+        assertOrdered("1.0-a", "1.0-b");
+    }
+
+    private void assertOrdered(final String lower, final String higher)
+    {
+        assertTrue(lower + " < " + higher, MavenVersion.parse(lower).compareTo(MavenVersion.parse(higher)) < 0);
+        assertTrue(higher + " > " + lower, MavenVersion.parse(higher).compareTo(MavenVersion.parse(lower)) > 0);
+    }
+
+    private void assertSame(final String a, final String b)
+    {
+        assertEquals(a + " = " + b, 0, MavenVersion.parse(a).compareTo(MavenVersion.parse(b)));
+        assertEquals(b + " = " + a, 0, MavenVersion.parse(b).compareTo(MavenVersion.parse(a)));
+    }
+}
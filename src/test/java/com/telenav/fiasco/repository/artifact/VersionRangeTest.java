@@ -0,0 +1,86 @@
+package com.telenav.fiasco.repository.artifact;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jonathanl (shibo)
+ */
+public class VersionRangeTest
+{
+    private static final List<String> AVAILABLE = List.of("0.9", "1.0-rc1", "1.0", "1.5", "1.10", "2.0-SNAPSHOT", "2.0", "2.1");
+
+    @Test
+    public void testBounds()
+    {
+        final var range = VersionRange.parse("[1.0,2.0)");
+        assertTrue(range.contains(MavenVersion.parse("1.0")));
+        assertTrue(range.contains(MavenVersion.parse("1.0.0")));
+        assertTrue(range.contains(MavenVersion.parse("1.10")));
+        assertFalse(range.contains(MavenVersion.parse("1.0-rc1")));
+        assertFalse(range.contains(MavenVersion.parse("2.0")));
+
+        // A snapshot of the upper bound comes before it, so it's in the range.
+        assertTrue(range.contains(MavenVersion.parse("2.0-SNAPSHOT")));
+    }
+
+    @Test
+    public void testExact()
+    {
+        final var range = VersionRange.parse("[1.5]");
+        assertTrue(range.contains(MavenVersion.parse("1.5.0")));
+        assertFalse(range.contains(MavenVersion.parse("1.5.1")));
+        assertEquals("1.5", range.highest(AVAILABLE));
+    }
+
+    @Test
+    public void testHighest()
+    {
+        assertEquals("1.10", VersionRange.parse("[1.0,2.0-SNAPSHOT)").highest(AVAILABLE));
+        assertEquals("2.0", VersionRange.parse("[1.0,2.0]").highest(AVAILABLE));
+        assertEquals("2.1", VersionRange.parse("[1.5,)").highest(AVAILABLE));
+        assertEquals("1.0", VersionRange.parse("(,1.0]").highest(AVAILABLE));
+        assertNull(VersionRange.parse("[3.0,)").highest(AVAILABLE));
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        for (final var text : List.of("[1.0", "[1.0,2.0", "(1.0)", "[]", "[1.0,2.0)x"))
+        {
+            try
+            {
+                VersionRange.parse(text);
+                throw new AssertionError("Parsed invalid range " + text);
+            }
+            catch (final IllegalArgumentException ignored)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void testNotARange()
+    {
+        assertFalse(VersionRange.isRange("1.0"));
+        assertFalse(VersionRange.isRange(null));
+        assertNull(VersionRange.parse("1.0"));
+    }
+
+    @Test
+    public void testUnion()
+    {
+        final var range = VersionRange.parse("(,1.0],[1.2,)");
+        assertTrue(range.contains(MavenVersion.parse("0.9")));
+        assertFalse(range.contains(MavenVersion.parse("1.1")));
+        assertTrue(range.contains(MavenVersion.parse("1.2")));
+        assertEquals("2.1", range.highest(AVAILABLE));
+        assertEquals("1.0", range.highest(List.of("0.9", "1.0", "1.1")));
+    }
+}